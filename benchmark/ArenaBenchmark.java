@@ -0,0 +1,168 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import expression.Expression;
+import expression.ExpressionArena;
+import expression.ExpressionProgram;
+import main.Simulation;
+import mathling.MathlingMutator;
+import mathling.TargetSamples;
+
+/**
+ * Compares evolving a large population stored as {@code Expression}
+ * objects against one stored in {@code ExpressionArena}s. Each invocation
+ * is one generation: every candidate is evaluated over the target
+ * samples and replaced by a mutation of itself. The arena version copies
+ * each mutation into a second arena and then swaps the two. Both start
+ * from the same population, generated from {@code seed}, and keep
+ * evolving from one invocation to the next, as a simulation would.
+ * <br><br>
+ *
+ * The difference is mostly in garbage collection, which JMH's own
+ * profiler measures:
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar ArenaBenchmark -prof gc
+ * </pre>
+ *
+ * @see expression.ExpressionArena
+ * @see benchmark.ExpressionBenchmarks
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ArenaBenchmark
+{
+	private static final double[] odds = {30, 30};
+	private static final double aggressiveness = 30;
+
+	/**
+	 * The samples, and the seeded population both benchmarks start from.
+	 */
+	@State(Scope.Thread)
+	public static class Start
+	{
+		@Param({"100000"})
+		public int population;
+
+		@Param({"1"})
+		public long seed;
+
+		double[] inputs,
+				 out;
+		boolean[] faults;
+		Expression[] trees;
+
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			final TargetSamples samples = Simulation.getTargetSamples();
+			final int n = samples.size();
+
+			this.inputs = new double[n];
+			this.out = new double[n];
+			this.faults = new boolean[n];
+
+			for (int i = 0; i < n; i++)
+				this.inputs[i] = samples.getInput(i);
+
+			MathlingMutator.setSeed(this.seed);
+
+			this.trees = new Expression[this.population];
+			for (int i = 0; i < this.population; i++)
+				this.trees[i] = MathlingMutator.newExpressionSafe(odds);
+
+			return;
+		}
+	}
+
+	/**
+	 * The population as {@code Expression} objects.
+	 */
+	@State(Scope.Thread)
+	public static class Objects
+	{
+		Expression[] trees;
+
+		@Setup(Level.Trial)
+		public void setUp(Start start)
+		{
+			this.trees = start.trees.clone();
+			return;
+		}
+	}
+
+	/**
+	 * The population in a pair of arenas.
+	 */
+	@State(Scope.Thread)
+	public static class Arenas
+	{
+		@Param({"false", "true"})
+		public boolean offHeap;
+
+		ExpressionArena current,
+						next;
+
+		@Setup(Level.Trial)
+		public void setUp(Start start)
+		{
+			this.current = new ExpressionArena(start.trees.length * 16, this.offHeap);
+			this.next = new ExpressionArena(start.trees.length * 16, this.offHeap);
+
+			for (Expression e : start.trees)
+				this.current.add(e);
+
+			return;
+		}
+	}
+
+	@Benchmark
+	public Expression[] objects(Start start, Objects o)
+	{
+		final int n = start.inputs.length;
+
+		for (int i = 0; i < o.trees.length; i++)
+		{
+			ExpressionProgram.compile(o.trees[i]).evaluate(start.inputs, 0, n, start.out, start.faults);
+			o.trees[i] = MathlingMutator.mutateExpression(o.trees[i], aggressiveness, odds);
+		}
+
+		return o.trees;
+	}
+
+	@Benchmark
+	public ExpressionArena arena(Start start, Arenas a)
+	{
+		final int n = start.inputs.length,
+				  count = a.current.size();
+
+		a.next.clear();
+		for (int i = 0; i < count; i++)
+		{
+			a.current.evaluate(i, start.inputs, 0, n, start.out, start.faults);
+			a.next.copy(a.current, MathlingMutator.mutateArena(a.current, i, aggressiveness, odds));
+		}
+
+		final ExpressionArena swap = a.current;
+		a.current = a.next;
+		a.next = swap;
+
+		return a.current;
+	}
+}
@@ -0,0 +1,102 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import expression.Expression;
+import main.Simulation;
+import mathling.Mathling;
+import mathling.MathlingMutator;
+import mathling.MathlingRandom;
+import mathling.TargetSamples;
+
+/**
+ * Measures accuracy calculations on a population where every
+ * {@code Mathling} divides by zero somewhere in the test range. Each
+ * {@code Expression} has the form {@code a + b / (x - k)}, for random
+ * {@code a} and {@code b} and an integer {@code k} inside the range. Some
+ * use {@code x - x} as the divisor instead, so they divide by zero at
+ * every input. The population is generated from {@code seed}, and any
+ * simplification it needs settles during warmup.<br><br>
+ *
+ * Run with {@code java -jar jmh/target/benchmarks.jar DivisionBenchmark}.
+ *
+ * @see mathling.Mathling#calculateAccuracy(TargetSamples)
+ * @see benchmark.ExpressionBenchmarks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class DivisionBenchmark
+{
+	private static final int populationSize = 100;
+	private static final double[] odds = {30, 30};
+
+	@Param({"1"})
+	public long seed;
+
+	private TargetSamples samples;
+	private Mathling[] mathlings;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		final MathlingRandom random = new MathlingRandom(this.seed);
+
+		MathlingMutator.setSeed(this.seed);
+
+		this.samples = Simulation.getTargetSamples();
+		this.mathlings = new Mathling[populationSize];
+		for (int i = 0; i < populationSize; i++)
+			this.mathlings[i] = new Mathling(divisionHeavy(random));
+
+		return;
+	}
+
+	/**
+	 * @return	A random {@code Expression} which divides by zero.
+	 */
+	private static Expression divisionHeavy(MathlingRandom random)
+	{
+		final Expression x = Expression.of('x');
+		final Expression divisor;
+
+		if (random.nextDouble() < 0.25)
+			divisor = Expression.of(x, '-', x);
+		else
+			divisor = Expression.of(x, '-', Expression.of((double) (int) (-360 + random.nextDouble() * 720)));
+
+		return Expression.of(
+				MathlingMutator.newExpressionSafe(odds),
+				'+',
+				Expression.of(MathlingMutator.newExpressionSafe(odds), '/', divisor));
+	}
+
+	@Benchmark
+	public double population()
+	{
+		double sum = 0;
+		for (Mathling m : this.mathlings)
+		{
+			m.calculateAccuracy(this.samples);
+			sum += m.getAccuracy();
+		}
+
+		return sum;
+	}
+}
@@ -0,0 +1,199 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import expression.DivideByZeroError;
+import expression.Expression;
+import expression.ExpressionCopier;
+import expression.ExpressionProgram;
+import lambdaType.Computable;
+import lambdaType.Thunklet;
+import main.Simulation;
+import mathling.Mathling;
+import mathling.MathlingMutator;
+import mathling.TargetSamples;
+
+/**
+ * Measures the core operations of a simulation on seeded trees of chosen
+ * sizes and depths, with JMH. Every benchmark is run for each pair of
+ * {@code size} and {@code depth}, on trees generated from {@code seed},
+ * so the very same trees can be measured again later.<br><br>
+ *
+ * The benchmarks are:<br><br>
+ *
+ * collapse:			{@code Expression.collapse} over every sample input.<br>
+ * thunkletMake:		Building a {@code Thunklet}.<br>
+ * thunkletCompute:		A built {@code Thunklet} over every sample input.<br>
+ * programEvaluate:		An {@code ExpressionProgram} over every sample input
+ * 						at once.<br>
+ * copy:				{@code ExpressionCopier.copy}.<br>
+ * mutate:				{@code MathlingMutator.mutateExpression}.<br>
+ * accuracy:			{@code Mathling.calculateAccuracy} on a fresh
+ * 						{@code Mathling}.<br>
+ * generation:			One full generation of a population of seeded trees,
+ * 						with the simulation's default settings. The
+ * 						population and everything the simulation carries
+ * 						between generations are rebuilt before each
+ * 						invocation, so every invocation does the same
+ * 						work.<br><br>
+ *
+ * Build with {@code mvn package}, then run with
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar -rf json -rff results.json
+ * </pre>
+ * Sizes, depths and the seed can be changed with JMH's {@code -p}, such as
+ * {@code -p size=1023 -p depth=16}. Size and depth pairs which can't fit
+ * fail. {@link RegressionCheck} compares the results against an earlier
+ * run's.
+ *
+ * @see benchmark.SeededTrees
+ * @see benchmark.RegressionCheck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class ExpressionBenchmarks
+{
+	private static final double[] odds = {30, 30};
+	private static final int populationSize = 100;
+
+	@Param({"15", "63", "255"})
+	public int size;
+
+	@Param({"8", "32"})
+	public int depth;
+
+	@Param({"1"})
+	public long seed;
+
+	private TargetSamples samples;
+	private double[] inputs,
+					 outputs;
+	private boolean[] faults;
+
+	private Expression e;
+	private Computable thunklet;
+	private ExpressionProgram program;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.samples = Simulation.getTargetSamples();
+		this.inputs = new double[this.samples.size()];
+		this.outputs = new double[this.samples.size()];
+		this.faults = new boolean[this.samples.size()];
+
+		for (int i = 0; i < this.inputs.length; i++)
+			this.inputs[i] = this.samples.getInput(i);
+
+		this.e = new SeededTrees(this.seed).generate(this.size, this.depth);
+		this.thunklet = Thunklet.makeThunklet(this.e);
+		this.program = ExpressionProgram.compile(this.e);
+
+		MathlingMutator.setSeed(this.seed);
+
+		return;
+	}
+
+	/**
+	 * A population of seeded trees, rebuilt before every invocation along
+	 * with the simulation's state between generations.
+	 */
+	@State(Scope.Thread)
+	public static class Population
+	{
+		private Mathling[] mathlings;
+
+		@Setup(Level.Invocation)
+		public void setUp(ExpressionBenchmarks b)
+		{
+			final SeededTrees trees = new SeededTrees(b.seed);
+
+			this.mathlings = new Mathling[populationSize];
+			for (int i = 0; i < populationSize; i++)
+				this.mathlings[i] = new Mathling(trees.generate(b.size, b.depth));
+
+			Simulation.resetState();
+			MathlingMutator.setSeed(b.seed);
+
+			return;
+		}
+	}
+
+	@Benchmark
+	public double collapse() throws DivideByZeroError
+	{
+		double sum = 0;
+		for (double x : this.inputs)
+			sum += this.e.collapse(x);
+
+		return sum;
+	}
+
+	@Benchmark
+	public Computable thunkletMake()
+	{
+		return Thunklet.makeThunklet(this.e);
+	}
+
+	@Benchmark
+	public double thunkletCompute() throws DivideByZeroError
+	{
+		double sum = 0;
+		for (double x : this.inputs)
+			sum += this.thunklet.compute(x);
+
+		return sum;
+	}
+
+	@Benchmark
+	public double programEvaluate()
+	{
+		return this.program.evaluate(this.inputs, 0, this.inputs.length, this.outputs, this.faults)
+				+ this.outputs[0];
+	}
+
+	@Benchmark
+	public Expression copy()
+	{
+		return ExpressionCopier.copy(this.e);
+	}
+
+	@Benchmark
+	public Expression mutate()
+	{
+		return MathlingMutator.mutateExpression(this.e, 30, odds);
+	}
+
+	@Benchmark
+	public double accuracy()
+	{
+		final Mathling m = new Mathling(this.e);
+		m.calculateAccuracy(this.samples);
+
+		return m.getAccuracy();
+	}
+
+	@Benchmark
+	public double generation(Population p)
+	{
+		Simulation.runGeneration(p.mathlings);
+		return p.mathlings[0].getAccuracy();
+	}
+}
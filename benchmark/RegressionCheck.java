@@ -0,0 +1,120 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Compares two runs of JMH benchmarks, as written with
+ * {@code -rf json}, and reports every benchmark which got worse by more
+ * than a tolerance. Benchmarks are matched by name and parameters, and
+ * any found in only one run are skipped. For throughput, lower scores are
+ * worse; for every other mode, higher ones are.<br><br>
+ *
+ * Usage: {@code java -cp jmh/target/benchmarks.jar benchmark.RegressionCheck
+ * <baseline> <results> [tolerance]}, where the tolerance is a fraction
+ * (default 0.1). The exit status is 1 if anything regressed.
+ *
+ * @see benchmark.ExpressionBenchmarks
+ */
+public class RegressionCheck
+{
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+			throw new IllegalArgumentException("Expected <baseline> <results> [tolerance]");
+
+		final double tolerance = (args.length > 2)? Double.parseDouble(args[2]) : 0.1;
+		final Map<String, JsonObject> before = read(args[0]),
+									  after = read(args[1]);
+
+		int regressions = 0;
+		for (Map.Entry<String, JsonObject> entry : after.entrySet())
+		{
+			final JsonObject old = before.get(entry.getKey());
+
+			if (old == null)
+				continue;
+
+			final JsonObject now = entry.getValue();
+			final double was = score(old),
+						 is = score(now);
+			final boolean higherIsBetter = "thrpt".equals(now.get("mode").getAsString());
+			final boolean worse = higherIsBetter? is < was * (1 - tolerance)
+												: is > was * (1 + tolerance);
+
+			if (worse)
+			{
+				System.err.println(String.format(Locale.ROOT,
+						"Regression: %s went from %.3f to %.3f %s",
+						entry.getKey(), was, is, unit(now)));
+				regressions++;
+			}
+		}
+
+		if (regressions > 0)
+			System.exit(1);
+
+		return;
+	}
+
+	/**
+	 * @return	The results in a JMH JSON file, keyed by benchmark name and
+	 * 			parameters.
+	 */
+	private static Map<String, JsonObject> read(String path) throws IOException
+	{
+		final Map<String, JsonObject> results = new HashMap<String, JsonObject>();
+
+		try (Reader reader = Files.newBufferedReader(Paths.get(path)))
+		{
+			final JsonArray runs = JsonParser.parseReader(reader).getAsJsonArray();
+
+			for (JsonElement run : runs)
+			{
+				final JsonObject result = run.getAsJsonObject();
+				results.put(key(result), result);
+			}
+		}
+
+		return results;
+	}
+
+	private static String key(JsonObject result)
+	{
+		final StringBuilder key = new StringBuilder(result.get("benchmark").getAsString());
+
+		if (result.has("params"))
+		{
+			// Sorted, so the order JMH wrote them in doesn't matter
+			final Map<String, String> params = new TreeMap<String, String>();
+			for (Map.Entry<String, JsonElement> p : result.getAsJsonObject("params").entrySet())
+				params.put(p.getKey(), p.getValue().getAsString());
+
+			for (Map.Entry<String, String> p : params.entrySet())
+				key.append(' ').append(p.getKey()).append('=').append(p.getValue());
+		}
+
+		return key.toString();
+	}
+
+	private static double score(JsonObject result)
+	{
+		return result.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+	}
+
+	private static String unit(JsonObject result)
+	{
+		return result.getAsJsonObject("primaryMetric").get("scoreUnit").getAsString();
+	}
+}
@@ -0,0 +1,93 @@
+package benchmark;
+
+import expression.Expression;
+import mathling.MathlingRandom;
+
+/**
+ * Generates random {@code Expression}s of an exact size and a bounded
+ * depth, from a seed. Unlike
+ * {@link mathling.MathlingMutator#newExpressionSafe(double[])}, whose
+ * trees vary wildly in size, this makes it possible to measure how costs
+ * grow with the size and shape of a tree, and to measure the very same
+ * trees again later.<br><br>
+ *
+ * Leaves are numbers or the variable, with even odds. Operators are
+ * addition, subtraction, or multiplication. Division is left out, as the
+ * generated trees would otherwise divide by zero unpredictably, which
+ * changes what's being measured.
+ *
+ * @see benchmark.ExpressionBenchmarks
+ */
+public class SeededTrees
+{
+	private static final char var = 'x';
+	private static final char[] operators = {'+', '-', '*'};
+
+	private final MathlingRandom random;
+
+	/**
+	 * @param seed	The seed to generate from.
+	 */
+	public SeededTrees(long seed)
+	{
+		this.random = new MathlingRandom(seed);
+		return;
+	}
+
+	/**
+	 * @param size	How many nodes the tree has. Binary trees always have
+	 * 				an odd number of nodes, so even sizes are rounded up.
+	 * @param depth	The most levels the tree may have, counting the root.
+	 * 				A depth of about half the size gives long chains, and
+	 * 				the smallest possible depth gives a balanced tree.
+	 * @return		The generated {@code Expression}.
+	 * @throws IllegalArgumentException	If that many nodes can't fit in
+	 * 									that many levels.
+	 */
+	public Expression generate(int size, int depth)
+	{
+		final int nodes = (size % 2 == 0)? size + 1 : size;
+
+		if (nodes < 1 || nodes > capacity(depth))
+			throw new IllegalArgumentException(
+					"Can't fit " + nodes + " nodes in " + depth + " levels");
+
+		return this.build(nodes, depth);
+	}
+
+	/**
+	 * @param depth	A number of levels.
+	 * @return		The most nodes which fit in that many levels.
+	 */
+	public static long capacity(int depth)
+	{
+		return (depth >= 62)? Long.MAX_VALUE : (1L << depth) - 1;
+	}
+
+	private Expression build(int nodes, int depth)
+	{
+		if (nodes == 1)
+		{
+			if (this.random.nextDouble() < 0.5)
+				return Expression.of(var);
+
+			return Expression.of(-100 + this.random.nextDouble() * 200);
+		}
+
+		// Split the rest between the children, both odd, and each small
+		// enough to fit in the levels below
+		final long below = capacity(depth - 1);
+		final int rest = nodes - 1,
+				  fewest = (int) Math.max(1, rest - below),
+				  most = (int) Math.min(rest - 1, below),
+				  choices = (most - fewest) / 2 + 1,
+				  left = fewest + 2 * (int) (this.random.nextDouble() * choices);
+
+		final char operator = operators[(int) (this.random.nextDouble() * operators.length)];
+
+		return Expression.of(
+				this.build(left, depth - 1),
+				operator,
+				this.build(rest - left, depth - 1));
+	}
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lambdaType.Computable;
+import main.Simulation;
+import mathling.Mathling;
+import mathling.MathlingMutator;
+import mathling.TargetSamples;
+
+/**
+ * Measures a generation of the simulation when each {@code Mathling}
+ * samples the goal function itself, compared to when they all share one
+ * precalculated set of {@code TargetSamples}. The population is
+ * generated from {@code seed}, and it and everything the simulation
+ * carries between generations are rebuilt before each invocation, so
+ * every invocation does the same work.<br><br>
+ *
+ * Run with {@code java -jar jmh/target/benchmarks.jar TargetSamplesBenchmark}.
+ *
+ * @see mathling.TargetSamples
+ * @see benchmark.ExpressionBenchmarks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class TargetSamplesBenchmark
+{
+	private static final int populationSize = 100;
+
+	// The same goal function as the simulation's
+	private static final Computable goal = (x) -> Math.sin(Math.toRadians(x));
+
+	@Param({"1"})
+	public long seed;
+
+	private Mathling[] mathlings;
+
+	@Setup(Level.Invocation)
+	public void setUp()
+	{
+		MathlingMutator.setSeed(this.seed);
+
+		this.mathlings = new Mathling[populationSize];
+		for (int i = 0; i < populationSize; i++)
+			this.mathlings[i] = new Mathling();
+
+		Simulation.resetState();
+
+		return;
+	}
+
+	@Benchmark
+	public double ownSamples()
+	{
+		for (Mathling m : this.mathlings)
+			m.calculateAccuracy(goal);
+
+		Simulation.repopulateMathlings(this.mathlings);
+		return this.mathlings[0].getAccuracy();
+	}
+
+	@Benchmark
+	public double sharedSamples()
+	{
+		final TargetSamples samples = Simulation.getTargetSamples();
+
+		for (Mathling m : this.mathlings)
+			m.calculateAccuracy(samples);
+
+		Simulation.repopulateMathlings(this.mathlings);
+		return this.mathlings[0].getAccuracy();
+	}
+}
@@ -4,8 +4,14 @@ package expression;
  * 
  * Used to signify when an evaluated {@code Expression} contains division
  * by zero.
+ * <br><br>
+ * 
+ * These are thrown often enough during a simulation that they don't
+ * record a stack trace, which would otherwise cost far more than the
+ * evaluation that failed.
  *
  * @see expression.Expression#collapse(double)
+ * @see expression.ExpressionProgram#evaluate(double[], double[], boolean[])
  */
 public class DivideByZeroError extends Exception
 {
@@ -16,16 +22,17 @@ public class DivideByZeroError extends Exception
 	 */
 	public DivideByZeroError()
 	{
+		super(null, null, false, false);
 		return;
 	}
 	
 	/**
-	 * Used when the error should print out a message, too.
+	 * Used when the error should carry a message, too.
 	 * @param message	The error to display.
 	 */
 	public DivideByZeroError(String message)
 	{
-		System.out.println(message);
+		super(message, null, false, false);
 		return;
 	}
 }
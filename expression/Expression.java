@@ -1,6 +1,10 @@
 package expression;
 
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import lambdaType.BinaryFunction;
 
@@ -25,46 +29,101 @@ import lambdaType.BinaryFunction;
  * 
  * Note: Testing for division by zero should still be done, as the
  * grammar does not account for that.
+ * <br><br>
+ * 
+ * {@code Expression}s are immutable and hash-consed: they can only be
+ * built through the {@code of} methods, which hand back the existing
+ * {@code Expression} if an identical one is already alive. Structurally
+ * equal trees are therefore the same object, children can be shared
+ * freely instead of copied, and comparing two trees is usually a single
+ * reference check.
  */
 public class Expression implements Serializable
 {
 	private static final long serialVersionUID = 4357648774888332638L;
 	
-	private ExpressionType type = null;
-	private double num = 0;
-	private char variable = ' ';
+	// Every live Expression, so that identical ones can be shared. The
+	// values are weak too, as they refer to their own keys. The table is
+	// split into stripes by hash, each with its own lock, so that threads
+	// building different trees rarely wait on each other.
+	private static final int stripes = 64;
+	private static final Map<Expression, WeakReference<Expression>>[] interned = newStripes();
+	
+	private final ExpressionType type;
+	private final double num;
+	private final char variable;
+	
+	private final Expression left;
+	private final char operator;
+	private final Expression right;
 	
-	private Expression left  = null;
-	private char operator    = ' ';
-	private Expression right = null;
+	// Cached structuralHash()
+	private final transient int hash;
+	
+	// Cached getSize() and getDepth()
+	private final transient int size,
+								depth;
+	
+	// Cached containsDivision()
+	private final transient boolean divides;
+	
+	// Compiled the first time this is collapsed
+	private transient ExpressionProgram program = null;
+	
+	private Expression(ExpressionType type,
+						double num,
+						char variable,
+						Expression left,
+						char operator,
+						Expression right)
+	{
+		this.type = type;
+		this.num = num;
+		this.variable = variable;
+		this.left = left;
+		this.operator = operator;
+		this.right = right;
+		this.hash = this.hashTree();
+		
+		if (type == ExpressionType.COMPLEX)
+		{
+			this.size = 1 + left.size + right.size;
+			this.depth = 1 + Math.max(left.depth, right.depth);
+			this.divides = (operator == '/') || left.divides || right.divides;
+		}
+		else
+		{
+			this.size = 1;
+			this.depth = 1;
+			this.divides = false;
+		}
+		
+		return;
+	}
 	
 	/**
-	 * Builds an {@code Expression} that consists of a single real
+	 * Gives an {@code Expression} that consists of a single real
 	 * number. This translates to a function which returns only said 
 	 * number.
 	 * 
 	 * @param n	The number the {@code Expression} will return.
+	 * @return	The (possibly shared) {@code Expression}.
 	 */
-	public Expression(double n)
+	public static Expression of(double n)
 	{
-		this.type = ExpressionType.NUMBER;
-		this.num = n;
-		
-		return;
+		return intern(new Expression(ExpressionType.NUMBER, n, ' ', null, ' ', null));
 	}
 	
 	/**
-	 * Builds an {@code Expression} that consists of a variable. This
+	 * Gives an {@code Expression} that consists of a variable. This
 	 * translates to a function which returns its input.
 	 * 
 	 * @param v	The letter to use for the variable.
+	 * @return	The (possibly shared) {@code Expression}.
 	 */
-	public Expression(char v)
+	public static Expression of(char v)
 	{
-		this.type = ExpressionType.VARIABLE;
-		this.variable = v;
-		
-		return;
+		return intern(new Expression(ExpressionType.VARIABLE, 0, v, null, ' ', null));
 	}
 	
 	/**
@@ -76,16 +135,94 @@ public class Expression implements Serializable
 	 * @param l	The left branch.
 	 * @param o	The combining operator.
 	 * @param r	The right branch.
+	 * @return	The (possibly shared) {@code Expression}.
+	 */
+	public static Expression of(Expression l, char o, Expression r)
+	{
+		return intern(new Expression(ExpressionType.COMPLEX, 0, ' ', l, o, r));
+	}
+	
+	/**
+	 * Finds the live {@code Expression} identical to the given one, or
+	 * registers the given one if there isn't one yet.
+	 * 
+	 * @param e	A freshly built {@code Expression}, whose children are
+	 * 			already interned.
+	 * @return	The shared {@code Expression}.
 	 */
-	public Expression(Expression l, char o, Expression r)
+	private static Expression intern(Expression e)
 	{
-		this.type = ExpressionType.COMPLEX;
+		final int h = e.hash ^ (e.hash >>> 16);
+		final Map<Expression, WeakReference<Expression>> stripe = interned[h & (stripes - 1)];
 		
-		this.left = l;
-		this.operator = o;
-		this.right = r;
+		synchronized (stripe)
+		{
+			final WeakReference<Expression> ref = stripe.get(e);
+			if (ref != null)
+			{
+				final Expression existing = ref.get();
+				if (existing != null)
+					return existing;
+			}
+			
+			stripe.put(e, new WeakReference<Expression>(e));
+			return e;
+		}
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Map<Expression, WeakReference<Expression>>[] newStripes()
+	{
+		final Map<Expression, WeakReference<Expression>>[] maps = new Map[stripes];
 		
-		return;
+		for (int i = 0; i < stripes; i++)
+			maps[i] = new WeakHashMap<Expression, WeakReference<Expression>>();
+		
+		return maps;
+	}
+	
+	/**
+	 * Deserialized {@code Expression}s are swapped for their shared
+	 * counterparts. Children are resolved before their parents, so the
+	 * whole tree ends up interned.
+	 * 
+	 * @return	The shared {@code Expression}.
+	 */
+	private Object readResolve()
+	{
+		return intern(new Expression(this.type, this.num, this.variable,
+				this.left, this.operator, this.right));
+	}
+	
+	/**
+	 * Two {@code Expression}s are equal if they are of the same type with
+	 * the same contents, and have the very same children. As every
+	 * {@code Expression} is interned, this is the same as being the same
+	 * object; it's only needed while interning.
+	 * 
+	 * @see #equivalent(Expression)
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+			return true;
+		if (!(o instanceof Expression))
+			return false;
+		
+		final Expression other = (Expression) o;
+		return this.type == other.type &&
+				Double.doubleToLongBits(this.num) == Double.doubleToLongBits(other.num) &&
+				this.variable == other.variable &&
+				this.operator == other.operator &&
+				this.left == other.left &&
+				this.right == other.right;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return this.hash;
 	}
 	
 	/**
@@ -98,50 +235,33 @@ public class Expression implements Serializable
 	 * 
 	 * If it's a variable, it returns the input.
 	 * 
-	 * If it's a complex {@code Expression}, the function is solved
-	 * recursively by first figuring out how to implement the operator
-	 * with {@link #solveExpression(double)}, then repeating the {@code collapse}
-	 * on each half.
+	 * If it's a complex {@code Expression}, it's compiled into an
+	 * {@code ExpressionProgram} the first time, which is then run
+	 * without recursing, so any depth of tree can be collapsed.
 	 * 
 	 * @param input	The real number to pass through the {@code Expression}.
 	 * @return		The function's resulting calculated number.
-	 * @see			#solveExpression(double)
+	 * @see			expression.ExpressionProgram#evaluate(double)
 	 */
 	public double collapse(double input) throws DivideByZeroError
 	{
-		double result = 0;
-		
 		switch (this.type)
 		{
 			case NUMBER:
-				result = this.num; 
-				break;
+				return this.num;
 			case VARIABLE:
-				result = input;
-				break;
-			case COMPLEX:
-				result = this.solveExpression(input);
-				break;
+				return input;
+			default:
+				ExpressionProgram p = this.program;
+				if (p == null)
+				{
+					// Programs are immutable, so racing to build one is harmless
+					p = ExpressionProgram.compile(this);
+					this.program = p;
+				}
+				
+				return p.evaluate(input);
 		}
-		
-		return result;
-	}
-	
-	/**
-	 * Joins two halves of a complex {@code Expression} together,
-	 * based on the operator.
-	 * 
-	 * @param input	The number inputed to the function
-	 * @return		The results of the generated lambda's computation.
-	 * 
-	 * @see			BinaryFunction
-	 * @see			#makeFunction()
-	 */
-	private double solveExpression(double input) throws DivideByZeroError
-	{
-		BinaryFunction f = makeFunction();
-		return f.compute(	this.left.collapse(input),
-							this.right.collapse(input));
 	}
 	
 	/**
@@ -175,15 +295,16 @@ public class Expression implements Serializable
 	}
 	
 	/**
-	 * Returns a tweaked version of a numerical {@code Expression}.
-	 * Useful for mutations.
+	 * Returns a tweaked version of a numerical {@code Expression}'s
+	 * number. Useful for mutations. This {@code Expression} itself
+	 * is left as it is.
 	 * 
 	 * @param amount	What to shift the number by.
 	 * @return			The shifted number.
 	 */
 	public double shiftNumber(double amount)
 	{
-		return this.num += amount;
+		return this.num + amount;
 	}
 	
 	/**
@@ -200,49 +321,66 @@ public class Expression implements Serializable
 	}
 	
 	/**
-	 * Recursively pretty-prints this {@code Expression}.
+	 * Pretty-prints this {@code Expression}, one node per line, with each
+	 * operator's sides indented below it.
 	 * 
 	 * @param tabs	How much to indent this section. Deeper sections
 	 * 				are indented more.
 	 * @return		A stringified {@code Expression}.
 	 * 
-	 * @see			#printTabs(int)
+	 * @see			expression.ExpressionWalker
 	 */
 	public String print(int tabs)
 	{
-		String result = printTabs(tabs);
+		final StringBuilder result = new StringBuilder();
 		
-		switch (this.type)
+		ExpressionWalker.walk(this, new ExpressionVisitor<RuntimeException>()
 		{
-			case NUMBER:
-				result += this.num;
-				break;
-			case VARIABLE:
-				result += this.variable;
-				break;
-			case COMPLEX:
-				result += this.operator + ":\n";
-				result += this.left.print(tabs + 1) + "\n";
-				result += this.right.print(tabs + 1) + "\n";
-				break;
-		}
-		
-		return result;
-	}
-	
-	/**
-	 * Prints the number of tabs inputed, repeatedly.
-	 * 
-	 * @param 	n	The number of tabs to print.
-	 * @return		A string containing {@code n} tabs.
-	 */
-	private static String printTabs(int n)
-	{
-		String t = "";
-		for (int i = 0; i < n; i++)
-			t += '\t';
+			@Override
+			public void leaf(Expression e, int level)
+			{
+				indent(level);
+				
+				if (e.type == ExpressionType.NUMBER)
+					result.append(e.num);
+				else
+					result.append(e.variable);
+				
+				return;
+			}
+			
+			@Override
+			public void enter(Expression e, int level)
+			{
+				indent(level);
+				result.append(e.operator).append(":\n");
+				return;
+			}
+			
+			@Override
+			public void between(Expression e, int level)
+			{
+				result.append('\n');
+				return;
+			}
+			
+			@Override
+			public void exit(Expression e, int level)
+			{
+				result.append('\n');
+				return;
+			}
+			
+			private void indent(int level)
+			{
+				for (int i = tabs + level; i > 0; i--)
+					result.append('\t');
+				
+				return;
+			}
+		});
 		
-		return t;
+		return result.toString();
 	}
 	
 	/**
@@ -272,21 +410,50 @@ public class Expression implements Serializable
 	}
 	
 	/**
-	 * @return The left side of a complex {@code Expression}.
+	 * @return The left side of a complex {@code Expression}. This is
+	 * shared, not copied.
 	 * Note: Check if this is indeed a complex {@code Expression}.
 	 */
 	public Expression getLeft()
 	{
-		return ExpressionCopier.copy(this.left);
+		return this.left;
 	}
 	
 	/**
-	 * @return The right side of a complex {@code Expression}.
+	 * @return The right side of a complex {@code Expression}. This is
+	 * shared, not copied.
 	 * Note: Check if this is indeed a complex {@code Expression}.
 	 */
 	public Expression getRight()
 	{
-		return ExpressionCopier.copy(this.right);
+		return this.right;
+	}
+	
+	/**
+	 * @return The number of nodes in this {@code Expression}'s tree,
+	 * counting shared subtrees once for each place they appear.
+	 */
+	public int getSize()
+	{
+		return this.size;
+	}
+	
+	/**
+	 * @return The number of levels in this {@code Expression}'s tree,
+	 * where a single number or variable has one.
+	 */
+	public int getDepth()
+	{
+		return this.depth;
+	}
+	
+	/**
+	 * @return True if there's a division anywhere in this
+	 * {@code Expression}'s tree, so that it may divide by zero.
+	 */
+	public boolean containsDivision()
+	{
+		return this.divides;
 	}
 	
 	/**
@@ -298,23 +465,103 @@ public class Expression implements Serializable
 		return this.operator;
 	}
 	
+	/**
+	 * Checks whether two {@code Expression}s have the same structure,
+	 * operators, variables and numbers. Thanks to interning, this is
+	 * almost always settled by a reference check or the cached hashes;
+	 * the full comparison only runs for numbers which are equal but not
+	 * identical, such as {@code 0.0} and {@code -0.0}.
+	 * 
+	 * @param other	The {@code Expression} to compare against.
+	 * @return		True if both {@code Expression}s are the same.
+	 * @see			#structuralHash()
+	 */
 	public boolean equivalent(Expression other)
 	{
-		if (this.type != other.getType())
-			return false;
+		if (this == other)
+			return true;
+		
+		// Pairs of subtrees still to compare
+		Expression[] pending = new Expression[16];
+		int top = 1;
+		
+		pending[0] = this;
+		pending[1] = other;
+		
+		while (top > 0)
+		{
+			final Expression b = pending[top--],
+							 a = pending[top--];
+			
+			if (a == b)
+				continue;
+			
+			if (a.hash != b.hash || a.type != b.type)
+				return false;
+			
+			switch (a.type)
+			{
+				case NUMBER:
+					if (a.num != b.num)
+						return false;
+					break;
+				case VARIABLE:
+					if (a.variable != b.variable)
+						return false;
+					break;
+				case COMPLEX:
+					if (a.operator != b.operator)
+						return false;
+					
+					if (top + 4 >= pending.length)
+						pending = Arrays.copyOf(pending, pending.length * 2);
+					
+					pending[++top] = a.right;
+					pending[++top] = b.right;
+					pending[++top] = a.left;
+					pending[++top] = b.left;
+					break;
+			}
+		}
 		
+		return true;
+	}
+	
+	/**
+	 * A hash of this {@code Expression}'s whole tree. Any two
+	 * {@code Expression}s which are {@link #equivalent(Expression)}
+	 * have the same structural hash. This is calculated once, when
+	 * the {@code Expression} is built.
+	 * 
+	 * @return	The hash.
+	 */
+	public int structuralHash()
+	{
+		return this.hash;
+	}
+	
+	/**
+	 * Calculates the structural hash from this node and its
+	 * children's cached hashes.
+	 * 
+	 * @return	The hash.
+	 */
+	private int hashTree()
+	{
 		switch (this.type)
 		{
 			case NUMBER:
-				return this.num == other.getNum();
+				// 0.0 and -0.0 are equivalent, so they must hash the same
+				return (this.num == 0)? 0 : Double.hashCode(this.num);
 			case VARIABLE:
-				return this.variable == other.getVariable();
+				return 31 + this.variable;
 			case COMPLEX:
-				return (this.operator == other.getOperator()	&&
-						this.left.equivalent(other.getLeft())	&&
-						this.right.equivalent(other.getRight()));
+				int hash = this.operator;
+				hash = hash * 31 + this.left.hash;
+				hash = hash * 31 + this.right.hash;
+				return hash;
 		}
 		
-		return false;
+		return 0;
 	}
 }
@@ -0,0 +1,750 @@
+package expression;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores many {@code Expression} trees in a handful of flat, primitive
+ * buffers, rather than as one object per node. Large populations then
+ * cost a few big allocations instead of millions of small ones, so the
+ * garbage collector has almost nothing to trace.<br><br>
+ *
+ * Each tree is laid out in postfix order, with every node taking one slot
+ * in three parallel buffers:<br><br>
+ *
+ * Operation:	{@code NUMBER}, {@code VARIABLE}, or the operator itself.<br>
+ * Number:		The node's number. For a variable, this holds its letter.<br>
+ * Start:		The slot of the first node in this node's subtree.<br><br>
+ *
+ * A complex node's right child is always the slot just before it, and its
+ * left child the slot just before the right child's subtree starts. So a
+ * subtree is always one contiguous run of slots, which can be copied or
+ * replaced in bulk.<br><br>
+ *
+ * The buffers can be kept off the heap entirely, in direct memory.
+ * Trees are only ever appended, so a mutated tree is written as a new
+ * one; to reclaim the space, copy the trees worth keeping into another
+ * arena and {@link #clear()} this one.<br><br>
+ *
+ * Note: An arena is not safe to modify from several threads at once,
+ * though evaluating from several threads is fine.
+ *
+ * @see expression.Expression
+ * @see expression.ExpressionProgram
+ */
+public class ExpressionArena
+{
+	/**
+	 * Writes the nodes of one subtree into an arena, in postfix order,
+	 * through {@link ExpressionArena#pushNumber(double)},
+	 * {@link ExpressionArena#pushVariable(char)} and
+	 * {@link ExpressionArena#pushOperator(char)}. This way a new subtree
+	 * can be generated right into the arena, without building it as an
+	 * {@code Expression} first.
+	 */
+	public interface Subtree
+	{
+		/**
+		 * @param arena	The arena to write into.
+		 */
+		void write(ExpressionArena arena);
+	}
+
+	private static final byte	NUMBER		= 0,
+								VARIABLE	= 1;
+
+	// Stacks for evaluation, reused between calls
+	private static final ThreadLocal<double[]> scalarStack =
+			ThreadLocal.withInitial(() -> new double[16]);
+	private static final ThreadLocal<double[][]> registers =
+			ThreadLocal.withInitial(() -> new double[0][]);
+
+	private final boolean offHeap;
+
+	private ByteBuffer ops;
+	private DoubleBuffer nums;
+	private IntBuffer starts;
+	private int nodeCount = 0;
+
+	// Per tree: its first slot, its root (last) slot, and the deepest its
+	// evaluation stack gets
+	private int[] treeFirst = new int[16],
+				  treeRoot = new int[16],
+				  treeStack = new int[16];
+	private int treeCount = 0;
+
+	/**
+	 * @param capacity	How many nodes to make room for up front. The
+	 * 					arena grows as needed either way.
+	 * @param offHeap	Whether to keep the nodes in direct memory, outside
+	 * 					of the garbage-collected heap.
+	 */
+	public ExpressionArena(int capacity, boolean offHeap)
+	{
+		this.offHeap = offHeap;
+		this.allocate(Math.max(16, capacity));
+
+		return;
+	}
+
+	/**
+	 * Copies an {@code Expression} into the arena.
+	 *
+	 * @param e	The {@code Expression} to add.
+	 * @return	The new tree's index.
+	 */
+	public int add(Expression e)
+	{
+		final int first = this.nodeCount;
+		this.emit(e);
+
+		return this.addTree(first, this.nodeCount - 1);
+	}
+
+	/**
+	 * Writes a new tree straight into the arena, without building it as
+	 * an {@code Expression} first.
+	 *
+	 * @param tree	Writes the tree's nodes.
+	 * @return		The new tree's index.
+	 */
+	public int add(Subtree tree)
+	{
+		final int first = this.nodeCount;
+		tree.write(this);
+
+		if (this.nodeCount == first)
+			throw new IllegalStateException("No nodes were written");
+
+		return this.addTree(first, this.nodeCount - 1);
+	}
+
+	/**
+	 * Copies a tree from another arena (or this one) into this arena.
+	 *
+	 * @param from	The arena holding the tree.
+	 * @param tree	The tree's index in that arena.
+	 * @return		The new tree's index in this arena.
+	 */
+	public int copy(ExpressionArena from, int tree)
+	{
+		final int first = from.treeFirst[tree],
+				  count = from.treeRoot[tree] - first + 1,
+				  base = this.nodeCount;
+
+		this.ensureNodes(count);
+
+		for (int i = 0; i < count; i++)
+			this.putNode(from.ops.get(first + i),
+					from.nums.get(first + i),
+					from.starts.get(first + i) - first + base);
+
+		final int copied = this.addTree(base, this.nodeCount - 1);
+		this.treeStack[copied] = from.treeStack[tree];
+
+		return copied;
+	}
+
+	/**
+	 * Writes a copy of a tree in which one subtree has been swapped out.
+	 * The original tree is left as it was.
+	 *
+	 * @param tree			The tree to copy.
+	 * @param node			The slot of the subtree to swap out, which must
+	 * 						belong to {@code tree}.
+	 * @param replacement	What to swap in.
+	 * @return				The new tree's index.
+	 */
+	public int replace(int tree, int node, Expression replacement)
+	{
+		return this.replace(tree, node, (arena) -> arena.emit(replacement));
+	}
+
+	/**
+	 * Writes a copy of a tree in which one subtree has been swapped out
+	 * for one written straight into the arena. The original tree is left
+	 * as it was.
+	 *
+	 * @param tree			The tree to copy.
+	 * @param node			The slot of the subtree to swap out, which must
+	 * 						belong to {@code tree}.
+	 * @param replacement	Writes what to swap in.
+	 * @return				The new tree's index.
+	 */
+	public int replace(int tree, int node, Subtree replacement)
+	{
+		final int first = this.treeFirst[tree],
+				  root = this.treeRoot[tree],
+				  cutStart = this.starts.get(node),
+				  base = this.nodeCount;
+
+		this.ensureNodes(cutStart - first);
+		for (int i = first; i < cutStart; i++)
+			this.putNode(this.ops.get(i), this.nums.get(i), this.starts.get(i) - first + base);
+
+		final int replacementStart = this.nodeCount;
+		replacement.write(this);
+
+		if (this.nodeCount == replacementStart)
+			throw new IllegalStateException("No nodes were written");
+
+		// Slots after the cut move by however much the subtree grew
+		final int shift = (this.nodeCount - replacementStart) - (node - cutStart + 1);
+
+		this.ensureNodes(root - node);
+		for (int i = node + 1; i <= root; i++)
+		{
+			final int start = this.starts.get(i);
+
+			// Ancestors of the cut start before it, and keep their start
+			this.putNode(this.ops.get(i), this.nums.get(i),
+					start - first + base + ((start <= cutStart)? 0 : shift));
+		}
+
+		return this.addTree(base, this.nodeCount - 1);
+	}
+
+	/**
+	 * Appends a number node. Only meant for a {@code Subtree} writing
+	 * its nodes.
+	 *
+	 * @param n	The number.
+	 */
+	public void pushNumber(double n)
+	{
+		this.ensureNodes(1);
+		this.putNode(NUMBER, n, this.nodeCount);
+
+		return;
+	}
+
+	/**
+	 * Appends a variable node. Only meant for a {@code Subtree} writing
+	 * its nodes.
+	 *
+	 * @param v	The variable's letter.
+	 */
+	public void pushVariable(char v)
+	{
+		this.ensureNodes(1);
+		this.putNode(VARIABLE, v, this.nodeCount);
+
+		return;
+	}
+
+	/**
+	 * Appends an operator node, whose children are the two subtrees just
+	 * before it. Only meant for a {@code Subtree} writing its nodes.
+	 *
+	 * @param operator	The operator.
+	 */
+	public void pushOperator(char operator)
+	{
+		final int rightStart = (this.nodeCount > 0)? this.starts.get(this.nodeCount - 1) : 0;
+		if (rightStart == 0)
+			throw new IllegalStateException("An operator needs two subtrees before it");
+
+		final int leftRoot = rightStart - 1;
+
+		this.ensureNodes(1);
+		this.putNode((byte) operator, 0, this.starts.get(leftRoot));
+
+		return;
+	}
+
+	/**
+	 * Overwrites a number node in place. Only meant for trees which were
+	 * just copied, and so aren't shared with anything yet.
+	 *
+	 * @param node	The slot of the number node.
+	 * @param n		The new number.
+	 */
+	public void setNumber(int node, double n)
+	{
+		if (this.ops.get(node) != NUMBER)
+			throw new IllegalArgumentException("Slot " + node + " is not a number");
+
+		this.nums.put(node, n);
+		return;
+	}
+
+	/**
+	 * Rebuilds a tree as an {@code Expression}.
+	 *
+	 * @param tree	The tree's index.
+	 * @return		The equivalent {@code Expression}.
+	 */
+	public Expression toExpression(int tree)
+	{
+		final Expression[] stack = new Expression[this.treeStack[tree]];
+		int sp = 0;
+
+		for (int i = this.treeFirst[tree]; i <= this.treeRoot[tree]; i++)
+		{
+			final byte op = this.ops.get(i);
+
+			if (op == NUMBER)
+				stack[sp++] = Expression.of(this.nums.get(i));
+			else if (op == VARIABLE)
+				stack[sp++] = Expression.of((char) this.nums.get(i));
+			else
+			{
+				sp--;
+				stack[sp - 1] = Expression.of(stack[sp - 1], (char) op, stack[sp]);
+			}
+		}
+
+		return stack[0];
+	}
+
+	/**
+	 * Pushes an input through a tree.
+	 *
+	 * @param tree	The tree's index.
+	 * @param input	The real number to pass through the tree.
+	 * @return		The calculated number.
+	 * @see			expression.Expression#collapse(double)
+	 */
+	public double evaluate(int tree, double input) throws DivideByZeroError
+	{
+		double[] stack = scalarStack.get();
+		if (stack.length < this.treeStack[tree])
+		{
+			stack = new double[this.treeStack[tree]];
+			scalarStack.set(stack);
+		}
+
+		int sp = 0;
+
+		for (int i = this.treeFirst[tree]; i <= this.treeRoot[tree]; i++)
+		{
+			final byte op = this.ops.get(i);
+
+			switch (op)
+			{
+				case NUMBER:
+					stack[sp++] = this.nums.get(i);
+					break;
+				case VARIABLE:
+					stack[sp++] = input;
+					break;
+				case '+':
+					sp--;
+					stack[sp - 1] = stack[sp - 1] + stack[sp];
+					break;
+				case '-':
+					sp--;
+					stack[sp - 1] = stack[sp - 1] - stack[sp];
+					break;
+				case '*':
+					sp--;
+					stack[sp - 1] = stack[sp - 1] * stack[sp];
+					break;
+				case '/':
+					sp--;
+					if (stack[sp] == 0)
+						throw new DivideByZeroError();
+					stack[sp - 1] = stack[sp - 1] / stack[sp];
+					break;
+				default:
+					// Like makeFunction, keep the left side
+					sp--;
+					break;
+			}
+		}
+
+		return stack[0];
+	}
+
+	/**
+	 * Pushes a range of inputs through a tree, exactly like
+	 * {@link expression.ExpressionProgram#evaluate(double[], int, int, double[], boolean[])}:
+	 * nothing is thrown, and any input which divides by zero is marked in
+	 * {@code faults} with its result set to {@code NaN}.
+	 *
+	 * @param tree		The tree's index.
+	 * @param xs		The inputs.
+	 * @param from		The first input to evaluate.
+	 * @param to		One past the last input to evaluate.
+	 * @param out		Receives the result for each input.
+	 * @param faults	Receives whether each input divided by zero.
+	 * @return			How many of the evaluated inputs divided by zero.
+	 */
+	public int evaluate(int tree, double[] xs, int from, int to, double[] out, boolean[] faults)
+	{
+		final double[][] stack = columns(this.treeStack[tree], to);
+
+		// The bottom of the stack is where the result ends up
+		stack[0] = out;
+		Arrays.fill(faults, from, to, false);
+
+		int sp = 0;
+
+		for (int node = this.treeFirst[tree]; node <= this.treeRoot[tree]; node++)
+		{
+			final byte op = this.ops.get(node);
+
+			if (op == NUMBER)
+			{
+				Arrays.fill(stack[sp++], from, to, this.nums.get(node));
+				continue;
+			}
+			else if (op == VARIABLE)
+			{
+				System.arraycopy(xs, from, stack[sp++], from, to - from);
+				continue;
+			}
+
+			sp--;
+			final double[] a = stack[sp - 1], b = stack[sp];
+
+			switch (op)
+			{
+				case '+':
+					for (int i = from; i < to; i++)
+						a[i] = a[i] + b[i];
+					break;
+				case '-':
+					for (int i = from; i < to; i++)
+						a[i] = a[i] - b[i];
+					break;
+				case '*':
+					for (int i = from; i < to; i++)
+						a[i] = a[i] * b[i];
+					break;
+				case '/':
+					for (int i = from; i < to; i++)
+						faults[i] |= (b[i] == 0);
+					for (int i = from; i < to; i++)
+						a[i] = a[i] / b[i];
+					break;
+				default:
+					break;
+			}
+		}
+
+		int count = 0;
+		for (int i = from; i < to; i++)
+		{
+			if (faults[i])
+			{
+				out[i] = Double.NaN;
+				count++;
+			}
+		}
+
+		stack[0] = null;
+		return count;
+	}
+
+	/**
+	 * Forgets every tree, keeping the buffers for reuse.
+	 */
+	public void clear()
+	{
+		this.nodeCount = 0;
+		this.treeCount = 0;
+
+		return;
+	}
+
+	/**
+	 * @return	How many trees the arena holds.
+	 */
+	public int size()
+	{
+		return this.treeCount;
+	}
+
+	/**
+	 * @return	How many nodes the arena holds, across every tree.
+	 */
+	public int nodeCount()
+	{
+		return this.nodeCount;
+	}
+
+	/**
+	 * @return	True if the nodes are kept in direct memory.
+	 */
+	public boolean isOffHeap()
+	{
+		return this.offHeap;
+	}
+
+	/**
+	 * @param tree	The tree's index.
+	 * @return		The slot of the tree's root node.
+	 */
+	public int getRoot(int tree)
+	{
+		return this.treeRoot[tree];
+	}
+
+	/**
+	 * @param tree	The tree's index.
+	 * @return		How many nodes the tree has.
+	 */
+	public int getNodeCount(int tree)
+	{
+		return this.treeRoot[tree] - this.treeFirst[tree] + 1;
+	}
+
+	/**
+	 * @param tree	The tree's index.
+	 * @return		How many levels the tree has, counting the root.
+	 */
+	public int getDepth(int tree)
+	{
+		final int[] depths = new int[this.treeStack[tree]];
+		int sp = 0;
+
+		for (int i = this.treeFirst[tree]; i <= this.treeRoot[tree]; i++)
+		{
+			final byte op = this.ops.get(i);
+
+			if (op == NUMBER || op == VARIABLE)
+			{
+				depths[sp++] = 1;
+			}
+			else
+			{
+				sp--;
+				depths[sp - 1] = 1 + Math.max(depths[sp - 1], depths[sp]);
+			}
+		}
+
+		return depths[0];
+	}
+
+	/**
+	 * @param node	A node's slot.
+	 * @return		How many nodes the subtree rooted there has.
+	 */
+	public int getSubtreeSize(int node)
+	{
+		return node - this.starts.get(node) + 1;
+	}
+
+	/**
+	 * @param node	A node's slot.
+	 * @return		The type of the node.
+	 */
+	public ExpressionType getType(int node)
+	{
+		switch (this.ops.get(node))
+		{
+			case NUMBER:
+				return ExpressionType.NUMBER;
+			case VARIABLE:
+				return ExpressionType.VARIABLE;
+			default:
+				return ExpressionType.COMPLEX;
+		}
+	}
+
+	/**
+	 * @param node	A number node's slot.
+	 * @return		Its number.
+	 */
+	public double getNum(int node)
+	{
+		return this.nums.get(node);
+	}
+
+	/**
+	 * @param node	A complex node's slot.
+	 * @return		Its operator.
+	 */
+	public char getOperator(int node)
+	{
+		return (char) this.ops.get(node);
+	}
+
+	/**
+	 * @param node	A complex node's slot.
+	 * @return		The slot of its left child.
+	 */
+	public int getLeft(int node)
+	{
+		return this.starts.get(node - 1) - 1;
+	}
+
+	/**
+	 * @param node	A complex node's slot.
+	 * @return		The slot of its right child.
+	 */
+	public int getRight(int node)
+	{
+		return node - 1;
+	}
+
+	/**
+	 * Appends the nodes of an {@code Expression} in postfix order, without
+	 * recursing, so that even very deep trees can be added.
+	 *
+	 * @param e	The {@code Expression} to append.
+	 */
+	private void emit(Expression e)
+	{
+		Expression[] pending = new Expression[16];
+		byte[] visits = new byte[16];
+		int top = 0;
+
+		pending[0] = e;
+		visits[0] = 0;
+
+		while (top >= 0)
+		{
+			final Expression next = pending[top];
+
+			if (next.getType() != ExpressionType.COMPLEX)
+			{
+				if (next.getType() == ExpressionType.NUMBER)
+					this.pushNumber(next.getNum());
+				else
+					this.pushVariable(next.getVariable());
+
+				top--;
+				continue;
+			}
+
+			// Children are visited by state, not by identity, as
+			// hash-consing means both can be the very same object
+			if (visits[top] == 2)
+			{
+				this.pushOperator(next.getOperator());
+
+				top--;
+				continue;
+			}
+
+			final Expression child = (visits[top] == 0)? next.getLeft() : next.getRight();
+			visits[top]++;
+
+			if (++top == pending.length)
+			{
+				pending = Arrays.copyOf(pending, top * 2);
+				visits = Arrays.copyOf(visits, top * 2);
+			}
+
+			pending[top] = child;
+			visits[top] = 0;
+		}
+
+		return;
+	}
+
+	/**
+	 * Registers a tree, working out how deep its evaluation stack gets.
+	 *
+	 * @param first	The tree's first slot.
+	 * @param root	The tree's root slot.
+	 * @return		The tree's index.
+	 */
+	private int addTree(int first, int root)
+	{
+		if (this.treeCount == this.treeFirst.length)
+		{
+			final int size = this.treeCount * 2;
+			this.treeFirst = Arrays.copyOf(this.treeFirst, size);
+			this.treeRoot = Arrays.copyOf(this.treeRoot, size);
+			this.treeStack = Arrays.copyOf(this.treeStack, size);
+		}
+
+		int depth = 0,
+			deepest = 0;
+
+		for (int i = first; i <= root; i++)
+		{
+			final byte op = this.ops.get(i);
+			depth += (op == NUMBER || op == VARIABLE)? 1 : -1;
+			deepest = Math.max(deepest, depth);
+		}
+
+		this.treeFirst[this.treeCount] = first;
+		this.treeRoot[this.treeCount] = root;
+		this.treeStack[this.treeCount] = deepest;
+
+		return this.treeCount++;
+	}
+
+	private void putNode(byte op, double num, int start)
+	{
+		this.ops.put(this.nodeCount, op);
+		this.nums.put(this.nodeCount, num);
+		this.starts.put(this.nodeCount, start);
+		this.nodeCount++;
+
+		return;
+	}
+
+	/**
+	 * Makes room for at least {@code more} nodes past the current ones.
+	 */
+	private void ensureNodes(int more)
+	{
+		final int needed = this.nodeCount + more;
+		if (needed <= this.ops.capacity())
+			return;
+
+		final ByteBuffer oldOps = this.ops;
+		final DoubleBuffer oldNums = this.nums;
+		final IntBuffer oldStarts = this.starts;
+
+		this.allocate(Math.max(needed, oldOps.capacity() * 2));
+		this.ops.put(0, oldOps, 0, this.nodeCount);
+		this.nums.put(0, oldNums, 0, this.nodeCount);
+		this.starts.put(0, oldStarts, 0, this.nodeCount);
+
+		return;
+	}
+
+	private void allocate(int capacity)
+	{
+		if (this.offHeap)
+		{
+			this.ops = ByteBuffer.allocateDirect(capacity);
+			this.nums = ByteBuffer.allocateDirect(capacity * Double.BYTES)
+					.order(ByteOrder.nativeOrder())
+					.asDoubleBuffer();
+			this.starts = ByteBuffer.allocateDirect(capacity * Integer.BYTES)
+					.order(ByteOrder.nativeOrder())
+					.asIntBuffer();
+		}
+		else
+		{
+			this.ops = ByteBuffer.allocate(capacity);
+			this.nums = DoubleBuffer.allocate(capacity);
+			this.starts = IntBuffer.allocate(capacity);
+		}
+
+		return;
+	}
+
+	/**
+	 * Fetches this thread's column registers, growing them as needed.
+	 * Slot 0 is left for the caller's output array.
+	 */
+	private static double[][] columns(int count, int length)
+	{
+		double[][] columns = registers.get();
+
+		if (columns.length < count)
+		{
+			columns = Arrays.copyOf(columns, count);
+			registers.set(columns);
+		}
+
+		for (int i = 1; i < count; i++)
+		{
+			if (columns[i] == null || columns[i].length < length)
+				columns[i] = new double[length];
+		}
+
+		return columns;
+	}
+}
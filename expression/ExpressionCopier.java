@@ -2,6 +2,11 @@ package expression;
 
 /**
  * Tools for copying {@code Expression}s, especially deep copies.
+ * <br><br>
+ * 
+ * Note: {@code Expression}s are immutable and hash-consed, so a deep copy
+ * would just be rebuilt into the very same {@code Expression}. Copying is
+ * therefore free, and only kept so callers don't need to care.
  * 
  * @see	expression.Expression
  */
@@ -11,23 +16,12 @@ public class ExpressionCopier
 	 * Creates a deep copy of a given {@code Expression}.
 	 * 
 	 * @param e	The {@code Expression} to copy.
-	 * @return	A deep copy of the {@code Expression}.
+	 * @return	The {@code Expression} itself, which is indistinguishable
+	 * 			from a deep copy.
 	 * @see		expression.Expression
 	 */
 	public static Expression copy(Expression e)
 	{
-		switch (e.getType())
-		{
-			case NUMBER:
-				return new Expression(e.getNum());
-			case VARIABLE:
-				return new Expression(e.getVariable());
-			default:
-				break;
-		}
-		
-		return new Expression(e.getLeft(),
-				e.getOperator(),
-				e.getRight());
+		return e;
 	}
 }
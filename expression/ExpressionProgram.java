@@ -0,0 +1,767 @@
+package expression;
+
+import java.util.Arrays;
+
+/**
+ * A flattened, postfix form of an {@code Expression}. Compiling an
+ * {@code Expression} once and then running the resulting program avoids
+ * walking the tree (and building a fresh {@code BinaryFunction} for every
+ * complex node) on each input.<br><br>
+ *
+ * The program is a list of opcodes and a pool of constants. Number
+ * opcodes consume the constant pool in order, so no operand indices need
+ * to be stored. Evaluation is a single loop over the opcodes with a
+ * primitive operand stack.<br><br>
+ *
+ * Results are identical to {@link expression.Expression#collapse(double)},
+ * as the same operations are performed in the same order.<br><br>
+ *
+ * A program can also be run over a whole vector of inputs at once with
+ * {@link #evaluate(double[], double[])}. Each instruction is then applied
+ * to every input before moving on to the next, which turns the per-node
+ * dispatch into simple loops over primitive arrays. The
+ * {@link #evaluate(double[], double[], boolean[])} form of this never
+ * throws, and instead marks which inputs divided by zero.<br><br>
+ *
+ * Finally,
+ * {@link #differentiate(double[], double[], double[], boolean[], double[])}
+ * also runs the program in reverse, to find how each result would change
+ * with each of its constants, so they can be tuned directly rather than
+ * by mutation, and {@link #bound(double, double, double[])} works out a
+ * range which every result must fall in, without evaluating any input.
+ *
+ * @see expression.Expression#collapse(double)
+ */
+public class ExpressionProgram
+{
+	private static final byte	NUMBER		= 0,
+								VARIABLE	= 1,
+								ADD			= 2,
+								SUBTRACT	= 3,
+								MULTIPLY	= 4,
+								DIVIDE		= 5,
+								KEEP_LEFT	= 6;
+
+	// Column registers for vector evaluation, reused between calls
+	private static final ThreadLocal<double[][]> registers =
+			ThreadLocal.withInitial(() -> new double[0][]);
+
+	private final byte[] ops;
+	private final double[] constants;
+	private final int maxStack;
+
+	private ExpressionProgram(byte[] ops, double[] constants, int maxStack)
+	{
+		this.ops = ops;
+		this.constants = constants;
+		this.maxStack = maxStack;
+
+		return;
+	}
+
+	/**
+	 * Lowers an {@code Expression} into a postfix program.
+	 *
+	 * @param e	The {@code Expression} to compile.
+	 * @return	The compiled program.
+	 */
+	public static ExpressionProgram compile(Expression e)
+	{
+		final Builder b = new Builder();
+		ExpressionWalker.walk(e, b);
+
+		return new ExpressionProgram(
+				Arrays.copyOf(b.ops, b.opCount),
+				Arrays.copyOf(b.constants, b.constantCount),
+				b.maxStack);
+	}
+
+	/**
+	 * Pushes an input through the compiled {@code Expression}.
+	 *
+	 * @param input	The real number to pass through the program.
+	 * @return		The calculated number.
+	 * @see			expression.Expression#collapse(double)
+	 */
+	public double evaluate(double input) throws DivideByZeroError
+	{
+		final byte[] ops = this.ops;
+		final double[] constants = this.constants;
+		final double[] stack = new double[this.maxStack];
+
+		int sp = 0,
+			cp = 0;
+
+		for (int pc = 0; pc < ops.length; pc++)
+		{
+			switch (ops[pc])
+			{
+				case NUMBER:
+					stack[sp++] = constants[cp++];
+					break;
+				case VARIABLE:
+					stack[sp++] = input;
+					break;
+				case ADD:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] + stack[sp];
+					break;
+				case SUBTRACT:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] - stack[sp];
+					break;
+				case MULTIPLY:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] * stack[sp];
+					break;
+				case DIVIDE:
+					sp--;
+					if (stack[sp] == 0)
+						throw new DivideByZeroError();
+					stack[sp - 1] = stack[sp - 1] / stack[sp];
+					break;
+				case KEEP_LEFT:
+					sp--;
+					break;
+			}
+		}
+
+		return stack[0];
+	}
+
+	/**
+	 * Compiles an {@code Expression} and pushes a whole vector of inputs
+	 * through it.
+	 *
+	 * @param e		The {@code Expression} to evaluate.
+	 * @param xs	The inputs.
+	 * @param out	Receives the result for each input. Must be at least
+	 * 				as long as {@code xs}.
+	 * @see			#evaluate(double[], double[])
+	 */
+	public static void evaluate(Expression e, double[] xs, double[] out) throws DivideByZeroError
+	{
+		compile(e).evaluate(xs, out);
+		return;
+	}
+
+	/**
+	 * Pushes a whole vector of inputs through the program. Each instruction
+	 * is applied across all of the inputs before the next one runs, using
+	 * one column per stack slot.<br><br>
+	 *
+	 * If any input divides by zero, the whole call fails. Callers which
+	 * need to know which inputs failed should fall back to
+	 * {@link #evaluate(double)}.
+	 *
+	 * @param xs	The inputs.
+	 * @param out	Receives the result for each input. Must be at least
+	 * 				as long as {@code xs}.
+	 */
+	public void evaluate(double[] xs, double[] out) throws DivideByZeroError
+	{
+		final byte[] ops = this.ops;
+		final double[] constants = this.constants;
+		final double[][] stack = columns(this.maxStack, xs.length);
+		final int n = xs.length;
+
+		// The bottom of the stack is where the result ends up
+		stack[0] = out;
+
+		int sp = 0,
+			cp = 0;
+
+		for (int pc = 0; pc < ops.length; pc++)
+		{
+			switch (ops[pc])
+			{
+				case NUMBER:
+					Arrays.fill(stack[sp++], 0, n, constants[cp++]);
+					break;
+				case VARIABLE:
+					System.arraycopy(xs, 0, stack[sp++], 0, n);
+					break;
+				case ADD:
+				{
+					sp--;
+					final double[] a = stack[sp - 1], b = stack[sp];
+					for (int i = 0; i < n; i++)
+						a[i] = a[i] + b[i];
+					break;
+				}
+				case SUBTRACT:
+				{
+					sp--;
+					final double[] a = stack[sp - 1], b = stack[sp];
+					for (int i = 0; i < n; i++)
+						a[i] = a[i] - b[i];
+					break;
+				}
+				case MULTIPLY:
+				{
+					sp--;
+					final double[] a = stack[sp - 1], b = stack[sp];
+					for (int i = 0; i < n; i++)
+						a[i] = a[i] * b[i];
+					break;
+				}
+				case DIVIDE:
+				{
+					sp--;
+					final double[] a = stack[sp - 1], b = stack[sp];
+					for (int i = 0; i < n; i++)
+						if (b[i] == 0)
+							throw new DivideByZeroError();
+					for (int i = 0; i < n; i++)
+						a[i] = a[i] / b[i];
+					break;
+				}
+				case KEEP_LEFT:
+					sp--;
+					break;
+			}
+		}
+
+		stack[0] = null;
+		return;
+	}
+
+	/**
+	 * Pushes a whole vector of inputs through the program, like
+	 * {@link #evaluate(double[], double[])}, but without ever throwing.
+	 * Any input which divides by zero, at any point, is marked in
+	 * {@code faults} and its result is set to {@code NaN}.<br><br>
+	 *
+	 * This is meant for hot loops, where building a
+	 * {@code DivideByZeroError} for every bad input would cost more
+	 * than the evaluation itself.
+	 *
+	 * @param xs		The inputs.
+	 * @param out		Receives the result for each input. Must be at least
+	 * 					as long as {@code xs}.
+	 * @param faults	Receives whether each input divided by zero. Must
+	 * 					be at least as long as {@code xs}.
+	 * @return			How many inputs divided by zero.
+	 */
+	public int evaluate(double[] xs, double[] out, boolean[] faults)
+	{
+		return this.evaluate(xs, 0, xs.length, out, faults);
+	}
+
+	/**
+	 * Like {@link #evaluate(double[], double[], boolean[])}, but only for
+	 * the inputs from index {@code from} up to (but not including)
+	 * {@code to}. Results and faults are written at the same indices as
+	 * their inputs. Useful for working through a large vector of inputs
+	 * a block at a time.
+	 *
+	 * @param xs		The inputs.
+	 * @param from		The first input to evaluate.
+	 * @param to		One past the last input to evaluate.
+	 * @param out		Receives the result for each input.
+	 * @param faults	Receives whether each input divided by zero.
+	 * @return			How many of the evaluated inputs divided by zero.
+	 */
+	public int evaluate(double[] xs, int from, int to, double[] out, boolean[] faults)
+	{
+		final byte[] ops = this.ops;
+		final double[] constants = this.constants;
+		final double[][] stack = columns(this.maxStack, to);
+
+		// The bottom of the stack is where the result ends up
+		stack[0] = out;
+		Arrays.fill(faults, from, to, false);
+
+		int sp = 0,
+			cp = 0;
+
+		for (int pc = 0; pc < ops.length; pc++)
+		{
+			switch (ops[pc])
+			{
+				case NUMBER:
+					Arrays.fill(stack[sp++], from, to, constants[cp++]);
+					break;
+				case VARIABLE:
+					System.arraycopy(xs, from, stack[sp++], from, to - from);
+					break;
+				case ADD:
+				{
+					sp--;
+					final double[] a = stack[sp - 1], b = stack[sp];
+					for (int i = from; i < to; i++)
+						a[i] = a[i] + b[i];
+					break;
+				}
+				case SUBTRACT:
+				{
+					sp--;
+					final double[] a = stack[sp - 1], b = stack[sp];
+					for (int i = from; i < to; i++)
+						a[i] = a[i] - b[i];
+					break;
+				}
+				case MULTIPLY:
+				{
+					sp--;
+					final double[] a = stack[sp - 1], b = stack[sp];
+					for (int i = from; i < to; i++)
+						a[i] = a[i] * b[i];
+					break;
+				}
+				case DIVIDE:
+				{
+					// Divide every lane regardless, and note the bad ones
+					// separately, so neither loop needs to branch
+					sp--;
+					final double[] a = stack[sp - 1], b = stack[sp];
+					for (int i = from; i < to; i++)
+						faults[i] |= (b[i] == 0);
+					for (int i = from; i < to; i++)
+						a[i] = a[i] / b[i];
+					break;
+				}
+				case KEEP_LEFT:
+					sp--;
+					break;
+			}
+		}
+
+		int count = 0;
+		for (int i = from; i < to; i++)
+		{
+			if (faults[i])
+			{
+				out[i] = Double.NaN;
+				count++;
+			}
+		}
+
+		stack[0] = null;
+		return count;
+	}
+
+	/**
+	 * Pushes a whole vector of inputs through the program, with the given
+	 * constants in place of its own, and works out how each result
+	 * changes with each constant. This is reverse-mode automatic
+	 * differentiation: for each input, the program is run forwards,
+	 * keeping every instruction's result, then backwards, passing each
+	 * result's sensitivity down to its operands, until it reaches the
+	 * constants which fed it.<br><br>
+	 *
+	 * Results and faults are as {@link #evaluate(double[], double[], boolean[])}
+	 * gives them, so the constants can be tuned without compiling the
+	 * program again. Inputs which divide by zero have no derivatives.
+	 *
+	 * @param xs		The inputs.
+	 * @param constants	The constants to run with, in the order of
+	 * 					{@link #getConstants()}.
+	 * @param out		Receives the result for each input. Must be at least
+	 * 					as long as {@code xs}.
+	 * @param faults	Receives whether each input divided by zero. Must
+	 * 					be at least as long as {@code xs}.
+	 * @param jacobian	Receives the derivative of the result for input
+	 * 					{@code i} with respect to constant {@code c}, at
+	 * 					{@code i * constants.length + c}, or null to only
+	 * 					work out the results.
+	 * @return			How many inputs divided by zero.
+	 */
+	public int differentiate(double[] xs, double[] constants, double[] out, boolean[] faults, double[] jacobian)
+	{
+		final byte[] ops = this.ops;
+		final int length = ops.length,
+				  k = constants.length;
+
+		// Where each instruction's operands were calculated, and which
+		// constant each NUMBER reads
+		final int[] lefts = new int[length],
+					rights = new int[length],
+					slots = new int[this.maxStack];
+
+		int sp = 0,
+			cp = 0;
+
+		for (int pc = 0; pc < length; pc++)
+		{
+			switch (ops[pc])
+			{
+				case NUMBER:
+					lefts[pc] = cp++;
+					slots[sp++] = pc;
+					break;
+				case VARIABLE:
+					slots[sp++] = pc;
+					break;
+				default:
+					sp--;
+					lefts[pc] = slots[sp - 1];
+					rights[pc] = slots[sp];
+					slots[sp - 1] = pc;
+					break;
+			}
+		}
+
+		final double[] values = new double[length],
+					   adjoints = (jacobian == null)? null : new double[length];
+		int count = 0;
+
+		sample:
+		for (int i = 0; i < xs.length; i++)
+		{
+			for (int pc = 0; pc < length; pc++)
+			{
+				final int l = lefts[pc],
+						  r = rights[pc];
+
+				switch (ops[pc])
+				{
+					case NUMBER:
+						values[pc] = constants[l];
+						break;
+					case VARIABLE:
+						values[pc] = xs[i];
+						break;
+					case ADD:
+						values[pc] = values[l] + values[r];
+						break;
+					case SUBTRACT:
+						values[pc] = values[l] - values[r];
+						break;
+					case MULTIPLY:
+						values[pc] = values[l] * values[r];
+						break;
+					case DIVIDE:
+						if (values[r] == 0)
+						{
+							out[i] = Double.NaN;
+							faults[i] = true;
+							count++;
+
+							if (jacobian != null)
+								Arrays.fill(jacobian, i * k, (i + 1) * k, 0);
+
+							continue sample;
+						}
+						values[pc] = values[l] / values[r];
+						break;
+					case KEEP_LEFT:
+						values[pc] = values[l];
+						break;
+				}
+			}
+
+			out[i] = values[length - 1];
+			faults[i] = false;
+
+			if (jacobian == null)
+				continue;
+
+			final int row = i * k;
+			Arrays.fill(jacobian, row, row + k, 0);
+			Arrays.fill(adjoints, 0);
+			adjoints[length - 1] = 1;
+
+			for (int pc = length - 1; pc >= 0; pc--)
+			{
+				final double adjoint = adjoints[pc];
+
+				if (adjoint == 0)
+					continue;
+
+				final int l = lefts[pc],
+						  r = rights[pc];
+
+				switch (ops[pc])
+				{
+					case NUMBER:
+						jacobian[row + l] += adjoint;
+						break;
+					case ADD:
+						adjoints[l] += adjoint;
+						adjoints[r] += adjoint;
+						break;
+					case SUBTRACT:
+						adjoints[l] += adjoint;
+						adjoints[r] -= adjoint;
+						break;
+					case MULTIPLY:
+						adjoints[l] += adjoint * values[r];
+						adjoints[r] += adjoint * values[l];
+						break;
+					case DIVIDE:
+						adjoints[l] += adjoint / values[r];
+						adjoints[r] -= adjoint * values[pc] / values[r];
+						break;
+					case KEEP_LEFT:
+						adjoints[l] += adjoint;
+						break;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Works out a range which every result of the program must fall in,
+	 * for any input from {@code min} to {@code max}, by interval
+	 * arithmetic: each instruction is applied to the ranges its operands
+	 * could take, rather than to single values, and rounded outwards so
+	 * that the range stays certain despite rounding. This costs about as
+	 * much as evaluating a single input.<br><br>
+	 *
+	 * If any divisor's range includes zero, the program may divide by
+	 * zero somewhere in the domain, or close enough to it that results
+	 * could be as large as anything. No range is given then.
+	 *
+	 * @param min	The lowest input.
+	 * @param max	The highest input.
+	 * @param range	Receives the lowest and highest possible results, in
+	 * 				that order.
+	 * @return		False if a divisor's range includes zero, in which case
+	 * 				{@code range} is left as it was.
+	 */
+	public boolean bound(double min, double max, double[] range)
+	{
+		final byte[] ops = this.ops;
+		final double[] constants = this.constants;
+		final double[] lows = new double[this.maxStack],
+					   highs = new double[this.maxStack];
+
+		int sp = 0,
+			cp = 0;
+
+		for (int pc = 0; pc < ops.length; pc++)
+		{
+			final byte op = ops[pc];
+
+			if (op == NUMBER)
+			{
+				lows[sp] = highs[sp] = constants[cp++];
+				sp++;
+				continue;
+			}
+
+			if (op == VARIABLE)
+			{
+				lows[sp] = min;
+				highs[sp] = max;
+				sp++;
+				continue;
+			}
+
+			sp--;
+			final double a = lows[sp - 1], b = highs[sp - 1],
+						 c = lows[sp], d = highs[sp];
+			double low, high;
+
+			switch (op)
+			{
+				case ADD:
+					low = a + c;
+					high = b + d;
+					break;
+				case SUBTRACT:
+					low = a - d;
+					high = b - c;
+					break;
+				case MULTIPLY:
+				{
+					final double ac = a * c, ad = a * d, bc = b * c, bd = b * d;
+					low = Math.min(Math.min(ac, ad), Math.min(bc, bd));
+					high = Math.max(Math.max(ac, ad), Math.max(bc, bd));
+					break;
+				}
+				case DIVIDE:
+				{
+					if (c <= 0 && d >= 0)
+						return false;
+
+					final double ac = a / c, ad = a / d, bc = b / c, bd = b / d;
+					low = Math.min(Math.min(ac, ad), Math.min(bc, bd));
+					high = Math.max(Math.max(ac, ad), Math.max(bc, bd));
+					break;
+				}
+				default:
+					low = a;
+					high = b;
+					break;
+			}
+
+			// Infinities can meet and make NaN, which could be anything
+			if (Double.isNaN(low) || Double.isNaN(high))
+			{
+				low = Double.NEGATIVE_INFINITY;
+				high = Double.POSITIVE_INFINITY;
+			}
+
+			lows[sp - 1] = Math.nextDown(low);
+			highs[sp - 1] = Math.nextUp(high);
+		}
+
+		range[0] = lows[0];
+		range[1] = highs[0];
+
+		return true;
+	}
+
+	/**
+	 * Rebuilds an {@code Expression} with new constants, leaving its shape
+	 * and variables as they are.
+	 *
+	 * @param e			The {@code Expression} to rebuild.
+	 * @param constants	Its new constants, in the order that
+	 * 					{@link #getConstants()} gives them for its program.
+	 * @return			The rebuilt {@code Expression}.
+	 */
+	public static Expression withConstants(Expression e, double[] constants)
+	{
+		final Expression[] stack = new Expression[e.getDepth() + 1];
+
+		ExpressionWalker.walk(e, new ExpressionVisitor<RuntimeException>()
+		{
+			int sp = 0,
+				cp = 0;
+
+			@Override
+			public void leaf(Expression leaf, int level)
+			{
+				stack[this.sp++] = (leaf.getType() == ExpressionType.NUMBER)?
+						Expression.of(constants[this.cp++]) : leaf;
+				return;
+			}
+
+			@Override
+			public void exit(Expression node, int level)
+			{
+				this.sp--;
+				stack[this.sp - 1] = Expression.of(stack[this.sp - 1], node.getOperator(), stack[this.sp]);
+				return;
+			}
+		});
+
+		return stack[0];
+	}
+
+	/**
+	 * @return	A copy of the program's constants, in the order its
+	 * 			numbers appear, left to right.
+	 */
+	public double[] getConstants()
+	{
+		return this.constants.clone();
+	}
+
+	/**
+	 * Fetches this thread's column registers, growing them as needed.
+	 * Slot 0 is left for the caller's output array.
+	 *
+	 * @param count		How many columns are needed.
+	 * @param length	How many inputs each column must hold.
+	 * @return			The columns.
+	 */
+	private static double[][] columns(int count, int length)
+	{
+		double[][] columns = registers.get();
+
+		if (columns.length < count)
+		{
+			columns = Arrays.copyOf(columns, count);
+			registers.set(columns);
+		}
+
+		for (int i = 1; i < count; i++)
+		{
+			if (columns[i] == null || columns[i].length < length)
+				columns[i] = new double[length];
+		}
+
+		return columns;
+	}
+
+	/**
+	 * @return	The number of instructions in this program.
+	 */
+	public int length()
+	{
+		return this.ops.length;
+	}
+
+	/**
+	 * Accumulates opcodes and constants while walking an {@code Expression},
+	 * emitting each node once both of its sides have been emitted.
+	 */
+	private static class Builder implements ExpressionVisitor<RuntimeException>
+	{
+		byte[] ops = new byte[16];
+		double[] constants = new double[8];
+		int opCount = 0,
+			constantCount = 0,
+			stack = 0,
+			maxStack = 0;
+
+		@Override
+		public void leaf(Expression e, int level)
+		{
+			if (e.getType() == ExpressionType.NUMBER)
+			{
+				this.pushConstant(e.getNum());
+				this.pushOp(NUMBER);
+			}
+			else
+			{
+				this.pushOp(VARIABLE);
+			}
+
+			this.maxStack = Math.max(this.maxStack, ++this.stack);
+			return;
+		}
+
+		@Override
+		public void exit(Expression e, int level)
+		{
+			this.pushOp(opFor(e.getOperator()));
+			this.stack--;
+			return;
+		}
+
+		void pushOp(byte op)
+		{
+			if (this.opCount == this.ops.length)
+				this.ops = Arrays.copyOf(this.ops, this.opCount * 2);
+
+			this.ops[this.opCount++] = op;
+		}
+
+		void pushConstant(double n)
+		{
+			if (this.constantCount == this.constants.length)
+				this.constants = Arrays.copyOf(this.constants, this.constantCount * 2);
+
+			this.constants[this.constantCount++] = n;
+		}
+
+		/**
+		 * Mirrors {@link expression.Expression#makeFunction()}, including
+		 * its fallback of keeping the left side for unknown operators.
+		 */
+		static byte opFor(char operator)
+		{
+			switch (operator)
+			{
+				case '+':
+					return ADD;
+				case '-':
+					return SUBTRACT;
+				case '*':
+					return MULTIPLY;
+				case '/':
+					return DIVIDE;
+				default:
+					System.out.println("Error: Unknown function " + operator);
+					return KEEP_LEFT;
+			}
+		}
+	}
+}
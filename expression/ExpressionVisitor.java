@@ -0,0 +1,53 @@
+package expression;
+
+/**
+ * Receives the nodes of an {@code Expression} as an
+ * {@code ExpressionWalker} walks it. A complex node is seen three times:
+ * on the way down, between its two sides, and on the way back up, so
+ * that prefix, infix and postfix forms can all be written. Numbers and
+ * variables are only seen once.<br><br>
+ *
+ * Only {@link #leaf(Expression, int)} has to be written; the others do
+ * nothing by default.
+ *
+ * @param <X>	The checked exception the visitor may throw, which the
+ * 				walk passes on. {@code RuntimeException} if there is none.
+ *
+ * @see expression.ExpressionWalker
+ */
+public interface ExpressionVisitor<X extends Exception>
+{
+	/**
+	 * @param e		A number or variable.
+	 * @param level	How far below the root it is, where the root is 0.
+	 */
+	void leaf(Expression e, int level) throws X;
+
+	/**
+	 * @param e		A complex node, before either of its sides.
+	 * @param level	How far below the root it is, where the root is 0.
+	 */
+	default void enter(Expression e, int level) throws X
+	{
+		return;
+	}
+
+	/**
+	 * @param e		A complex node, after its left side and before its
+	 * 				right.
+	 * @param level	How far below the root it is, where the root is 0.
+	 */
+	default void between(Expression e, int level) throws X
+	{
+		return;
+	}
+
+	/**
+	 * @param e		A complex node, after both of its sides.
+	 * @param level	How far below the root it is, where the root is 0.
+	 */
+	default void exit(Expression e, int level) throws X
+	{
+		return;
+	}
+}
@@ -0,0 +1,88 @@
+package expression;
+
+import java.util.Arrays;
+
+/**
+ * Walks an {@code Expression} depth-first, left side first, without
+ * recursing. The path from the root to the current node is kept on an
+ * explicit stack, along with how far each node on it has got, so a tree
+ * of any depth can be walked on any thread's stack, and each node costs
+ * a few array accesses rather than a call frame.<br><br>
+ *
+ * Everything which walks a whole tree, such as printing, compiling and
+ * transpiling, is built on this.
+ *
+ * @see expression.ExpressionVisitor
+ */
+public class ExpressionWalker
+{
+	// How far a complex node on the stack has got
+	private static final byte	ENTERING	= 0,
+								LEFT_DONE	= 1,
+								RIGHT_DONE	= 2;
+
+	/**
+	 * Walks a whole tree, passing each node to a visitor.
+	 *
+	 * @param root		The tree to walk.
+	 * @param visitor	What to do with each node.
+	 * @throws X		Whatever the visitor throws, which ends the walk.
+	 */
+	public static <X extends Exception> void walk(Expression root, ExpressionVisitor<X> visitor) throws X
+	{
+		if (root.getType() != ExpressionType.COMPLEX)
+		{
+			visitor.leaf(root, 0);
+			return;
+		}
+
+		final int initial = Math.min(root.getDepth(), 64);
+		Expression[] path = new Expression[initial];
+		byte[] progress = new byte[initial];
+		int top = 0;
+
+		path[0] = root;
+		progress[0] = ENTERING;
+
+		while (top >= 0)
+		{
+			final Expression e = path[top];
+			final Expression next;
+
+			switch (progress[top])
+			{
+				case ENTERING:
+					visitor.enter(e, top);
+					progress[top] = LEFT_DONE;
+					next = e.getLeft();
+					break;
+				case LEFT_DONE:
+					visitor.between(e, top);
+					progress[top] = RIGHT_DONE;
+					next = e.getRight();
+					break;
+				default:
+					visitor.exit(e, top);
+					top--;
+					continue;
+			}
+
+			if (next.getType() != ExpressionType.COMPLEX)
+			{
+				visitor.leaf(next, top + 1);
+				continue;
+			}
+
+			if (++top == path.length)
+			{
+				path = Arrays.copyOf(path, path.length * 2);
+				progress = Arrays.copyOf(progress, progress.length * 2);
+			}
+
+			path[top] = next;
+			progress[top] = ENTERING;
+		}
+
+		return;
+	}
+}
@@ -1,16 +1,32 @@
 package expression;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 /**
  * A collection of functions used to simplify {@code Expressions} into
  * more compact (but equivalent!) forms.
+ * <br><br>
+ * 
+ * {@link #simplify(Expression)} is a last resort for {@code Expression}s
+ * which divide by zero. {@link #rewrite(Expression)} is a full rewrite
+ * engine, which shrinks any {@code Expression} while keeping what it
+ * calculates. See its rules for exactly where the two can differ.
  * 
  * @see expression.Expression
  */
 public class Simplifier
 {
+	// Every rule's result is already rewritten, so one pass almost always
+	// reaches the fixpoint; this only guards against rules fighting
+	private static final int maxPasses = 8;
+	
 	/**
 	 * In the case of {@code <Number> <Operator> <Number}, we can collapse
 	 * the complex {@code Expression} into a single numerical {@code Expression}.
+	 * Every node is checked, from the bottom up, without recursing.
 	 * 
 	 * @param e	The {@code Expression} to attempt to collapse.
 	 * @return	The potentially collapsed {@code Expression}. If the
@@ -19,40 +35,72 @@ public class Simplifier
 	 */
 	private static Expression checkIfTrivial(Expression e)
 	{
-		if (e.getType() == ExpressionType.COMPLEX)
+		if (e.getType() != ExpressionType.COMPLEX)
+			return e;
+		
+		final Expression[] results = new Expression[e.getDepth() + 1];
+		
+		ExpressionWalker.walk(e, new ExpressionVisitor<RuntimeException>()
 		{
-			if (e.getLeft().getType() == ExpressionType.NUMBER &&
-					e.getRight().getType() == ExpressionType.NUMBER)
-			{
-				try {
-					return new Expression(e.collapse(0));
-				} catch (DivideByZeroError err) {
-					return new Expression(0);
-				}
-				
-			}
-			else if (e.getLeft().getType()  	== ExpressionType.VARIABLE 	&&
-					 e.getRight().getType() 	== ExpressionType.VARIABLE	&&
-					 e.getOperator()			== '/')
+			int top = -1;
+			
+			@Override
+			public void leaf(Expression e, int level)
 			{
-				return new Expression(1);
+				results[++this.top] = e;
+				return;
 			}
-			else if (e.getLeft().getType()  	== ExpressionType.VARIABLE 	&&
-					 e.getRight().getType() 	== ExpressionType.VARIABLE	&&
-					 e.getOperator()			== '-')
+			
+			@Override
+			public void exit(Expression e, int level)
 			{
-				return new Expression(0);
+				final Expression right = results[this.top--],
+								 left = results[this.top];
+				
+				results[this.top] = trivialForm(e, left, right);
+				return;
 			}
-			else
-			{
-				return new Expression(	checkIfTrivial(e.getLeft()),
-										e.getOperator(),
-										checkIfTrivial(e.getRight()));
+		});
+		
+		return results[0];
+	}
+	
+	/**
+	 * @param e		A complex {@code Expression}.
+	 * @param left	Its left side, already checked.
+	 * @param right	Its right side, already checked.
+	 * @return		The collapsed {@code Expression}, or {@code e} rebuilt
+	 * 				from the checked sides if it can't be collapsed.
+	 */
+	private static Expression trivialForm(Expression e, Expression left, Expression right)
+	{
+		if (e.getLeft().getType() == ExpressionType.NUMBER &&
+				e.getRight().getType() == ExpressionType.NUMBER)
+		{
+			try {
+				return Expression.of(e.makeFunction().compute(
+						e.getLeft().getNum(), e.getRight().getNum()));
+			} catch (DivideByZeroError err) {
+				return Expression.of(0);
 			}
 			
 		}
-		
-		return e;
+		else if (e.getLeft().getType()  	== ExpressionType.VARIABLE 	&&
+				 e.getRight().getType() 	== ExpressionType.VARIABLE	&&
+				 e.getOperator()			== '/')
+		{
+			return Expression.of(1);
+		}
+		else if (e.getLeft().getType()  	== ExpressionType.VARIABLE 	&&
+				 e.getRight().getType() 	== ExpressionType.VARIABLE	&&
+				 e.getOperator()			== '-')
+		{
+			return Expression.of(0);
+		}
+		else
+		{
+			return Expression.of(left, e.getOperator(), right);
+		}
 	}
 	
 	public static Expression simplify(Expression e)
@@ -65,4 +113,318 @@ public class Simplifier
 		
 		return e;
 	}
+	
+	/**
+	 * Rewrites an {@code Expression} into a smaller, canonical form,
+	 * applying every rule below at every node, bottom-up, until none of
+	 * them change anything. Shared subtrees are only rewritten once, and
+	 * the tree is walked with an explicit stack, so any depth is fine.
+	 * <br><br>
+	 * 
+	 * These rules give exactly the same result for every input:
+	 * <pre>
+	 * c1 op c2		folds to a single number (but never c / 0)
+	 * a + b, a * b	orders the operands, numbers first
+	 * 0 + x, x - 0	becomes x
+	 * 1 * x, x / 1	becomes x
+	 * x - c		becomes (-c) + x
+	 * x / c		becomes (1 / c) * x, if c is a power of two
+	 * </pre>
+	 * ({@code 0 + x} gives {@code 0} rather than {@code -0} for
+	 * {@code x = -0}, but the sign of a zero only shows when dividing by
+	 * it, which is an error either way.)<br><br>
+	 * 
+	 * These rules drop a subtree, so they're only applied if it has no
+	 * division in it, and so can't be what divides by zero:
+	 * <pre>
+	 * 0 * x		becomes 0
+	 * 0 / x		becomes 0
+	 * x - x		becomes 0
+	 * x / x		becomes 1
+	 * </pre>
+	 * Even so, {@code 0 / x} and {@code x / x} no longer divide by zero
+	 * where {@code x} is zero, and if {@code x} overflows to infinity,
+	 * the originals give NaN rather than 0 or 1.<br><br>
+	 * 
+	 * These rules regroup constants, or cancel a subtree with no
+	 * division in it:
+	 * <pre>
+	 * c1 + (c2 + x)	becomes (c1 + c2) + x
+	 * c1 + (c2 - x)	becomes (c1 + c2) - x
+	 * c1 - (c2 + x)	becomes (c1 - c2) - x
+	 * c1 - (c2 - x)	becomes (c1 - c2) + x
+	 * c1 * (c2 * x)	becomes (c1 * c2) * x
+	 * a - (a - b)		becomes b
+	 * (a + b) - a		becomes b
+	 * </pre>
+	 * Floating point arithmetic isn't associative, so these can change
+	 * the result by a rounding error, or by more where an intermediate
+	 * result would have overflowed.
+	 * 
+	 * @param e	The {@code Expression} to rewrite.
+	 * @return	The rewritten {@code Expression}, or {@code e} itself if
+	 * 			no rule applies anywhere.
+	 */
+	public static Expression rewrite(Expression e)
+	{
+		Expression current = e;
+		
+		for (int pass = 0; pass < maxPasses; pass++)
+		{
+			final Expression next = rewriteOnce(current);
+			if (next == current)
+				break;
+			
+			current = next;
+		}
+		
+		return current;
+	}
+	
+	/**
+	 * Rewrites every node once, children before their parents.
+	 */
+	private static Expression rewriteOnce(Expression root)
+	{
+		if (root.getType() != ExpressionType.COMPLEX)
+			return root;
+		
+		final Map<Expression, Expression> done = new IdentityHashMap<Expression, Expression>();
+		final Deque<Expression> pending = new ArrayDeque<Expression>();
+		
+		pending.push(root);
+		while (!pending.isEmpty())
+		{
+			final Expression e = pending.peek();
+			
+			if (done.containsKey(e))
+			{
+				pending.pop();
+				continue;
+			}
+			
+			final Expression l = rewritten(done, e.getLeft()),
+							 r = rewritten(done, e.getRight());
+			
+			if (l == null || r == null)
+			{
+				if (r == null)
+					pending.push(e.getRight());
+				if (l == null)
+					pending.push(e.getLeft());
+				continue;
+			}
+			
+			pending.pop();
+			done.put(e, rewriteNode(e, l, e.getOperator(), r));
+		}
+		
+		return done.get(root);
+	}
+	
+	/**
+	 * @return	What an {@code Expression} was rewritten to, or null if it
+	 * 			hasn't been yet. Numbers and variables are never rewritten.
+	 */
+	private static Expression rewritten(Map<Expression, Expression> done, Expression e)
+	{
+		return (e.getType() == ExpressionType.COMPLEX)? done.get(e) : e;
+	}
+	
+	/**
+	 * Applies the rewrite rules to a single node, whose children have
+	 * already been rewritten. Any new node a rule builds is rewritten
+	 * too, so the result is always fully rewritten.
+	 * 
+	 * @param original	The node being rewritten, which is returned as it
+	 * 					is if nothing changes, or null if it's new.
+	 * @param l			The rewritten left child.
+	 * @param op		The operator.
+	 * @param r			The rewritten right child.
+	 * @return			The rewritten node.
+	 */
+	private static Expression rewriteNode(Expression original, Expression l, char op, Expression r)
+	{
+		if (isNumber(l) && isNumber(r) && !(op == '/' && r.getNum() == 0))
+			return Expression.of(fold(l.getNum(), op, r.getNum()));
+		
+		if ((op == '+' || op == '*') && order(l, r) > 0)
+		{
+			final Expression swap = l;
+			l = r;
+			r = swap;
+		}
+		
+		switch (op)
+		{
+			case '+':
+				if (isNumber(l, 0))
+					return r;
+				
+				if (isNumber(l) && isChain(r, '+', '-'))
+					return rewriteNode(null,
+							Expression.of(l.getNum() + r.getLeft().getNum()),
+							r.getOperator(),
+							r.getRight());
+				break;
+			
+			case '-':
+				if (isNumber(r, 0))
+					return l;
+				
+				if (l == r && !l.containsDivision())
+					return Expression.of(0);
+				
+				if (isNumber(r))
+					return rewriteNode(null, Expression.of(-r.getNum()), '+', l);
+				
+				if (isNumber(l) && isChain(r, '+', '-'))
+					return rewriteNode(null,
+							Expression.of(l.getNum() - r.getLeft().getNum()),
+							(r.getOperator() == '+')? '-' : '+',
+							r.getRight());
+				
+				if (r.getType() == ExpressionType.COMPLEX && r.getOperator() == '-' &&
+						r.getLeft() == l && !l.containsDivision())
+					return r.getRight();
+				
+				if (l.getType() == ExpressionType.COMPLEX && l.getOperator() == '+' &&
+						!r.containsDivision())
+				{
+					if (l.getLeft() == r)
+						return l.getRight();
+					if (l.getRight() == r)
+						return l.getLeft();
+				}
+				break;
+			
+			case '*':
+				if (isNumber(l, 1))
+					return r;
+				
+				if (isNumber(l, 0) && !r.containsDivision())
+					return l;
+				
+				if (isNumber(l) && isChain(r, '*', '*'))
+					return rewriteNode(null,
+							Expression.of(l.getNum() * r.getLeft().getNum()),
+							'*',
+							r.getRight());
+				break;
+			
+			case '/':
+				// Always an error, which simplify() deals with
+				if (isNumber(r, 0))
+					break;
+				
+				if (isNumber(r, 1))
+					return l;
+				
+				if (isNumber(l, 0) && !r.containsDivision())
+					return l;
+				
+				if (l == r && !l.containsDivision())
+					return Expression.of(1);
+				
+				if (isNumber(r) && hasExactInverse(r.getNum()))
+					return rewriteNode(null, Expression.of(1 / r.getNum()), '*', l);
+				break;
+		}
+		
+		if (original != null &&
+				original.getLeft() == l &&
+				original.getOperator() == op &&
+				original.getRight() == r)
+			return original;
+		
+		return Expression.of(l, op, r);
+	}
+	
+	/**
+	 * @return	Exactly what evaluating {@code a op b} would give.
+	 */
+	private static double fold(double a, char op, double b)
+	{
+		switch (op)
+		{
+			case '+':
+				return a + b;
+			case '-':
+				return a - b;
+			case '*':
+				return a * b;
+			default:
+				return a / b;
+		}
+	}
+	
+	private static boolean isNumber(Expression e)
+	{
+		return e.getType() == ExpressionType.NUMBER;
+	}
+	
+	private static boolean isNumber(Expression e, double n)
+	{
+		return e.getType() == ExpressionType.NUMBER && e.getNum() == n;
+	}
+	
+	/**
+	 * @return	True if {@code e} is a number joined to something else by
+	 * 			either of the operators.
+	 */
+	private static boolean isChain(Expression e, char op1, char op2)
+	{
+		return e.getType() == ExpressionType.COMPLEX &&
+				(e.getOperator() == op1 || e.getOperator() == op2) &&
+				isNumber(e.getLeft());
+	}
+	
+	/**
+	 * @return	True if {@code 1 / n} is exact, so that dividing by
+	 * 			{@code n} is the same as multiplying by it.
+	 */
+	private static boolean hasExactInverse(double n)
+	{
+		final int exponent = Math.getExponent(n);
+		
+		return exponent >= Double.MIN_EXPONENT &&
+				exponent < Double.MAX_EXPONENT &&
+				Math.abs(n) == Math.scalb(1.0, exponent);
+	}
+	
+	/**
+	 * A total order over {@code Expression}s, used to put the operands of
+	 * {@code +} and {@code *} in a canonical order: numbers, then
+	 * variables, then smaller trees before larger ones.
+	 */
+	private static int order(Expression a, Expression b)
+	{
+		if (a == b)
+			return 0;
+		
+		if (a.getType() != b.getType())
+			return a.getType().compareTo(b.getType());
+		
+		switch (a.getType())
+		{
+			case NUMBER:
+				return Double.compare(a.getNum(), b.getNum());
+			case VARIABLE:
+				return Character.compare(a.getVariable(), b.getVariable());
+			case COMPLEX:
+				break;
+		}
+		
+		int c = Integer.compare(a.getSize(), b.getSize());
+		if (c == 0)
+			c = Character.compare(a.getOperator(), b.getOperator());
+		if (c == 0)
+			c = Integer.compare(a.structuralHash(), b.structuralHash());
+		if (c == 0)
+			c = order(a.getLeft(), b.getLeft());
+		if (c == 0)
+			c = order(a.getRight(), b.getRight());
+		
+		return c;
+	}
 }
@@ -2,6 +2,10 @@ package lambdaType;
 
 import expression.DivideByZeroError;
 import expression.Expression;
+import expression.ExpressionProgram;
+import expression.ExpressionType;
+import expression.ExpressionVisitor;
+import expression.ExpressionWalker;
 import mathling.MathlingMutator;
 
 /**
@@ -21,34 +25,68 @@ import mathling.MathlingMutator;
  */
 public class Thunklet
 {
+	// Nested lambdas call each other, one frame per level, so deeper
+	// trees are run as an ExpressionProgram instead
+	private static final int maxNestedDepth = 256;
+	
 	/**
-	 * Turns an {@code Expression} into a lambda recursively. Recursion
-	 * terminates at the numerical and variable {@code Expression} types.
+	 * Turns an {@code Expression} into nested lambdas, building them from
+	 * the numerical and variable {@code Expression}s up, without
+	 * recursing. Each operator's function is looked up once, here, rather
+	 * than every time the lambda is computed.
+	 * <br><br>
+	 * 
+	 * Computing nested lambdas does recurse, so an {@code Expression} too
+	 * deep for that is given its {@code ExpressionProgram} instead.
 	 * 
 	 * @param e	The {@code Expression} to be transformed.
 	 * @return	A {@code Computable} lambda representing the {@code Expresion}.
 	 * 
 	 * @see lambdaType.Computable
+	 * @see expression.ExpressionWalker
 	 */
 	public static Computable makeThunklet(Expression e)
 	{
-		switch (e.getType())
+		if (e.getDepth() > maxNestedDepth)
+			return ExpressionProgram.compile(e)::evaluate;
+		
+		final Computable[] built = new Computable[e.getDepth() + 1];
+		
+		ExpressionWalker.walk(e, new ExpressionVisitor<RuntimeException>()
 		{
-			case NUMBER:
-				final double n = e.getNum();
-				return (x) -> n;
-			case VARIABLE:
-				return (x) -> x;
-			case COMPLEX:
-				final Computable left = makeThunklet(e.getLeft());
-				final Computable right = makeThunklet(e.getRight());
+			int top = -1;
+			
+			@Override
+			public void leaf(Expression e, int level)
+			{
+				if (e.getType() == ExpressionType.NUMBER)
+				{
+					final double n = e.getNum();
+					built[++this.top] = (x) -> n;
+				}
+				else
+				{
+					built[++this.top] = (x) -> x;
+				}
+				
+				return;
+			}
+			
+			@Override
+			public void exit(Expression e, int level)
+			{
+				final Computable right = built[this.top--],
+								 left = built[this.top];
+				final BinaryFunction f = e.makeFunction();
 				
-				return (x) -> e.makeFunction().compute(
+				built[this.top] = (x) -> f.compute(
 								left.compute(x),
 								right.compute(x));
-		}
+				return;
+			}
+		});
 		
-		return null;
+		return built[0];
 	}
 	
 	/**
@@ -0,0 +1,380 @@
+package lambdaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+
+import expression.DivideByZeroError;
+import expression.Expression;
+import expression.ExpressionProgram;
+import expression.ExpressionType;
+import expression.ExpressionVisitor;
+import expression.ExpressionWalker;
+
+/**
+ * Compiles an {@code Expression} straight into JVM bytecode. Where a
+ * {@code Thunklet} is a tree of nested lambdas, a compiled thunklet is a
+ * single method whose body is the {@code Expression}'s arithmetic laid out
+ * in postfix order, with the numbers loaded as constants. The JIT can then
+ * treat it like any hand-written function.<br><br>
+ *
+ * Each compiled {@code Expression} is loaded as a hidden class. Hidden
+ * classes are unloaded once nothing refers to them, so compiling many
+ * {@code Expression}s over a long simulation doesn't leak class metadata.
+ * <br><br>
+ *
+ * Note: Compiling costs far more than a single evaluation, so this is best
+ * kept for {@code Expression}s which will be evaluated many times over,
+ * such as long-lived elite {@code Mathling}s.
+ *
+ * @see lambdaType.Thunklet
+ * @see expression.ExpressionProgram
+ */
+public class ThunkletCompiler
+{
+	// The JVM caps a method's bytecode at 64KB
+	private static final int maxCodeLength = 65535;
+
+	private static final String className		= "lambdaType/CompiledThunklet",
+								interfaceName	= "lambdaType/Computable";
+
+	/**
+	 * Compiles an {@code Expression} into a {@code Computable}. If the
+	 * {@code Expression} is too large to fit in a single method, this
+	 * returns its {@code ExpressionProgram} instead.
+	 *
+	 * @param e	The {@code Expression} to compile.
+	 * @return	A {@code Computable} which gives the same results as
+	 * 			{@link expression.Expression#collapse(double)}.
+	 *
+	 * @see expression.ExpressionProgram
+	 */
+	public static Computable compile(Expression e)
+	{
+		final ClassWriter writer = new ClassWriter();
+		final byte[] bytes = writer.write(e);
+
+		if (bytes == null)
+			return ExpressionProgram.compile(e)::evaluate;
+
+		try
+		{
+			final Class<?> compiled = MethodHandles.lookup()
+					.defineHiddenClass(bytes, true)
+					.lookupClass();
+
+			return (Computable) compiled.getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException err)
+		{
+			err.printStackTrace();
+			return ExpressionProgram.compile(e)::evaluate;
+		}
+	}
+
+	/**
+	 * Division as performed by compiled thunklets. Called from the
+	 * generated bytecode, so the check for zero lives in one place.
+	 *
+	 * @param x	The dividend.
+	 * @param y	The divisor.
+	 * @return	{@code x / y}.
+	 */
+	static double divide(double x, double y) throws DivideByZeroError
+	{
+		if (y == 0)
+			throw new DivideByZeroError();
+
+		return x / y;
+	}
+
+	/**
+	 * Builds the class file for a single compiled {@code Expression}. The
+	 * class has a no-argument constructor and a {@code compute(double)}
+	 * method. The method body has no branches, so no stack map frames are
+	 * needed.
+	 */
+	private static class ClassWriter implements ExpressionVisitor<IOException>
+	{
+		private static final byte	CONSTANT_Utf8			= 1,
+									CONSTANT_Double			= 6,
+									CONSTANT_Class			= 7,
+									CONSTANT_Methodref		= 10,
+									CONSTANT_NameAndType	= 12;
+
+		private static final int	DCONST_0		= 0x0e,
+									DCONST_1		= 0x0f,
+									LDC2_W			= 0x14,
+									DLOAD_1			= 0x27,
+									ALOAD_0			= 0x2a,
+									POP2			= 0x58,
+									DADD			= 0x63,
+									DSUB			= 0x67,
+									DMUL			= 0x6b,
+									DRETURN			= 0xaf,
+									RETURN			= 0xb1,
+									INVOKESPECIAL	= 0xb7,
+									INVOKESTATIC	= 0xb8;
+
+		private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+		private final DataOutputStream pool = new DataOutputStream(poolBytes);
+		private final Map<Object, Integer> poolIndices = new HashMap<Object, Integer>();
+		private int poolCount = 1;
+
+		private final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+		private int depth = 0,
+					maxDepth = 0;
+
+		private int divideRef = 0;
+
+		/**
+		 * @param e	The {@code Expression} to compile.
+		 * @return	The class file, or null if the {@code Expression} is too
+		 * 			large for one method.
+		 */
+		byte[] write(Expression e)
+		{
+			// Every node takes at least a byte of code
+			if (e.getSize() >= maxCodeLength)
+				return null;
+
+			try
+			{
+				ExpressionWalker.walk(e, this);
+				this.codeBytes.write(DRETURN);
+
+				if (this.codeBytes.size() > maxCodeLength)
+					return null;
+
+				final int thisClass		= this.classRef(className),
+						  superClass	= this.classRef("java/lang/Object"),
+						  computable	= this.classRef(interfaceName),
+						  objectInit	= this.methodRef("java/lang/Object", "<init>", "()V"),
+						  initName		= this.utf8("<init>"),
+						  initType		= this.utf8("()V"),
+						  computeName	= this.utf8("compute"),
+						  computeType	= this.utf8("(D)D"),
+						  codeName		= this.utf8("Code");
+
+				final ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+				final DataOutputStream out = new DataOutputStream(classBytes);
+
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);
+				out.writeShort(52);
+
+				out.writeShort(this.poolCount);
+				this.pool.flush();
+				this.poolBytes.writeTo(out);
+
+				// public final super
+				out.writeShort(0x0031);
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(1);
+				out.writeShort(computable);
+
+				// No fields, two methods
+				out.writeShort(0);
+				out.writeShort(2);
+
+				final byte[] init = {
+						(byte) ALOAD_0,
+						(byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+						(byte) RETURN };
+				writeMethod(out, initName, initType, codeName, 1, 1, init);
+
+				// Doubles take two stack slots; locals are this and the input
+				writeMethod(out, computeName, computeType, codeName,
+						this.maxDepth * 2, 3, this.codeBytes.toByteArray());
+
+				// No class attributes
+				out.writeShort(0);
+				out.flush();
+
+				return classBytes.toByteArray();
+			}
+			catch (IOException err)
+			{
+				// Only in-memory streams are used
+				throw new IllegalStateException(err);
+			}
+		}
+
+		/**
+		 * Emits the bytecode for a number or the variable. Together with
+		 * {@link #exit(Expression, int)}, this lays the {@code Expression}
+		 * out in postfix order.
+		 */
+		@Override
+		public void leaf(Expression e, int level) throws IOException
+		{
+			if (e.getType() == ExpressionType.NUMBER)
+			{
+				final double n = e.getNum();
+				if (Double.doubleToRawLongBits(n) == 0L)
+					this.codeBytes.write(DCONST_0);
+				else if (n == 1.0)
+					this.codeBytes.write(DCONST_1);
+				else
+					this.writeIndexed(LDC2_W, this.doubleConstant(n));
+			}
+			else
+			{
+				this.codeBytes.write(DLOAD_1);
+			}
+
+			this.maxDepth = Math.max(this.maxDepth, ++this.depth);
+			return;
+		}
+
+		/**
+		 * Emits an operator, once both of its sides are on the stack.
+		 */
+		@Override
+		public void exit(Expression e, int level) throws IOException
+		{
+			this.emitOperator(e.getOperator());
+			this.depth--;
+			return;
+		}
+
+		/**
+		 * Mirrors {@link expression.Expression#makeFunction()}, including
+		 * its fallback of keeping the left side for unknown operators.
+		 */
+		private void emitOperator(char operator) throws IOException
+		{
+			switch (operator)
+			{
+				case '+':
+					this.codeBytes.write(DADD);
+					break;
+				case '-':
+					this.codeBytes.write(DSUB);
+					break;
+				case '*':
+					this.codeBytes.write(DMUL);
+					break;
+				case '/':
+					if (this.divideRef == 0)
+						this.divideRef = this.methodRef(
+								"lambdaType/ThunkletCompiler", "divide", "(DD)D");
+					this.writeIndexed(INVOKESTATIC, this.divideRef);
+					break;
+				default:
+					System.out.println("Error: Unknown function " + operator);
+					this.codeBytes.write(POP2);
+					break;
+			}
+
+			return;
+		}
+
+		private void writeIndexed(int opcode, int index)
+		{
+			this.codeBytes.write(opcode);
+			this.codeBytes.write(index >> 8);
+			this.codeBytes.write(index);
+		}
+
+		private static void writeMethod(DataOutputStream out,
+										int name,
+										int type,
+										int codeName,
+										int maxStack,
+										int maxLocals,
+										byte[] code) throws IOException
+		{
+			// public
+			out.writeShort(0x0001);
+			out.writeShort(name);
+			out.writeShort(type);
+
+			// A single Code attribute, with no exception table or attributes
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + code.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0);
+			out.writeShort(0);
+
+			return;
+		}
+
+		private int utf8(String s) throws IOException
+		{
+			final String key = "utf8:" + s;
+			final Integer known = this.poolIndices.get(key);
+			if (known != null)
+				return known;
+
+			this.pool.writeByte(CONSTANT_Utf8);
+			this.pool.writeUTF(s);
+
+			return this.register(key, 1);
+		}
+
+		private int classRef(String name) throws IOException
+		{
+			final Integer known = this.poolIndices.get("class:" + name);
+			if (known != null)
+				return known;
+
+			final int nameIndex = this.utf8(name);
+
+			this.pool.writeByte(CONSTANT_Class);
+			this.pool.writeShort(nameIndex);
+
+			return this.register("class:" + name, 1);
+		}
+
+		private int methodRef(String owner, String name, String type) throws IOException
+		{
+			final int ownerIndex	= this.classRef(owner),
+					  nameIndex		= this.utf8(name),
+					  typeIndex		= this.utf8(type);
+
+			this.pool.writeByte(CONSTANT_NameAndType);
+			this.pool.writeShort(nameIndex);
+			this.pool.writeShort(typeIndex);
+			final int nameAndType = this.register("nat:" + name + type, 1);
+
+			this.pool.writeByte(CONSTANT_Methodref);
+			this.pool.writeShort(ownerIndex);
+			this.pool.writeShort(nameAndType);
+
+			return this.register("method:" + owner + "." + name + type, 1);
+		}
+
+		private int doubleConstant(double n) throws IOException
+		{
+			final Long key = Double.doubleToRawLongBits(n);
+			final Integer known = this.poolIndices.get(key);
+			if (known != null)
+				return known;
+
+			this.pool.writeByte(CONSTANT_Double);
+			this.pool.writeDouble(n);
+
+			// Doubles take up two entries in the constant pool
+			return this.register(key, 2);
+		}
+
+		private int register(Object key, int slots)
+		{
+			final int index = this.poolCount;
+
+			this.poolIndices.put(key, index);
+			this.poolCount += slots;
+
+			return index;
+		}
+	}
+}
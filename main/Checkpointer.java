@@ -0,0 +1,268 @@
+package main;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import expression.Expression;
+import mathling.Mathling;
+import mathling.MathlingSaver;
+import mathling.PopulationCheckpoint;
+import transpile.ToJava;
+import transpile.ToPython;
+
+/**
+ * Saves the simulation's best {@code Mathling}, and optionally its whole
+ * population, on a background thread, so that evolution never waits on
+ * the disk. Submitting only takes a snapshot of the champion; its
+ * {@code Expression} is immutable, so the snapshot is just a reference
+ * and its accuracy. A population is written to "population.mth", or
+ * another file of its own, one {@code Mathling} at a time, from a
+ * {@code PopulationCheckpoint}. A population can also be saved on its
+ * own, without a champion, as each island's is.<br><br>
+ *
+ * There is only ever one snapshot waiting. If a new one arrives before
+ * the writer gets to the last, the last is dropped, as it would be
+ * overwritten straight away anyway.<br><br>
+ *
+ * Every file is written through
+ * {@link mathling.MathlingSaver#writeAtomically(java.nio.file.Path, byte[])},
+ * so a crash mid-write leaves the previous checkpoint intact.
+ *
+ * @see main.Simulation
+ */
+public class Checkpointer
+{
+	// Where a population is saved, unless it's given a file of its own
+	static final Path populationFile = Paths.get("population.mth");
+
+	private final AtomicReference<Snapshot> pending = new AtomicReference<Snapshot>();
+	private final AtomicLong written = new AtomicLong(),
+							 dropped = new AtomicLong();
+	private final Thread writer;
+	private final Path population;
+
+	private volatile boolean closed = false;
+
+	// Set while the writer is between taking a snapshot and finishing it
+	private volatile boolean writing = false;
+
+	/**
+	 * Starts the writer thread, saving populations to "population.mth".
+	 */
+	public Checkpointer()
+	{
+		this(populationFile);
+		return;
+	}
+
+	/**
+	 * Starts the writer thread.
+	 *
+	 * @param population	The file to save populations to.
+	 */
+	public Checkpointer(Path population)
+	{
+		this.population = population;
+		this.writer = new Thread(this::run, "checkpointer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+
+		return;
+	}
+
+	/**
+	 * Queues a snapshot of a {@code Mathling} to be saved, replacing any
+	 * which hasn't been written yet. Never blocks.
+	 *
+	 * @param best	The {@code Mathling} to save.
+	 */
+	public void submit(Mathling best)
+	{
+		this.submit(best, null);
+		return;
+	}
+
+	/**
+	 * Queues a snapshot of a {@code Mathling} and the population it came
+	 * from to be saved, replacing any which haven't been written yet.
+	 * Never blocks.
+	 *
+	 * @param best			The {@code Mathling} to save.
+	 * @param population	The population to save, or null for only the
+	 * 						champion.
+	 * @see mathling.PopulationCheckpoint
+	 */
+	public void submit(Mathling best, PopulationCheckpoint population)
+	{
+		this.enqueue(new Snapshot(best.getExpression(), best.getAccuracy(), population));
+		return;
+	}
+
+	/**
+	 * Queues a population to be saved on its own, leaving the champion's
+	 * files alone, and replacing any snapshot which hasn't been written
+	 * yet. Never blocks.
+	 *
+	 * @param population	The population to save.
+	 * @see main.IslandModel
+	 */
+	public void submitPopulation(PopulationCheckpoint population)
+	{
+		this.enqueue(new Snapshot(null, 0, population));
+		return;
+	}
+
+	private void enqueue(Snapshot s)
+	{
+		if (this.pending.getAndSet(s) != null)
+			this.dropped.incrementAndGet();
+
+		LockSupport.unpark(this.writer);
+		return;
+	}
+
+	/**
+	 * Waits until every submitted snapshot has been written, then stops
+	 * the writer thread.
+	 */
+	public void close()
+	{
+		this.closed = true;
+		LockSupport.unpark(this.writer);
+
+		try
+		{
+			this.writer.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		return;
+	}
+
+	/**
+	 * @return	How many snapshots have been written.
+	 */
+	public long getWritten()
+	{
+		return this.written.get();
+	}
+
+	/**
+	 * @return	How many snapshots were replaced before they could be
+	 * 			written.
+	 */
+	public long getDropped()
+	{
+		return this.dropped.get();
+	}
+
+	/**
+	 * @return	True if nothing is waiting to be written, or being written.
+	 */
+	public boolean isIdle()
+	{
+		return this.pending.get() == null && !this.writing;
+	}
+
+	private void run()
+	{
+		while (true)
+		{
+			this.writing = true;
+			final Snapshot s = this.pending.getAndSet(null);
+
+			if (s != null)
+			{
+				// Even a write which fails outright mustn't leave the
+				// checkpointer looking busy forever
+				try
+				{
+					this.write(s);
+					this.written.incrementAndGet();
+				}
+				finally
+				{
+					this.writing = false;
+				}
+
+				continue;
+			}
+
+			this.writing = false;
+
+			if (this.closed && this.pending.get() == null)
+				return;
+
+			LockSupport.park(this);
+		}
+	}
+
+	/**
+	 * Writes a snapshot as the saved {@code Mathling}, the results text,
+	 * and its Python and Java transpilations, if it has a champion, then
+	 * its population if it has one. A failure is reported and the
+	 * snapshot given up on, so the next one is still written.
+	 */
+	private void write(Snapshot s)
+	{
+		try
+		{
+			if (s.expression != null)
+				this.writeChampion(s);
+
+			if (s.population != null)
+				s.population.save(this.population);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			e.printStackTrace();
+		}
+
+		return;
+	}
+
+	private void writeChampion(Snapshot s) throws IOException
+	{
+		final Mathling m = new Mathling(s.expression);
+		m.setAccuracy(s.accuracy);
+
+		final String results = "This function has an average error of "
+				+ s.accuracy + ":\n\n" + s.expression.print();
+
+		MathlingSaver.writeAtomically(Paths.get("current.mth"), MathlingSaver.toBytes(m));
+		MathlingSaver.writeAtomically(Paths.get("result.txt"),
+				results.getBytes(StandardCharsets.UTF_8));
+		MathlingSaver.writeAtomically(Paths.get("output.py"),
+				new ToPython().transpile(s.expression).getBytes(StandardCharsets.UTF_8));
+		MathlingSaver.writeAtomically(Paths.get("output.java"),
+				new ToJava().transpile(s.expression).getBytes(StandardCharsets.UTF_8));
+
+		return;
+	}
+
+	/**
+	 * The champion at the moment it was submitted, and maybe its
+	 * population. The champion is null if only the population is saved.
+	 */
+	private static class Snapshot
+	{
+		final Expression expression;
+		final double accuracy;
+		final PopulationCheckpoint population;
+
+		Snapshot(Expression expression, double accuracy, PopulationCheckpoint population)
+		{
+			this.expression = expression;
+			this.accuracy = accuracy;
+			this.population = population;
+		}
+	}
+}
@@ -0,0 +1,459 @@
+package main;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mathling.Mathling;
+import mathling.MathlingComparator;
+import mathling.MathlingMutator;
+import mathling.MathlingRandom;
+import mathling.NodeVectorCache;
+import mathling.PopulationCheckpoint;
+import mathling.Selection;
+import metrics.Phase;
+import metrics.SimulationMetrics;
+
+/**
+ * Evolves several populations at once, one per thread, in place of the
+ * simulation's single population. Each island has its own random numbers
+ * and its own parents, early abort bound and node vectors, so islands
+ * never wait on each other. They share only the target samples and the
+ * fitness cache.
+ * <br><br>
+ * 
+ * Every so many generations, each island sends copies of its best
+ * mathlings to its neighbours, and takes in whatever has arrived from
+ * them in place of some of its worse half. Arrivals wait in a lock-free
+ * queue, so sending never blocks either. Which islands are neighbours
+ * depends on the topology:
+ * <br><br>
+ * 
+ * RING:	Each island sends to the next, and the last to the first.
+ * 			Good mathlings spread slowly, which keeps islands diverse
+ * 			the longest.<br>
+ * RANDOM:	Each island sends to a different, random island each time.<br>
+ * FULL:	Each island sends to every other one. Good mathlings spread
+ * 			straight away, at the cost of diversity.
+ * <br><br>
+ * 
+ * The best mathling any island has found is kept as the champion, and
+ * saved every 1000 of the first island's generations. Every 1000 of its
+ * own generations, each island also saves its population, generation
+ * and random numbers to a checkpoint of its own, such as
+ * "population-2.mth" for the third, so that every island can be resumed
+ * where it stopped. Only mathlings still on their way between islands
+ * are lost. As islands run freely, when migrants arrive depends on
+ * timing, so runs can't be repeated exactly even from the same seed.
+ * 
+ * @see main.Simulation#setIslands(int, int, int, IslandModel.Topology)
+ * @see mathling.MathlingMutator#useRandom(MathlingRandom)
+ */
+public class IslandModel
+{
+	/**
+	 * Which islands send their mathlings to which. See
+	 * {@link IslandModel}.
+	 */
+	public enum Topology
+	{
+		RING,
+		RANDOM,
+		FULL
+	}
+	
+	private static final long generations = 1000000000,
+							  checkpointInterval = 1000;
+	
+	private final Island[] islands;
+	private final int migrationInterval,
+					  migrants;
+	private final Topology topology;
+	
+	// A copy of the best mathling any island has found so far
+	private final AtomicReference<Mathling> champion = new AtomicReference<Mathling>();
+	
+	/**
+	 * Sets up the islands, each with a random number generator seeded
+	 * from the calling thread's, so that seeding it seeds every island.
+	 * 
+	 * @param count				How many islands, at least 1.
+	 * @param migrationInterval	How many generations between migrations.
+	 * @param migrants			How many of its best mathlings an island
+	 * 							sends to each neighbour.
+	 * @param topology			Which islands are neighbours.
+	 */
+	public IslandModel(int count, int migrationInterval, int migrants, Topology topology)
+	{
+		if (count < 1)
+			throw new IllegalArgumentException("Need at least one island, got " + count);
+		
+		this.islands = new Island[count];
+		this.migrationInterval = migrationInterval;
+		this.migrants = migrants;
+		this.topology = topology;
+		
+		final MathlingRandom seeds = MathlingMutator.getRandom();
+		for (int i = 0; i < count; i++)
+			this.islands[i] = new Island(i, new MathlingRandom(seeds.nextLong()));
+		
+		return;
+	}
+	
+	/**
+	 * Evolves every island, each on its own thread, until they're done,
+	 * then saves the champion.
+	 * 
+	 * @param founders		The population every island starts from, or
+	 * 						null for each to generate its own. The first
+	 * 						island takes these, and the others copies,
+	 * 						all made before any island starts.
+	 * @param generation	The generation to start counting from.
+	 * @param evaluated		True if the founders' accuracies are already
+	 * 						known, so the first evaluation is skipped.
+	 */
+	public void run(Mathling[] founders, long generation, boolean evaluated)
+	{
+		final Mathling[][] populations = new Mathling[this.islands.length][];
+		final long[] generations = new long[this.islands.length];
+		
+		// The first island reorders and breeds the founders in place, so
+		// every copy has to be made before it starts
+		for (int i = 0; i < populations.length; i++)
+		{
+			populations[i] = this.populate(this.islands[i], founders);
+			generations[i] = generation;
+		}
+		
+		this.run(populations, generations, evaluated && founders != null);
+		return;
+	}
+	
+	/**
+	 * Resumes every island from its own checkpoint, with its population,
+	 * generation and random numbers just as they were saved, then evolves
+	 * them as {@link #run(Mathling[], long, boolean)} does. Any island
+	 * without a checkpoint starts from a copy of the first island's, with
+	 * random numbers of its own.
+	 * 
+	 * @param saved	One checkpoint per island. The first mustn't be null.
+	 * @see #checkpointFile(Path, int)
+	 */
+	public void resume(PopulationCheckpoint[] saved)
+	{
+		final Mathling[][] populations = new Mathling[this.islands.length][];
+		final long[] generations = new long[this.islands.length];
+		
+		for (int i = 0; i < populations.length; i++)
+		{
+			final boolean own = i < saved.length && saved[i] != null;
+			final PopulationCheckpoint checkpoint = own? saved[i] : saved[0];
+			
+			// An island borrowing the first's population keeps its own
+			// random numbers, so it doesn't just repeat the first
+			if (own)
+				this.islands[i].random.setState(checkpoint.getRandomState());
+			
+			populations[i] = checkpoint.toMathlings();
+			generations[i] = checkpoint.getGeneration();
+		}
+		
+		this.run(populations, generations, true);
+		return;
+	}
+	
+	/**
+	 * @param saved		The file a single population would be saved to,
+	 * 					such as "population.mth".
+	 * @param island	Which island.
+	 * @return			The file that island's population is saved to,
+	 * 					such as "population-0.mth".
+	 */
+	public static Path checkpointFile(Path saved, int island)
+	{
+		final String name = saved.getFileName().toString();
+		final int dot = name.lastIndexOf('.');
+		final String file = (dot > 0)?
+				name.substring(0, dot) + "-" + island + name.substring(dot) :
+				name + "-" + island;
+		
+		return saved.resolveSibling(file);
+	}
+	
+	/**
+	 * Evolves every island from its own population.
+	 * 
+	 * @param populations	Each island's population, or null for it to
+	 * 						generate its own.
+	 * @param generations	The generation each island starts counting
+	 * 						from.
+	 * @param evaluated		True if the given populations' accuracies are
+	 * 						already known.
+	 */
+	private void run(Mathling[][] populations, long[] generations, boolean evaluated)
+	{
+		final Checkpointer checkpointer = new Checkpointer();
+		final Checkpointer[] saved = new Checkpointer[this.islands.length];
+		final Thread[] threads = new Thread[this.islands.length];
+		
+		Simulation.getMetrics().register();
+		
+		for (int i = 0; i < threads.length; i++)
+		{
+			final Island island = this.islands[i];
+			final Mathling[] population = populations[i];
+			final long generation = generations[i];
+			final Checkpointer own = saved[i] = new Checkpointer(
+					checkpointFile(Checkpointer.populationFile, i));
+			
+			threads[i] = new Thread(() -> this.evolve(island, population, generation, evaluated, checkpointer, own),
+					"island-" + i);
+			threads[i].start();
+		}
+		
+		try
+		{
+			for (Thread t : threads)
+				t.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		final Mathling best = this.champion.get();
+		
+		if (best != null)
+		{
+			System.out.println("Winner with " + best.getAccuracy() + ":");
+			System.out.println(best.printExpression());
+			
+			Simulation.saveProgress(best, null, checkpointer);
+		}
+		
+		checkpointer.close();
+		for (Checkpointer c : saved)
+			c.close();
+		
+		return;
+	}
+	
+	/**
+	 * @return	A copy of the best mathling found by any island so far, or
+	 * 			null if none has been evaluated yet.
+	 */
+	public Mathling getChampion()
+	{
+		return this.champion.get();
+	}
+	
+	/**
+	 * Runs one island's generations, on its own thread. The simulation's
+	 * settings are read once, before the first generation.
+	 * 
+	 * @param population	The island's own founders, or null to generate
+	 * 						them from its random numbers.
+	 * @param saved			Saves the island's own population.
+	 */
+	private void evolve(Island island,
+							Mathling[] population,
+							long generation,
+							boolean evaluated,
+							Checkpointer checkpointer,
+							Checkpointer saved)
+	{
+		MathlingMutator.useRandom(island.random);
+		
+		final Simulation.Settings settings = Simulation.settings();
+		final SimulationMetrics metrics = settings.metrics;
+		final Mathling[] mathlings = (population != null)? population : Simulation.newPopulation();
+		
+		double bound = Double.POSITIVE_INFINITY;
+		NodeVectorCache vectors = null;
+		
+		// A population generated here has never been evaluated
+		boolean skip = evaluated && population != null;
+		
+		for (long i = generation; i < generations; i++)
+		{
+			if (skip)
+			{
+				skip = false;
+			}
+			else
+			{
+				Simulation.evaluateGeneration(mathlings, bound, vectors, null, settings);
+				
+				if (i % this.migrationInterval == 0)
+					this.migrate(island, mathlings, settings.selection.getParents());
+				
+				if (i % checkpointInterval == 0)
+				{
+					final long t1 = System.nanoTime();
+					this.offerChampion(Simulation.findBest(mathlings));
+					saved.submitPopulation(PopulationCheckpoint.of(mathlings, i, island.random.getState()));
+					
+					if (island.index == 0)
+					{
+						final Mathling best = this.champion.get();
+						
+						System.out.println("" + i + "\t" + best.getAccuracy());
+						Simulation.saveProgress(best, null, checkpointer);
+					}
+					
+					metrics.record(Phase.CHECKPOINT, System.nanoTime() - t1);
+				}
+			}
+			
+			vectors = Simulation.repopulateMathlings(mathlings, vectors, i, settings);
+			bound = Simulation.parentBound(mathlings, settings);
+			metrics.endGeneration(mathlings);
+		}
+		
+		// Repopulating sorted the parents first, and left the rest unevaluated
+		this.offerChampion(mathlings[0]);
+		MathlingMutator.useRandom(null);
+		
+		return;
+	}
+	
+	/**
+	 * @return	The population an island starts from: the founders for the
+	 * 			first island, copies of them for the rest, or null if there
+	 * 			are none, for the island to generate its own.
+	 */
+	private Mathling[] populate(Island island, Mathling[] founders)
+	{
+		if (founders == null)
+			return null;
+		
+		if (island.index == 0)
+			return founders;
+		
+		final Mathling[] copies = new Mathling[founders.length];
+		for (int i = 0; i < copies.length; i++)
+			copies[i] = founders[i].copy();
+		
+		return copies;
+	}
+	
+	/**
+	 * Sends copies of an island's best mathlings to its neighbours, then
+	 * takes in every mathling which has arrived from them, in place of its
+	 * worse half. Migrants keep their accuracies, as every island tests
+	 * against the same samples. At most half the population is replaced,
+	 * and the mathlings about to become parents never are.
+	 * 
+	 * @param island	The island migrating.
+	 * @param mathlings	Its population, just evaluated.
+	 * @param parents	How many parents it keeps each generation.
+	 */
+	private void migrate(Island island, Mathling[] mathlings, int parents)
+	{
+		final int n = this.islands.length;
+		
+		Selection.sortBest(mathlings, this.migrants);
+		this.offerChampion(mathlings[0]);
+		
+		if (n > 1)
+		{
+			
+			switch (this.topology)
+			{
+				case RING:
+					this.send(mathlings, this.islands[(island.index + 1) % n]);
+					break;
+				case RANDOM:
+					int to = (int) (island.random.nextDouble() * (n - 1));
+					if (to >= island.index)
+						to++;
+					
+					this.send(mathlings, this.islands[to]);
+					break;
+				case FULL:
+					for (Island other : this.islands)
+					{
+						if (other != island)
+							this.send(mathlings, other);
+					}
+					break;
+			}
+			
+			final int lowest = Math.max(parents, mathlings.length / 2);
+			Selection.partition(mathlings, lowest);
+			
+			int slot = mathlings.length - 1;
+			Mathling arrival;
+			
+			// Everything which arrived is taken off the queue, even when
+			// there's no room left for it, so none of it goes stale
+			while ((arrival = island.arrivals.poll()) != null)
+			{
+				if (slot >= lowest)
+					mathlings[slot--] = arrival;
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Sends copies of the best, sorted, mathlings to another island.
+	 * Mathlings rejected by early abort have no exact accuracy, so they're
+	 * never sent.
+	 */
+	private void send(Mathling[] sorted, Island to)
+	{
+		final int count = Math.min(this.migrants, sorted.length);
+		
+		for (int i = 0; i < count; i++)
+		{
+			if (!sorted[i].isRejected())
+				to.arrivals.offer(sorted[i].copy());
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Makes a copy of a mathling the champion, if it's better than the
+	 * current one.
+	 */
+	private void offerChampion(Mathling candidate)
+	{
+		Mathling current = this.champion.get();
+		
+		if (current != null && MathlingComparator.comparator.compare(candidate, current) >= 0)
+			return;
+		
+		final Mathling copy = candidate.copy();
+		
+		while (!this.champion.compareAndSet(current, copy))
+		{
+			current = this.champion.get();
+			
+			if (MathlingComparator.comparator.compare(copy, current) >= 0)
+				return;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * What an island shares with the others: its random numbers, which
+	 * only its own thread draws from otherwise, and the mathlings on
+	 * their way to it.
+	 */
+	private static class Island
+	{
+		final int index;
+		final MathlingRandom random;
+		final ConcurrentLinkedQueue<Mathling> arrivals = new ConcurrentLinkedQueue<Mathling>();
+		
+		Island(int index, MathlingRandom random)
+		{
+			this.index = index;
+			this.random = random;
+		}
+	}
+}
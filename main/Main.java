@@ -1,5 +1,18 @@
 package main;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import mathling.ConstantOptimizer;
+import mathling.EvaluationWorker;
+import mathling.ExpressionGenerator;
+import mathling.MathlingMutator;
+import mathling.MathlingSaver;
+import mathling.SampleOrder;
+import mathling.Selection;
+
 public class Main
 {
 	/**
@@ -47,18 +60,201 @@ public class Main
 			return -1;
 	}
 	
+	/**
+	 * Parses a comma-separated list of numbers, such as "70,20,5,1,1".
+	 * 
+	 * @param list	The list to parse.
+	 * @return		The numbers, in order.
+	 */
+	private static double[] parseRatios(String list)
+	{
+		final String[] parts = list.split(",");
+		final double[] ratios = new double[parts.length];
+		
+		for (int i = 0; i < parts.length; i++)
+			ratios[i] = Double.parseDouble(parts[i].trim());
+		
+		return ratios;
+	}
+	
+	/**
+	 * Parses a comma-separated list of addresses, such as
+	 * "localhost:7001,10.0.0.2:7001".
+	 * 
+	 * @param list	The list to parse.
+	 * @return		The addresses, in order.
+	 */
+	private static List<InetSocketAddress> parseAddresses(String list)
+	{
+		final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		
+		for (String part : list.split(","))
+		{
+			final int colon = part.lastIndexOf(':');
+			
+			addresses.add(new InetSocketAddress(part.substring(0, colon).trim(),
+					Integer.parseInt(part.substring(colon + 1).trim())));
+		}
+		
+		return addresses;
+	}
+	
 	/**
 	 * Available arguments are:
 	 * <pre>
-	 * --load {@code <file name>}: loads a simulation from a saved Mathling
+	 * --load {@code <file name>}: resumes a saved population, or starts from a saved Mathling; with --islands, each island resumes from its own file, such as population-0.mth
+	 * --migrate {@code <file name>}: rewrites an old serialized Mathling in the binary format, then exits
+	 * --threads {@code <count>}: calculates accuracies on this many threads
+	 * --worker {@code <port>}: calculates accuracies for coordinators connecting to this port, instead of evolving
+	 * --workers {@code <host:port,...>}: calculates accuracies on these workers
+	 * --islands {@code <count>}: evolves this many populations at once, one per thread
+	 * --migration-interval {@code <generations>}: how often islands trade mathlings (default 50)
+	 * --migrants {@code <count>}: how many of its best an island sends each neighbour (default 2)
+	 * --topology {@code <topology>}: ring, random, or full, for which islands are neighbours
+	 * --population {@code <size>}: how many mathlings a new population has (default 100)
+	 * --selection {@code <strategy>}: truncation, tournament, or mu_plus_lambda
+	 * --ratios {@code <shares>}: comma-separated shares of each parent's children, then survivors and newcomers (default 70,20,5,1,1)
+	 * --tournament-size {@code <count>}: how many mathlings each tournament draws (default 4)
+	 * --early-abort: stops evaluating mathlings which can't become parents (no effect with tournaments)
+	 * --no-rewrite: leaves elites' trees as they evolved, rather than rewriting them smaller
+	 * --arena: keeps the population in expression arenas, for very large populations
+	 * --off-heap: keeps those arenas in direct memory, outside the heap
+	 * --optimize-every {@code <generations>}: how often to tune parents' constants, 0 for never (default 10)
+	 * --optimize-steps {@code <steps>}: the most steps each tuning tries (default 20)
+	 * --sample-order {@code <order>}: sequential, strided, or coarse_to_fine
+	 * --max-size {@code <nodes>}: the most nodes a generated or mutated tree may have (default 1024)
+	 * --max-depth {@code <levels>}: the most levels a generated or mutated tree may have (default 64)
+	 * --init {@code <method>}: grow, full, or ramped, for a new simulation's first population
+	 * --cache {@code <size>}: remembers this many accuracies, 0 for none
+	 * --node-vectors {@code <count>}: holds this many elite node vectors, 0 for none
+	 * --metrics {@code <file>}: appends phase timings and throughput to this file
+	 * --metrics-interval {@code <generations>}: how often to report metrics (default 1000)
 	 * </pre>
+	 * Without {@code --load}, a new simulation is started.
 	 * @param args	The arguments to parse.
 	 * 
 	 * @see main.Simulation
 	 */
 	private static void parseInputs(String[] args)
 	{
-		final int loadFile = getArgPosSafe(args, "--load");
+		final int loadFile = getArgPosSafe(args, "--load"),
+				  migrate  = getArgPosSafe(args, "--migrate"),
+				  threads  = getArgPosSafe(args, "--threads"),
+				  worker   = getArgPosSafe(args, "--worker"),
+				  workers  = getArgPosSafe(args, "--workers"),
+				  islands  = getArgPosSafe(args, "--islands"),
+				  exchange = getArgPosSafe(args, "--migration-interval"),
+				  migrants = getArgPosSafe(args, "--migrants"),
+				  topology = getArgPosSafe(args, "--topology"),
+				  size     = getArgPosSafe(args, "--population"),
+				  select   = getArgPosSafe(args, "--selection"),
+				  ratios   = getArgPosSafe(args, "--ratios"),
+				  rounds   = getArgPosSafe(args, "--tournament-size"),
+				  tune     = getArgPosSafe(args, "--optimize-every"),
+				  steps    = getArgPosSafe(args, "--optimize-steps"),
+				  order    = getArgPosSafe(args, "--sample-order"),
+				  maxSize  = getArgPosSafe(args, "--max-size"),
+				  maxDepth = getArgPosSafe(args, "--max-depth"),
+				  init     = getArgPosSafe(args, "--init"),
+				  cache    = getArgPosSafe(args, "--cache"),
+				  vectors  = getArgPosSafe(args, "--node-vectors"),
+				  metrics  = getArgPosSafe(args, "--metrics"),
+				  interval = getArgPosSafe(args, "--metrics-interval");
+		
+		if (migrate != -1)
+		{
+			try
+			{
+				if (MathlingSaver.migrate(args[migrate + 1]))
+					System.out.println("Migrated " + args[migrate + 1]);
+				else
+					System.out.println(args[migrate + 1] + " is already in the binary format");
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			
+			return;
+		}
+		
+		if (worker != -1)
+		{
+			try
+			{
+				final EvaluationWorker w = new EvaluationWorker(Integer.parseInt(args[worker + 1]),
+						(threads != -1)? Integer.parseInt(args[threads + 1])
+									   : Runtime.getRuntime().availableProcessors());
+				
+				System.out.println("Evaluating for coordinators on port " + w.getPort());
+				w.run();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			
+			return;
+		}
+		
+		if (threads != -1)
+			Simulation.setThreads(Integer.parseInt(args[threads + 1]));
+		
+		if (workers != -1)
+			Simulation.setWorkers(parseAddresses(args[workers + 1]));
+		
+		if (islands != -1)
+			Simulation.setIslands(Integer.parseInt(args[islands + 1]),
+					(exchange != -1)? Integer.parseInt(args[exchange + 1]) : 50,
+					(migrants != -1)? Integer.parseInt(args[migrants + 1]) : 2,
+					(topology != -1)? IslandModel.Topology.valueOf(args[topology + 1].toUpperCase())
+									: IslandModel.Topology.RING);
+		
+		if (size != -1)
+			Simulation.setPopulationSize(Integer.parseInt(args[size + 1]));
+		
+		if (select != -1 || ratios != -1 || rounds != -1)
+			Simulation.setSelection(new Selection(
+					(select != -1)? Selection.Strategy.valueOf(args[select + 1].toUpperCase())
+								  : Selection.Strategy.TRUNCATION,
+					(ratios != -1)? parseRatios(args[ratios + 1]) : new double[] {70, 20, 5, 1, 1},
+					(rounds != -1)? Integer.parseInt(args[rounds + 1]) : 4));
+		
+		if (getArgPos(args, "--early-abort") != -1)
+			Simulation.setEarlyAbort(true);
+		
+		if (getArgPos(args, "--no-rewrite") != -1)
+			Simulation.setRewriteElites(false);
+		
+		if (getArgPos(args, "--arena") != -1 || getArgPos(args, "--off-heap") != -1)
+			Simulation.setArena(true, getArgPos(args, "--off-heap") != -1);
+		
+		if (tune != -1 || steps != -1)
+			Simulation.setConstantOptimization(
+					(tune != -1)? Integer.parseInt(args[tune + 1]) : 10,
+					new ConstantOptimizer((steps != -1)? Integer.parseInt(args[steps + 1]) : 20));
+		
+		if (order != -1)
+			Simulation.setSampleOrder(SampleOrder.valueOf(args[order + 1].toUpperCase()));
+		
+		if (maxSize != -1 || maxDepth != -1)
+			MathlingMutator.setTreeLimits(
+					(maxSize != -1)? Integer.parseInt(args[maxSize + 1]) : MathlingMutator.getMaxTreeSize(),
+					(maxDepth != -1)? Integer.parseInt(args[maxDepth + 1]) : MathlingMutator.getMaxTreeDepth());
+		
+		if (init != -1)
+			Simulation.setInitMethod(ExpressionGenerator.Method.valueOf(args[init + 1].toUpperCase()));
+		
+		if (cache != -1)
+			Simulation.setFitnessCacheSize(Integer.parseInt(args[cache + 1]));
+		
+		if (vectors != -1)
+			Simulation.setNodeVectorCapacity(Integer.parseInt(args[vectors + 1]));
+		
+		if (metrics != -1 || interval != -1)
+			Simulation.setMetrics(
+					(interval != -1)? Integer.parseInt(args[interval + 1]) : 1000,
+					(metrics != -1)? args[metrics + 1] : null);
 		
 		if (loadFile != -1)
 		{
@@ -66,6 +262,7 @@ public class Main
 			return;
 		}
 		
+		Simulation.runNewSimulation();
 		return;
 	}
 	public static void main(String[] args)
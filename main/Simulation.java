@@ -1,17 +1,31 @@
 package main;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
-import lambdaType.Computable;
+import expression.Expression;
+import mathling.ArenaPopulation;
+import mathling.ConstantOptimizer;
+import mathling.ExpressionGenerator;
+import mathling.FitnessCache;
 import mathling.Mathling;
 import mathling.MathlingComparator;
 import mathling.MathlingMutator;
 import mathling.MathlingSaver;
-import transpile.ToJava;
-import transpile.ToPython;
+import mathling.NodeVectorCache;
+import mathling.PopulationCheckpoint;
+import mathling.RemoteEvaluator;
+import mathling.SampleOrder;
+import mathling.Selection;
+import mathling.TargetSamples;
+import metrics.Phase;
+import metrics.SimulationMetrics;
 
 /**
  * Handles the overall structure of the simulation, such as generating
@@ -21,9 +35,64 @@ import transpile.ToPython;
  */
 public class Simulation
 {
-	private static long thunkTime = 0,
-						collapseTime = 0;
-
+	// Phase timings and throughput, see setMetrics()
+	private static SimulationMetrics metrics = new SimulationMetrics(1000, null);
+	
+	// Only used when evaluating on more than one thread
+	private static ForkJoinPool evaluationPool = null;
+	
+	// Only used when evaluating on worker processes
+	private static RemoteEvaluator remoteEvaluator = null;
+	
+	// Built from testFunction on first use, see getTargetSamples()
+	private static TargetSamples targetSamples = null;
+	private static SampleOrder sampleOrder = SampleOrder.SEQUENTIAL;
+	
+	// When early abort is on, mathlings which are certainly worse than
+	// the last generation's worst parent stop being evaluated
+	private static boolean earlyAbort = false;
+	private static double rejectionBound = Double.POSITIVE_INFINITY;
+	
+	// Remembers accuracies of recently seen expressions; null when off
+	private static FitnessCache fitnessCache = new FitnessCache(1024);
+	
+	// Node outputs of the last generation's elites, so that their children
+	// can be evaluated incrementally; null when off or not yet built
+	private static int nodeVectorCapacity = 2048;
+	private static NodeVectorCache parentVectors = null;
+	
+	// Whether elites are rewritten before they become parents
+	private static boolean rewriteElites = true;
+	
+	// How often the parents' constants are tuned, in generations, and by
+	// what; 0 when off. The simulation's own population counts its
+	// generations here, see repopulateMathlings()
+	private static int optimizationInterval = 10;
+	private static ConstantOptimizer constantOptimizer = new ConstantOptimizer();
+	private static long generation = 0;
+	
+	// How a new simulation's first population is generated, and how deep
+	// its trees may be
+	private static ExpressionGenerator.Method initMethod = ExpressionGenerator.Method.GROW;
+	private static final int initDepth = 6;
+	
+	// How many mathlings a new population has, and how each generation's
+	// parents are picked and their population refilled
+	private static int populationSize = 100;
+	private static Selection selection = new Selection();
+	
+	// Whether the population is kept in expression arenas, and whether
+	// those are off the heap, see setArena()
+	private static boolean arena = false,
+						   arenaOffHeap = false;
+	
+	// How many populations evolve side by side, and how they trade
+	// mathlings, see setIslands()
+	private static int islands = 1,
+					   migrationInterval = 50,
+					   migrants = 2;
+	private static IslandModel.Topology topology = IslandModel.Topology.RING;
+	
 	/**
 	* This contains the function which the simulation will attempt
 	* to approximate. The results of this function will be tested
@@ -32,66 +101,644 @@ public class Simulation
 	* 
 	* @param input	The number to pass to the inner function.
 	* @return		The inner function's results.
-	* @see			#calculateAccuracies(Mathling[])
+	* @see			#getTargetSamples()
 	*/
 	private static double testFunction(double input)
 	{
 		return Math.sin(Math.toRadians(input));
 	}
 	
+	/**
+	 * The results of {@link #testFunction(double)} across the whole
+	 * test range. These are only calculated once, and then again
+	 * if the sample order ever changes.
+	 * 
+	 * @return	The samples to test mathlings against.
+	 * @see mathling.TargetSamples
+	 */
+	public static synchronized TargetSamples getTargetSamples()
+	{
+		if (targetSamples == null || targetSamples.getOrder() != sampleOrder)
+			targetSamples = new TargetSamples((x) -> testFunction(x), sampleOrder);
+		
+		return targetSamples;
+	}
+	
+	/**
+	 * Sets the order in which samples are tested. This matters most with
+	 * early abort, where spreading the first samples across the whole
+	 * range lets bad mathlings be rejected sooner.
+	 * 
+	 * @param order	The order to test samples in.
+	 * @see #setEarlyAbort(boolean)
+	 */
+	public static synchronized void setSampleOrder(SampleOrder order)
+	{
+		sampleOrder = order;
+		return;
+	}
+	
+	/**
+	 * Turns early abort on or off. With it on, a mathling stops being
+	 * evaluated as soon as it's certain to be worse than the worst of the
+	 * parents just kept, as long as the selection always makes the best
+	 * mathlings the next parents. Those whose results can be bounded too
+	 * far from the targets are rejected before any samples are tested
+	 * at all.
+	 * <br><br>
+	 * 
+	 * Tournaments can pick any mathling as a parent, and need to know
+	 * exactly how good each one is, so with tournament selection nothing
+	 * is ever rejected and this has no effect.
+	 * 
+	 * @param enabled	Whether to stop evaluating hopeless mathlings early.
+	 * @see mathling.Mathling#calculateAccuracy(TargetSamples, double)
+	 * @see mathling.Selection#boundsParents()
+	 */
+	public static synchronized void setEarlyAbort(boolean enabled)
+	{
+		earlyAbort = enabled;
+		return;
+	}
+	
+	/**
+	 * Turns rewriting elites on or off. With it on, which is the default,
+	 * the three best mathlings are rewritten into smaller trees before
+	 * they become parents. A rewritten tree is only kept if it's at least
+	 * as accurate, which costs one full evaluation per new rewrite.
+	 * 
+	 * @param enabled	Whether to rewrite elites.
+	 * @see mathling.Mathling#rewrite(TargetSamples)
+	 * @see expression.Simplifier#rewrite(Expression)
+	 */
+	public static synchronized void setRewriteElites(boolean enabled)
+	{
+		rewriteElites = enabled;
+		return;
+	}
+	
+	/**
+	 * Keeps the population in a pair of {@code ExpressionArena}s instead of
+	 * as {@code Mathling}s, for populations of hundreds of thousands or
+	 * more. Trees are evaluated, mutated and even generated right in the
+	 * arenas, without an object per node, so all evolving them leaves the
+	 * garbage collector is a few small scratch arrays per mutation.
+	 * <br><br>
+	 * 
+	 * Selection, early abort, threads, metrics and checkpoints work just
+	 * as they do otherwise. The fitness cache, node vectors, rewriting and
+	 * tuning of elites, worker processes and islands don't apply, and are
+	 * left unused.
+	 * 
+	 * @param enabled	Whether to keep the population in arenas.
+	 * @param offHeap	Whether to keep the arenas in direct memory.
+	 * @see mathling.ArenaPopulation
+	 */
+	public static synchronized void setArena(boolean enabled, boolean offHeap)
+	{
+		arena = enabled;
+		arenaOffHeap = offHeap;
+		
+		return;
+	}
+	
+	/**
+	 * Sets how often the parents' constants are fitted to the samples,
+	 * and how. With it on, which is the default,
+	 * the parents are tuned every 10 generations, just before they have
+	 * their children, so that the children inherit the tuned constants.
+	 * Only tuning which makes a parent more accurate is kept.
+	 * 
+	 * @param interval	How many generations between tunings, or 0 to
+	 * 					leave constants to mutation alone.
+	 * @param optimizer	What tunes the constants.
+	 * @see mathling.ConstantOptimizer
+	 */
+	public static synchronized void setConstantOptimization(int interval, ConstantOptimizer optimizer)
+	{
+		if (interval < 0)
+			throw new IllegalArgumentException("Need an interval of at least 0, got " + interval);
+		
+		optimizationInterval = interval;
+		constantOptimizer = optimizer;
+		
+		return;
+	}
+	
+	/**
+	 * Sets how a new simulation's first population is generated. GROW,
+	 * the default, is how every new {@code Mathling} is made; FULL and
+	 * RAMPED start from trees up to 6 levels deep instead.
+	 * 
+	 * @param method	How to generate the first population.
+	 * @see mathling.ExpressionGenerator
+	 */
+	public static synchronized void setInitMethod(ExpressionGenerator.Method method)
+	{
+		initMethod = method;
+		return;
+	}
+	
+	/**
+	 * Sets how many mathlings a new population has. A population loaded
+	 * from a checkpoint keeps its own size.
+	 * 
+	 * @param size	The population size, with room for more than just the
+	 * 				parents.
+	 * @see #setSelection(Selection)
+	 */
+	public static synchronized void setPopulationSize(int size)
+	{
+		if (size <= selection.getParents())
+			throw new IllegalArgumentException("Need room for more than " + selection.getParents()
+					+ " parents, got a population of " + size);
+		
+		populationSize = size;
+		return;
+	}
+	
+	/**
+	 * Sets how each generation's parents are picked, and what the rest of
+	 * the population is replaced with. The default is the original
+	 * scheme, where the best three have 70%, 20% and 5% of the children.
+	 * 
+	 * @param s	The selection to use.
+	 * @see mathling.Selection
+	 */
+	public static synchronized void setSelection(Selection s)
+	{
+		if (populationSize <= s.getParents())
+			throw new IllegalArgumentException("Need room for more than " + s.getParents()
+					+ " parents, got a population of " + populationSize);
+		
+		selection = s;
+		return;
+	}
+	
+	/**
+	 * @return	How many mathlings a new population has.
+	 */
+	public static synchronized int getPopulationSize()
+	{
+		return populationSize;
+	}
+	
+	/**
+	 * @return	How each generation's parents are picked.
+	 */
+	public static synchronized Selection getSelection()
+	{
+		return selection;
+	}
+	
+	/**
+	 * Sets how many populations evolve at once, each on its own thread
+	 * with its own random numbers, and how they trade their best
+	 * mathlings. With a single island, which is the default, there's
+	 * just the one population.
+	 * 
+	 * @param count		How many islands, at least 1.
+	 * @param interval	How many generations between migrations, at
+	 * 					least 1.
+	 * @param sent		How many of its best mathlings an island sends to
+	 * 					each neighbour, at least 1.
+	 * @param links		Which islands are each other's neighbours.
+	 * @see main.IslandModel
+	 */
+	public static synchronized void setIslands(int count, int interval, int sent, IslandModel.Topology links)
+	{
+		if (count < 1)
+			throw new IllegalArgumentException("Need at least one island, got " + count);
+		if (interval < 1 || sent < 1)
+			throw new IllegalArgumentException("Need a migration interval and migrant count of at least 1, got "
+					+ interval + " and " + sent);
+		
+		islands = count;
+		migrationInterval = interval;
+		migrants = sent;
+		topology = links;
+		
+		return;
+	}
+	
+	/**
+	 * Sets how many threads to calculate accuracies on. With a single
+	 * thread, mathlings are evaluated one after another on the
+	 * simulation's own thread. Otherwise, the population is split up
+	 * across a pool of that many threads. Both give the same results.
+	 * 
+	 * @param threads	The number of threads to use, at least 1.
+	 * @see #calculateAccuracies(Mathling[])
+	 */
+	public static synchronized void setThreads(int threads)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, got " + threads);
+		
+		if (evaluationPool != null)
+			evaluationPool.shutdown();
+		
+		evaluationPool = (threads > 1)? new ForkJoinPool(threads) : null;
+		
+		return;
+	}
+	
+	/**
+	 * Sets worker processes to calculate accuracies on, in place of this
+	 * one. Each must be running {@code EvaluationWorker}, as started with
+	 * "--worker {@code <port>}". Accuracies come out exactly the same as
+	 * they would here, and if every worker is lost, they're calculated
+	 * here again.
+	 * 
+	 * @param workers	Where the workers are listening, or an empty list
+	 * 					to calculate accuracies here.
+	 * @see mathling.RemoteEvaluator
+	 */
+	public static synchronized void setWorkers(List<InetSocketAddress> workers)
+	{
+		if (remoteEvaluator != null)
+			remoteEvaluator.close();
+		
+		remoteEvaluator = workers.isEmpty()? null : new RemoteEvaluator(workers);
+		return;
+	}
+	
+	/**
+	 * Sets how many accuracies to remember between generations, so
+	 * that mathlings identical to one seen recently aren't evaluated
+	 * again.
+	 * 
+	 * @param size	The most accuracies to remember, or 0 to turn
+	 * 				remembering off.
+	 * @see mathling.FitnessCache
+	 */
+	public static synchronized void setFitnessCacheSize(int size)
+	{
+		fitnessCache = (size > 0)? new FitnessCache(size) : null;
+		return;
+	}
+	
+	/**
+	 * Sets how many node vectors to hold for the elites between
+	 * generations. Their children share most of their nodes, so only the
+	 * rest need to be evaluated. Each vector takes about nine bytes per
+	 * sample.
+	 * 
+	 * @param capacity	The most node vectors to hold, or 0 to always
+	 * 					evaluate mathlings whole.
+	 * @see mathling.NodeVectorCache
+	 */
+	public static synchronized void setNodeVectorCapacity(int capacity)
+	{
+		nodeVectorCapacity = Math.max(0, capacity);
+		parentVectors = null;
+		return;
+	}
+	
+	/**
+	 * Sets how often phase timings and throughput are summed up, and
+	 * where to write them. They can always be read over JMX as well.
+	 * 
+	 * @param interval	How many generations to sum up in each report.
+	 * @param path		The file to append a line of JSON to for each
+	 * 					report, or null for none.
+	 * @see metrics.SimulationMetrics
+	 */
+	public static synchronized void setMetrics(int interval, String path)
+	{
+		metrics = new SimulationMetrics(interval, (path == null)? null : Paths.get(path));
+		return;
+	}
+	
+	/**
+	 * @return	The simulation's phase timings and throughput.
+	 */
+	public static synchronized SimulationMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Forgets everything the simulation's own population carries from one
+	 * generation to the next: the bound for early abort, the elites' node
+	 * vectors, the count of generations which decides when constants are
+	 * tuned, and every remembered accuracy. Settings are kept, so the next
+	 * generation runs just as a new simulation's first would.
+	 * 
+	 * @see #runGeneration(Mathling[])
+	 */
+	public static synchronized void resetState()
+	{
+		rejectionBound = Double.POSITIVE_INFINITY;
+		parentVectors = null;
+		generation = 0;
+		
+		if (fitnessCache != null)
+			fitnessCache.clear();
+		
+		return;
+	}
+	
+	/**
+	 * @return	The worker processes' evaluator, or null if accuracies are
+	 * 			calculated here.
+	 */
+	private static synchronized RemoteEvaluator getRemoteEvaluator()
+	{
+		return remoteEvaluator;
+	}
+	
+	/**
+	 * @return	The cache of remembered accuracies, or null if it's off.
+	 */
+	public static synchronized FitnessCache getFitnessCache()
+	{
+		return fitnessCache;
+	}
+	
+	/**
+	 * @return	Everything a generation reads from the simulation's
+	 * 			settings, read at once. An island reads these once and
+	 * 			keeps them, so it never waits on the others for them.
+	 */
+	static synchronized Settings settings()
+	{
+		return new Settings();
+	}
+	
+	/**
+	 * Updates a single mathling's accuracy, going through the fitness
+	 * cache if there is one.
+	 * 
+	 * @param m			The mathling to update.
+	 * @param samples	The samples to test against.
+	 * @param bound		The accuracy past which the mathling may be rejected.
+	 * @param cache		The fitness cache, or null.
+	 * @param vectors	The elites' node vectors, or null.
+	 */
+	private static void calculateAccuracy(Mathling m,
+											TargetSamples samples,
+											double bound,
+											FitnessCache cache,
+											NodeVectorCache vectors)
+	{
+		if (cache != null)
+			cache.calculateAccuracy(m, samples, bound, vectors);
+		else
+			m.calculateAccuracy(samples, bound, vectors);
+		
+		return;
+	}
+	
 	/**
 	 * Updates all of the inputed mathlings' internal
-	 * accuracy scores.
+	 * accuracy scores, in parallel if more than one thread
+	 * has been set. With early abort on, hopeless mathlings
+	 * are rejected rather than fully evaluated.
 	 * @param mathlings	The mathlings to update.
-	 * @see mathling.Mathling#calculateAccuracy(Computable)
+	 * @see mathling.Mathling#calculateAccuracy(TargetSamples, double)
+	 * @see #setThreads(int)
+	 * @see #setWorkers(List)
+	 * @see #setEarlyAbort(boolean)
+	 * @see #setFitnessCacheSize(int)
+	 * @see #setNodeVectorCapacity(int)
 	 */
 	private static void calculateAccuracies(Mathling[] mathlings)
 	{
-		long t1 = System.currentTimeMillis();
-		for (Mathling m : mathlings)
+		calculateAccuracies(mathlings, rejectionBound, parentVectors, evaluationPool, settings());
+		return;
+	}
+	
+	/**
+	 * Identical to {@link #calculateAccuracies(Mathling[])}, but for a
+	 * population other than the simulation's own, such as an island's.
+	 * 
+	 * @param mathlings		The mathlings to update.
+	 * @param rejectAbove	The accuracy past which they may be rejected, if
+	 * 						early abort is on.
+	 * @param vectors		Their parents' node vectors, or null.
+	 * @param pool			The threads to spread them across, or null for
+	 * 						the calling thread.
+	 * @param settings		The settings to evaluate with.
+	 */
+	private static void calculateAccuracies(Mathling[] mathlings,
+											double rejectAbove,
+											NodeVectorCache vectors,
+											ForkJoinPool pool,
+											Settings settings)
+	{
+		final TargetSamples samples = settings.samples;
+		final FitnessCache cache = settings.cache;
+		final double bound = settings.earlyAbort? rejectAbove : Double.POSITIVE_INFINITY;
+		final RemoteEvaluator remote = settings.remote;
+		
+		if (remote != null)
+		{
+			remote.calculateAccuracies(mathlings, samples, bound, cache);
+		}
+		else if (pool == null)
+		{
+			for (Mathling m : mathlings)
+			{
+				calculateAccuracy(m, samples, bound, cache, vectors);
+			}
+		}
+		else
 		{
-			m.calculateAccuracy((x) -> testFunction(x));
+			// A parallel stream run from inside a pool's task uses that pool
+			pool.submit(() -> Arrays.stream(mathlings)
+					.parallel()
+					.forEach((m) -> calculateAccuracy(m, samples, bound, cache, vectors)))
+				.join();
 		}
 		
-		long t2 = System.currentTimeMillis();
-		collapseTime += (t2 - t1);
+		return;
+	}
+	
+	/**
+	 * Picks out the parents, the best mathlings, and refills the rest of
+	 * the population as the selection says. By default:
+	 * 
+	 * The best one has 70% of the children
+	 * The second best one has 20%
+	 * The third best one has 5%
+	 * 
+	 * One in a hundred is a random mathling kept as it is
+	 * One in a hundred is newly generated
+	 * 
+	 * The parents are also marked as elites, so that long-lived ones
+	 * can be compiled for faster evaluation. They're kept as they are,
+	 * so the worst parent's accuracy becomes the next generation's bound
+	 * for early abort, unless the selection could still pick something
+	 * worse as a parent.
+	 * Their node vectors are held too, so that their children can be
+	 * evaluated incrementally. Unless turned off, they're rewritten first,
+	 * so their children start from trees without dead weight, and every
+	 * few generations their constants are tuned. Either can make a parent
+	 * more accurate, so the parents are put back in order afterwards.
+	 * 
+	 * @param mathlings	The mathling array to cull and repopulate
+	 * @see mathling.Selection
+	 * @see mathling.Mathling#markElite()
+	 * @see mathling.Mathling#rewrite(TargetSamples)
+	 * @see #setRewriteElites(boolean)
+	 * @see #setConstantOptimization(int, ConstantOptimizer)
+	 * @see mathling.NodeVectorCache
+	 */
+	public static void repopulateMathlings(Mathling[] mathlings)
+	{
+		final Settings settings = settings();
 		
-		//t1 = System.currentTimeMillis();
-		//for (Mathling m : mathlings)
-		//	m.calculateAccuracyThunklet((x) -> testFunction(x));
-		//t2 = System.currentTimeMillis();
-		//thunkTime += (t2 - t1);
+		parentVectors = repopulateMathlings(mathlings, parentVectors, generation++, settings);
+		rejectionBound = parentBound(mathlings, settings);
 		
 		return;
 	}
 	
 	/**
-	 * Sorts the mathlings from best to worst. Then:
-	 * 
-	 * Mutates the best one 70 times
-	 * Mutates the second best one 20 times
-	 * Mutates the third best one 5 times
+	 * Identical to {@link #repopulateMathlings(Mathling[])}, but for a
+	 * population other than the simulation's own, such as an island's.
+	 * Afterwards, {@link #parentBound(Mathling[], Settings)} is the
+	 * population's next bound for early abort.
 	 * 
-	 * Keeps one random mathling
-	 * Generates one new mathling
+	 * @param mathlings		The mathling array to cull and repopulate.
+	 * @param vectors		The node vectors held for the last parents, or
+	 * 						null.
+	 * @param generation	Which generation the population is on, which
+	 * 						decides whether its parents' constants are
+	 * 						tuned.
+	 * @param settings		The settings to repopulate with.
+	 * @return				The node vectors of the new parents, or null if
+	 * 						they're off.
+	 */
+	static NodeVectorCache repopulateMathlings(Mathling[] mathlings,
+												NodeVectorCache vectors,
+												long generation,
+												Settings settings)
+	{
+		final SimulationMetrics metrics = settings.metrics;
+		final Selection selection = settings.selection;
+		final int parents = selection.getParents();
+		
+		long t1 = System.nanoTime();
+		selection.selectParents(mathlings);
+		long t2 = System.nanoTime();
+		metrics.record(Phase.SORT, t2 - t1);
+		
+		t1 = t2;
+		
+		boolean rewritten = false;
+		
+		for (int i = 0; i < parents; i++)
+		{
+			if (settings.rewriteElites)
+				rewritten |= mathlings[i].rewrite(settings.samples);
+			
+			mathlings[i].markElite();
+		}
+		
+		// A kept rewrite is at least as accurate, but may now beat another
+		// parent, and the worst parent decides the next bound
+		if (rewritten)
+			Arrays.sort(mathlings, 0, parents, MathlingComparator.comparator);
+		
+		final long tuning = optimizeParents(mathlings, parents, generation, settings);
+		
+		final NodeVectorCache held = holdParentVectors(mathlings, parents, vectors, settings);
+		
+		selection.breed(mathlings);
+		
+		metrics.record(Phase.REPOPULATE, System.nanoTime() - t1 - tuning);
+		
+		return held;
+	}
+	
+	/**
+	 * Tunes the parents' constants, if it's time to, then puts them back
+	 * in order, as tuning can change which is best. Anything the parents
+	 * beat before tuning, they still beat.
 	 * 
-	 * @param mathlings	The mathling array to sort, cull, and repopulate
+	 * @param mathlings		The population, parents first.
+	 * @param parents		How many parents there are.
+	 * @param generation	Which generation the population is on.
+	 * @param settings		Decide how often and how to tune.
+	 * @return				How long tuning took, in nanoseconds.
+	 * @see mathling.ConstantOptimizer#optimize(Mathling, TargetSamples)
 	 */
-	private static void repopulateMathlings(Mathling[] mathlings)
+	private static long optimizeParents(Mathling[] mathlings, int parents, long generation, Settings settings)
 	{
-		Arrays.sort(mathlings, MathlingComparator.comparator);
+		final int interval = settings.optimizationInterval;
+		final ConstantOptimizer optimizer = settings.optimizer;
+		
+		if (interval == 0 || generation % interval != 0)
+			return 0;
+		
+		final long t1 = System.nanoTime();
+		final TargetSamples samples = settings.samples;
+		boolean improved = false;
 		
-		mathlings[3] = mathlings[(int) MathlingMutator.randMinMax(3, 100)];
-		mathlings[4] = new Mathling();
+		for (int i = 0; i < parents; i++)
+			improved |= optimizer.optimize(mathlings[i], samples);
 		
-		for (int i = 5; i < 75; i++)
-			mathlings[i] = mathlings[0].getMutation();
+		if (improved)
+			Arrays.sort(mathlings, 0, parents, MathlingComparator.comparator);
 		
-		for (int i = 75; i < 95; i++)
-			mathlings[i] = mathlings[1].getMutation();
+		final long elapsed = System.nanoTime() - t1;
+		settings.metrics.record(Phase.OPTIMIZE, elapsed);
 		
-		for (int i = 95; i < 100; i++)
-			mathlings[i] = mathlings[2].getMutation();
+		return elapsed;
+	}
+	
+	/**
+	 * @param mathlings	A population just repopulated.
+	 * @param settings	The settings it was repopulated with.
+	 * @return			Its worst parent's accuracy, past which nothing can
+	 * 					become a parent next generation, or infinity if
+	 * 					the selection could pick anything.
+	 * @see #setEarlyAbort(boolean)
+	 * @see mathling.Selection#boundsParents()
+	 */
+	static double parentBound(Mathling[] mathlings, Settings settings)
+	{
+		final Selection selection = settings.selection;
+		
+		if (!selection.boundsParents())
+			return Double.POSITIVE_INFINITY;
+		
+		return mathlings[selection.getParents() - 1].getAccuracy();
+	}
+	
+	/**
+	 * Rebuilds the held node vectors from the best mathlings, which
+	 * are about to become every child's parents. Nothing is locked while
+	 * they're built, so islands build theirs side by side.
+	 * 
+	 * @param mathlings	The population, parents first.
+	 * @param count		How many parents there are.
+	 * @param previous	The node vectors held for the last parents, whose
+	 * 					columns can be reused, or null.
+	 * @param settings	Decide the samples and how many vectors to hold.
+	 * @return			The new parents' node vectors, or null if they're
+	 * 					off.
+	 * @see #setNodeVectorCapacity(int)
+	 */
+	private static NodeVectorCache holdParentVectors(Mathling[] mathlings,
+														int count,
+														NodeVectorCache previous,
+														Settings settings)
+	{
+		if (settings.nodeVectorCapacity == 0)
+			return null;
+		
+		final Expression[] parents = new Expression[count];
+		for (int i = 0; i < count; i++)
+			parents[i] = mathlings[i].getExpression();
+		
+		return new NodeVectorCache(
+				settings.samples,
+				parents,
+				settings.nodeVectorCapacity,
+				previous);
 	}
 	
 	@SuppressWarnings("unused")
@@ -108,7 +755,7 @@ public class Simulation
 		while (true)
 		{
 			for (Mathling m : mathlings)
-				m.calculateAccuracy((x) -> testFunction(x));
+				m.calculateAccuracy(getTargetSamples());
 			
 			Arrays.sort(mathlings, MathlingComparator.comparator);
 			
@@ -118,59 +765,106 @@ public class Simulation
 	}
 	
 	/**
-	 * Writes an {@code Expression} (which has been processed into
-	 * a string) to a file.
-	 *  
-	 * @param accuracy	The average deviation of this expression from
-	 * 					the actual function.
-	 * @param results	The stringified expression.
+	 * Saves a {@code Mathling}'s progress and transpiles it to 
+	 * ASCII, Python, and Java. The saved {@code Mathling} is automatically
+	 * saved to "current.mth", and the population it came from, if given,
+	 * to "population.mth".
+	 * <br><br>
+	 * 
+	 * The files are written by a background {@code Checkpointer}, so this
+	 * only takes a snapshot and returns straight away.
 	 * 
-	 * @see				expression.Expression#print()
+	 * @param best			The {@code Mathling} to save.
+	 * @param population	The population to save, or null.
+	 * @param checkpointer	The writer to hand the snapshot to.
+	 * 
+	 * @see mathling.Mathling
+	 * @see mathling.PopulationCheckpoint
+	 * @see transpile.Transpiler
+	 * @see main.Checkpointer
 	 */
-	private static void writeResults(double accuracy, String results)
+	static void saveProgress(Mathling best, PopulationCheckpoint population, Checkpointer checkpointer)
 	{
-		String toWrite = "This function has an average error of ";
-		toWrite += accuracy + ":\n\n" + results;
-		
-		try
-		{
-			Files.write(Paths.get("result.txt"), toWrite.getBytes());
-		} 
-		catch (IOException e)
-		{
-			e.printStackTrace();
-		}
+		checkpointer.submit(best, population);
+		return;
 	}
 	
 	/**
-	 * Saves a {@code Mathling}'s progress and transpiles it to 
-	 * ASCII, Python, and Java. The saved {@code Mathling} is automatically
-	 * saved to "current.mth"
+	 * Calculates every mathling's accuracy, recording how long it took.
 	 * 
-	 * @param best	The {@code Mathling} to save.
+	 * @param mathlings	The population to evaluate.
+	 */
+	private static void evaluateGeneration(Mathling[] mathlings)
+	{
+		evaluateGeneration(mathlings, rejectionBound, parentVectors, evaluationPool, settings());
+		return;
+	}
+	
+	/**
+	 * Identical to {@link #evaluateGeneration(Mathling[])}, but for a
+	 * population other than the simulation's own, such as an island's.
 	 * 
-	 * @see mathling.Mathling
-	 * @see transpile.Transpiler
-	 * @see mathling.MathlingSaver
+	 * @param mathlings		The population to evaluate.
+	 * @param rejectAbove	The accuracy past which mathlings may be
+	 * 						rejected, if early abort is on.
+	 * @param vectors		Their parents' node vectors, or null.
+	 * @param pool			The threads to spread them across, or null for
+	 * 						the calling thread.
+	 * @param settings		The settings to evaluate with.
+	 * @see #calculateAccuracies(Mathling[], double, NodeVectorCache, ForkJoinPool, Settings)
 	 */
-	private static void saveProgress(Mathling best)
+	static void evaluateGeneration(Mathling[] mathlings,
+									double rejectAbove,
+									NodeVectorCache vectors,
+									ForkJoinPool pool,
+									Settings settings)
 	{
-		MathlingSaver.saveMathling(best, "current.mth");
-		writeResults(best.getAccuracy(), best.printExpression());
+		final SimulationMetrics metrics = settings.metrics;
 		
-		new ToPython().transpileToFile(
-				"output.py", 
-				best.getExpression());
-		new ToJava().transpileToFile(
-				"output.java",
-				best.getExpression());
+		final long t1 = System.nanoTime();
+		calculateAccuracies(mathlings, rejectAbove, vectors, pool, settings);
+		metrics.record(Phase.EVALUATE, System.nanoTime() - t1);
+		metrics.recordEvaluation(mathlings);
 		
 		return;
 	}
 	
+	/**
+	 * Runs a single generation: every mathling's accuracy is calculated,
+	 * and then the population is culled and repopulated.
+	 * 
+	 * @param mathlings	The population to evolve, in place.
+	 * @see #repopulateMathlings(Mathling[])
+	 */
+	public static void runGeneration(Mathling[] mathlings)
+	{
+		evaluateGeneration(mathlings);
+		repopulateMathlings(mathlings);
+		
+		return;
+	}
+	
+	/**
+	 * @return	The most accurate of the mathlings.
+	 */
+	static Mathling findBest(Mathling[] mathlings)
+	{
+		Mathling best = mathlings[0];
+		
+		for (Mathling m : mathlings)
+		{
+			if (MathlingComparator.comparator.compare(m, best) < 0)
+				best = m;
+		}
+		
+		return best;
+	}
+	
 	/**
 	 * Continues a simulation, given an array of {@code Mathling}s to
-	 * work with.
+	 * work with. Its progress can be followed through the metrics, and
+	 * the best mathling is saved every 1000 generations without
+	 * pausing evolution.
 	 * 
 	 * @param mathlings	The population to evolve.
 	 * 
@@ -178,16 +872,79 @@ public class Simulation
 	 */
 	public static void runSimulation(Mathling[] mathlings)
 	{
-		for (int i = 0; i < 1000000000; i++)
+		runSimulation(mathlings, 0, false);
+		return;
+	}
+	
+	/**
+	 * Continues a simulation from a given generation. Every 1000
+	 * generations, just after the population is evaluated, the best
+	 * mathling and the whole population are saved without pausing
+	 * evolution, along with the state of the random numbers.
+	 * <br><br>
+	 * 
+	 * With more than one island, every island starts from this
+	 * population instead, and saves its own.
+	 * 
+	 * @param mathlings		The population to evolve.
+	 * @param generation	The generation to start counting from.
+	 * @param evaluated		True if the population's accuracies are
+	 * 						already known, as when resuming from a
+	 * 						checkpoint, so the first evaluation is
+	 * 						skipped.
+	 * 
+	 * @see mathling.PopulationCheckpoint
+	 * @see main.IslandModel
+	 */
+	private static void runSimulation(Mathling[] mathlings, long generation, boolean evaluated)
+	{
+		if (islands > 1)
 		{
-			calculateAccuracies(mathlings);
-			repopulateMathlings(mathlings);
-			
-			if (i % 1000 == 0)
+			newIslandModel().run(mathlings, generation, evaluated);
+			return;
+		}
+		
+		if (arena)
+		{
+			runArenaSimulation(mathlings, generation, evaluated);
+			return;
+		}
+		
+		final SimulationMetrics metrics = getMetrics();
+		
+		final Checkpointer checkpointer = new Checkpointer();
+		
+		rejectionBound = Double.POSITIVE_INFINITY;
+		parentVectors = null;
+		Simulation.generation = generation;
+		metrics.register();
+		
+		for (long i = generation; i < 1000000000; i++)
+		{
+			if (evaluated)
+			{
+				evaluated = false;
+			}
+			else
 			{
-				System.out.println("" + i + "\t" + mathlings[0].getAccuracy());
-				saveProgress(mathlings[0]);
+				evaluateGeneration(mathlings);
+				
+				if (i % 1000 == 0)
+				{
+					final long t1 = System.nanoTime();
+					final Mathling best = findBest(mathlings);
+					
+					System.out.println("" + i + "\t" + best.getAccuracy());
+					
+					saveProgress(best,
+							PopulationCheckpoint.of(mathlings, i, MathlingMutator.getRandom().getState()),
+							checkpointer);
+					metrics.record(Phase.CHECKPOINT, System.nanoTime() - t1);
+				}
 			}
+			
+			repopulateMathlings(mathlings);
+			metrics.endGeneration(mathlings);
 		}
 		
 		System.out.println("Winner with " + mathlings[0].getAccuracy() + ":");
@@ -195,49 +952,207 @@ public class Simulation
 		
 		System.out.println(mathlings[0].getAccuracy());
 		
-		saveProgress(mathlings[0]);
+		saveProgress(mathlings[0], null, checkpointer);
+		checkpointer.close();
+		
+		return;
+	}
+	
+	/**
+	 * Identical to {@link #runSimulation(Mathling[], long, boolean)}, but
+	 * with the population kept in arenas. The best tree and the whole
+	 * population are only rebuilt as {@code Mathling}s to be saved.
+	 * 
+	 * @param mathlings		The population to evolve.
+	 * @param generation	The generation to start counting from.
+	 * @param evaluated		True if the population's accuracies are
+	 * 						already known.
+	 * 
+	 * @see #setArena(boolean, boolean)
+	 */
+	private static void runArenaSimulation(Mathling[] mathlings, long generation, boolean evaluated)
+	{
+		final SimulationMetrics metrics = getMetrics();
+		final Selection selection = getSelection();
+		final TargetSamples samples = getTargetSamples();
+		final ForkJoinPool pool;
+		final boolean abort;
+		
+		synchronized (Simulation.class)
+		{
+			pool = evaluationPool;
+			abort = earlyAbort;
+		}
+		
+		final Checkpointer checkpointer = new Checkpointer();
+		final ArenaPopulation population = new ArenaPopulation(mathlings, evaluated, arenaOffHeap);
+		double bound = Double.POSITIVE_INFINITY;
+		
+		metrics.register();
+		
+		for (long i = generation; i < 1000000000; i++)
+		{
+			if (evaluated)
+			{
+				evaluated = false;
+			}
+			else
+			{
+				long t1 = System.nanoTime();
+				population.calculateAccuracies(samples, abort? bound : Double.POSITIVE_INFINITY, pool);
+				metrics.record(Phase.EVALUATE, System.nanoTime() - t1);
+				metrics.recordEvaluation(population.getSamplesTested(),
+						population.getFaultedSamples(),
+						population.getEvaluations(),
+						0);
+				
+				if (i % 1000 == 0)
+				{
+					t1 = System.nanoTime();
+					final Mathling best = population.getBest();
+					
+					System.out.println("" + i + "\t" + best.getAccuracy());
+					
+					saveProgress(best,
+							PopulationCheckpoint.of(population.toMathlings(), i, MathlingMutator.getRandom().getState()),
+							checkpointer);
+					metrics.record(Phase.CHECKPOINT, System.nanoTime() - t1);
+				}
+			}
+			
+			final long t1 = System.nanoTime();
+			population.repopulate(selection);
+			metrics.record(Phase.REPOPULATE, System.nanoTime() - t1);
+			
+			bound = selection.boundsParents()?
+					population.getAccuracy(selection.getParents() - 1) : Double.POSITIVE_INFINITY;
+			metrics.endGeneration(population);
+		}
+		
+		final Mathling best = population.getBest();
+		
+		System.out.println("Winner with " + best.getAccuracy() + ":");
+		System.out.println(best.printExpression());
+		
+		saveProgress(best, null, checkpointer);
+		checkpointer.close();
 		
 		return;
 	}
 	
+	/**
+	 * @return	An island model set up as {@link #setIslands(int, int, int, IslandModel.Topology)}
+	 * 			last asked for.
+	 */
+	private static synchronized IslandModel newIslandModel()
+	{
+		return new IslandModel(islands, migrationInterval, migrants, topology);
+	}
+	
+	/**
+	 * @return	A new population of randomized {@code Mathling}s, as many
+	 * 			and generated as {@link #setPopulationSize(int)} and
+	 * 			{@link #setInitMethod(ExpressionGenerator.Method)} last
+	 * 			asked for.
+	 */
+	static Mathling[] newPopulation()
+	{
+		final Mathling[] mathlings = new Mathling[getPopulationSize()];
+		
+		for (int i = 0; i < mathlings.length; i++)
+			mathlings[i] = (initMethod == ExpressionGenerator.Method.GROW)?
+					new Mathling() : new Mathling(initMethod, initDepth);
+		
+		return mathlings;
+	}
+	
 	/**
 	 * Starts a simulation from scratch with randomized {@code Mathling}s.
+	 * With more than one island, each island generates its own.
 	 * 
 	 * @see	mathling.Mathling
 	 * @see #runSimulation(Mathling[])
+	 * @see #setInitMethod(ExpressionGenerator.Method)
+	 * @see #setIslands(int, int, int, IslandModel.Topology)
 	 */
 	public static void runNewSimulation()
 	{
-		Mathling[] mathlings = new Mathling[100];
-		for (int i = 0; i < 100; i++)
-			mathlings[i] = new Mathling();
+		if (islands > 1)
+		{
+			newIslandModel().run(null, 0, false);
+			return;
+		}
 		
-		runSimulation(mathlings);
+		runSimulation(newPopulation());
 		
 		return;
 	}
 	
 	/**
-	 * Loads a {@code Mathling} from a file, then evolves it in
-	 * a simulation. Useful for continuing where you left off in
-	 * long-term simulations.
+	 * Loads a saved simulation from a file, then evolves it. Useful for
+	 * continuing where you left off in long-term simulations.
+	 * <br><br>
 	 * 
-	 * @param name	The name of the serialized {@code Mathling} to load.
+	 * A population checkpoint ("population.mth") resumes exactly where it
+	 * was saved: the same population, generation and random numbers, and
+	 * none of its accuracies calculated again. A single saved
+	 * {@code Mathling} ("current.mth", in either format) seeds a new
+	 * population of itself and its mutations.
+	 * <br><br>
 	 * 
+	 * With more than one island, each island resumes from its own
+	 * checkpoint beside the named file, such as "population-0.mth", if
+	 * the first island's is there. Otherwise every island starts from the
+	 * named file.
+	 * 
+	 * @param name	The name of the saved population or {@code Mathling}.
+	 * 
+	 * @see mathling.PopulationCheckpoint#load(java.nio.file.Path)
 	 * @see	mathling.MathlingSaver#loadMathling(String)
 	 * @see mathling.Mathling
 	 * @see #runSimulation(Mathling[])
+	 * @see main.IslandModel#checkpointFile(Path, int)
 	 */
 	public static void loadSimulation(String name)
 	{
+		final PopulationCheckpoint checkpoint;
+		
+		try
+		{
+			final PopulationCheckpoint[] islandCheckpoints = loadIslandCheckpoints(Paths.get(name));
+			
+			if (islandCheckpoints != null)
+			{
+				newIslandModel().resume(islandCheckpoints);
+				return;
+			}
+			
+			checkpoint = PopulationCheckpoint.load(Paths.get(name));
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			System.out.println("Error loading population from " + name);
+			return;
+		}
+		
+		if (checkpoint != null)
+		{
+			MathlingMutator.getRandom().setState(checkpoint.getRandomState());
+			runSimulation(checkpoint.toMathlings(), checkpoint.getGeneration(), true);
+			
+			return;
+		}
+		
 		Mathling loaded = MathlingSaver.loadMathling(name);
 		
 		if (loaded != null)
 		{
-			Mathling[] mathlings = new Mathling[100];
+			Mathling[] mathlings = new Mathling[getPopulationSize()];
 			
-			for (int i = 0; i < 100; i++)
-				mathlings[i] = loaded;
+			mathlings[0] = loaded;
+			for (int i = 1; i < mathlings.length; i++)
+				mathlings[i] = loaded.getMutation();
 			
 			runSimulation(mathlings);
 			
@@ -249,4 +1164,70 @@ public class Simulation
 			return;
 		}
 	}
+	
+	/**
+	 * @param saved	The file a single population would be saved to.
+	 * @return		One checkpoint per island, with nulls for islands which
+	 * 				haven't saved one, or null if there's only one island or
+	 * 				the first hasn't saved one.
+	 */
+	private static PopulationCheckpoint[] loadIslandCheckpoints(Path saved) throws IOException
+	{
+		final int count;
+		
+		synchronized (Simulation.class)
+		{
+			count = islands;
+		}
+		
+		if (count < 2)
+			return null;
+		
+		final PopulationCheckpoint[] checkpoints = new PopulationCheckpoint[count];
+		
+		for (int i = 0; i < count; i++)
+		{
+			final Path file = IslandModel.checkpointFile(saved, i);
+			
+			if (Files.exists(file))
+				checkpoints[i] = PopulationCheckpoint.load(file);
+		}
+		
+		return (checkpoints[0] != null)? checkpoints : null;
+	}
+	
+	/**
+	 * The settings a generation is evaluated and repopulated with, as they
+	 * were when read. Nothing here changes afterwards.
+	 * 
+	 * @see Simulation#settings()
+	 */
+	static class Settings
+	{
+		final SimulationMetrics metrics;
+		final Selection selection;
+		final TargetSamples samples;
+		final FitnessCache cache;
+		final RemoteEvaluator remote;
+		final boolean earlyAbort,
+					  rewriteElites;
+		final int optimizationInterval,
+				  nodeVectorCapacity;
+		final ConstantOptimizer optimizer;
+		
+		// Only made under the simulation's lock, by settings()
+		private Settings()
+		{
+			this.metrics = Simulation.metrics;
+			this.selection = Simulation.selection;
+			this.samples = getTargetSamples();
+			this.cache = Simulation.fitnessCache;
+			this.remote = Simulation.remoteEvaluator;
+			this.earlyAbort = Simulation.earlyAbort;
+			this.rewriteElites = Simulation.rewriteElites;
+			this.optimizationInterval = Simulation.optimizationInterval;
+			this.nodeVectorCapacity = Simulation.nodeVectorCapacity;
+			this.optimizer = Simulation.constantOptimizer;
+		}
+	}
 }
@@ -0,0 +1,379 @@
+package mathling;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import expression.Expression;
+import expression.ExpressionArena;
+
+/**
+ * A whole population of {@code Expression} trees kept in a pair of
+ * {@code ExpressionArena}s, rather than as one {@code Mathling} with a
+ * tree of node objects each. Trees are evaluated and mutated right where
+ * they lie, and each generation's trees are copied from one arena into
+ * the other, which is then cleared and reused. Nothing is allocated per
+ * node, so populations of hundreds of thousands evolve without the
+ * garbage collector getting in the way.
+ * <br><br>
+ *
+ * Parents are selected and the population refilled by a
+ * {@code Selection}, just as for an array of {@code Mathling}s, and
+ * accuracies are worked out the same way, with the same early abort. The
+ * accuracies of parents and survivors carry over, so only new trees are
+ * evaluated. What the arena does without:
+ * <br><br>
+ *
+ * Trees which divide by zero aren't simplified, so their accuracy is over
+ * the samples which didn't.<br>
+ * Elites aren't rewritten, compiled, or tuned.<br>
+ * Accuracies aren't remembered or evaluated incrementally.
+ * <br><br>
+ *
+ * Note: A population is not safe to use from several threads at once,
+ * though it spreads its own evaluation across a pool.
+ *
+ * @see expression.ExpressionArena
+ * @see main.Simulation#setArena(boolean, boolean)
+ */
+public class ArenaPopulation
+{
+	// The same as every Mathling uses
+	private static final double[] odds = {30, 30};
+	private static final double mutationSignificance = 30;
+
+	// How many samples to test between checks against an accuracy bound
+	private static final int blockSize = 32;
+
+	// Per-thread buffers for evaluation
+	private static final ThreadLocal<double[]> results =
+			ThreadLocal.withInitial(() -> new double[0]);
+	private static final ThreadLocal<boolean[]> faults =
+			ThreadLocal.withInitial(() -> new boolean[0]);
+
+	private ExpressionArena current,
+							next;
+	private double[] accuracies;
+
+	// Per tree, whether its accuracy is known, and from the last
+	// evaluation, how many samples it tested and how many divided by zero
+	private boolean[] known;
+	private final int[] tested,
+						faulted;
+
+	/**
+	 * Copies a population into arenas.
+	 *
+	 * @param mathlings	The population to copy.
+	 * @param evaluated	True if their accuracies are already known, as when
+	 * 					resuming from a checkpoint, so they're kept.
+	 * @param offHeap	Whether to keep the arenas in direct memory.
+	 */
+	public ArenaPopulation(Mathling[] mathlings, boolean evaluated, boolean offHeap)
+	{
+		final int n = mathlings.length;
+		int nodes = 0;
+
+		for (Mathling m : mathlings)
+			nodes += m.peekExpression().getSize();
+
+		this.current = new ExpressionArena(nodes * 2, offHeap);
+		this.next = new ExpressionArena(nodes * 2, offHeap);
+		this.accuracies = new double[n];
+		this.known = new boolean[n];
+		this.tested = new int[n];
+		this.faulted = new int[n];
+
+		for (int i = 0; i < n; i++)
+		{
+			this.current.add(mathlings[i].peekExpression());
+			this.accuracies[i] = mathlings[i].getAccuracy();
+			this.known[i] = evaluated;
+		}
+
+		return;
+	}
+
+	/**
+	 * Works out the accuracy of every tree whose accuracy isn't known yet.
+	 *
+	 * @param samples	The goal function's inputs and results.
+	 * @param bound		The accuracy past which a tree is rejected, with an
+	 * 					accuracy of infinity. Infinity means none are.
+	 * @param pool		The threads to spread trees across, or null for the
+	 * 					calling thread.
+	 * @see mathling.Mathling#calculateAccuracy(TargetSamples, double)
+	 */
+	public void calculateAccuracies(TargetSamples samples, double bound, ForkJoinPool pool)
+	{
+		final int n = this.accuracies.length;
+
+		if (pool == null)
+		{
+			for (int i = 0; i < n; i++)
+				this.calculateAccuracy(i, samples, bound);
+		}
+		else
+		{
+			pool.submit(() -> IntStream.range(0, n)
+					.parallel()
+					.forEach((i) -> this.calculateAccuracy(i, samples, bound)))
+				.join();
+		}
+
+		return;
+	}
+
+	/**
+	 * Works out one tree's accuracy exactly as a {@code Mathling} would,
+	 * short of simplifying it.
+	 */
+	private void calculateAccuracy(int tree, TargetSamples samples, double bound)
+	{
+		if (this.known[tree])
+		{
+			this.tested[tree] = 0;
+			this.faulted[tree] = 0;
+			return;
+		}
+
+		final double[] inputs = samples.inputs,
+					   targets = samples.targets;
+		final int n = inputs.length;
+		final int block = (bound < Double.POSITIVE_INFINITY)? blockSize : Math.max(n, 1);
+
+		double[] out = results.get();
+		boolean[] masked = faults.get();
+
+		if (out.length < n)
+		{
+			out = new double[n];
+			masked = new boolean[n];
+			results.set(out);
+			faults.set(masked);
+		}
+
+		double total = 0;
+		int terms = n,
+			tested = n;
+		boolean rejected = false;
+
+		for (int start = 0; start < n; start += block)
+		{
+			final int end = Math.min(n, start + block);
+			final int bad = this.current.evaluate(tree, inputs, start, end, out, masked);
+
+			for (int i = start; i < end; i++)
+			{
+				if (!masked[i])
+					total += Math.abs(out[i] - targets[i]);
+			}
+
+			terms -= bad;
+
+			if (total / n > bound)
+			{
+				rejected = true;
+				tested = end;
+				break;
+			}
+		}
+
+		if (rejected)
+			this.accuracies[tree] = Double.POSITIVE_INFINITY;
+		else if (terms > 0)
+			this.accuracies[tree] = total / terms;
+		else
+			this.accuracies[tree] = 1000;
+
+		this.known[tree] = true;
+		this.tested[tree] = tested;
+		this.faulted[tree] = n - terms;
+
+		return;
+	}
+
+	/**
+	 * Selects the parents and refills the rest of the population, copying
+	 * every tree of the next generation into the spare arena and then
+	 * swapping the two.
+	 *
+	 * @param selection	How to pick the parents and refill the rest.
+	 * @see mathling.Selection#selectParents(double[])
+	 * @see mathling.Selection#breed(double[], Selection.Breeder)
+	 */
+	public void repopulate(Selection selection)
+	{
+		final int n = this.accuracies.length,
+				  parents = selection.getParents();
+
+		// The accuracies are put in order along with the trees
+		final double[] ordered = this.accuracies.clone();
+		final int[] order = selection.selectParents(ordered);
+
+		final ExpressionArena from = this.current,
+							  to = this.next;
+		final double[] accuracies = new double[n];
+		final boolean[] known = new boolean[n];
+
+		to.clear();
+
+		for (int i = 0; i < parents; i++)
+		{
+			to.copy(from, order[i]);
+			accuracies[i] = ordered[i];
+			known[i] = true;
+		}
+
+		selection.breed(ordered, new Selection.Breeder()
+		{
+			@Override
+			public void keep(int slot, int kept)
+			{
+				to.copy(from, order[kept]);
+				accuracies[slot] = ordered[kept];
+				known[slot] = true;
+				return;
+			}
+
+			@Override
+			public void newcomer(int slot)
+			{
+				MathlingMutator.newArenaTree(to, odds);
+				return;
+			}
+
+			@Override
+			public void child(int slot, int parent)
+			{
+				// The mutation is written into the old arena, which is
+				// cleared once it becomes the spare
+				to.copy(from, MathlingMutator.mutateArena(from, order[parent],
+						mutationSignificance, odds));
+				return;
+			}
+		});
+
+		this.current = to;
+		this.next = from;
+		this.accuracies = accuracies;
+		this.known = known;
+
+		return;
+	}
+
+	/**
+	 * @return	How many trees the population has.
+	 */
+	public int size()
+	{
+		return this.accuracies.length;
+	}
+
+	/**
+	 * @param i	The tree's index. After {@link #repopulate(Selection)},
+	 * 			the parents come first, best first.
+	 * @return	Its accuracy.
+	 */
+	public double getAccuracy(int i)
+	{
+		return this.accuracies[i];
+	}
+
+	/**
+	 * @param i	The tree's index.
+	 * @return	How many nodes it has.
+	 */
+	public int getSize(int i)
+	{
+		return this.current.getNodeCount(i);
+	}
+
+	/**
+	 * @param i	The tree's index.
+	 * @return	How many levels it has.
+	 */
+	public int getDepth(int i)
+	{
+		return this.current.getDepth(i);
+	}
+
+	/**
+	 * @return	How many samples the last evaluation tested, in total.
+	 */
+	public long getSamplesTested()
+	{
+		long total = 0;
+		for (int t : this.tested)
+			total += t;
+
+		return total;
+	}
+
+	/**
+	 * @return	How many samples divided by zero in the last evaluation.
+	 */
+	public long getFaultedSamples()
+	{
+		long total = 0;
+		for (int f : this.faulted)
+			total += f;
+
+		return total;
+	}
+
+	/**
+	 * @return	How many trees the last evaluation tested.
+	 */
+	public long getEvaluations()
+	{
+		long total = 0;
+		for (int t : this.tested)
+		{
+			if (t > 0)
+				total++;
+		}
+
+		return total;
+	}
+
+	/**
+	 * @return	The most accurate tree, as a {@code Mathling}.
+	 */
+	public Mathling getBest()
+	{
+		int best = 0;
+
+		for (int i = 1; i < this.accuracies.length; i++)
+		{
+			if (Double.compare(this.accuracies[i], this.accuracies[best]) < 0)
+				best = i;
+		}
+
+		return this.toMathling(best);
+	}
+
+	/**
+	 * Rebuilds the whole population as {@code Mathling}s, such as for a
+	 * checkpoint. This allocates every node, so is best done rarely.
+	 *
+	 * @return	The population, with its accuracies.
+	 */
+	public Mathling[] toMathlings()
+	{
+		final Mathling[] mathlings = new Mathling[this.accuracies.length];
+
+		for (int i = 0; i < mathlings.length; i++)
+			mathlings[i] = this.toMathling(i);
+
+		return mathlings;
+	}
+
+	private Mathling toMathling(int i)
+	{
+		final Expression e = this.current.toExpression(i);
+		final Mathling m = new Mathling(e);
+		m.setAccuracy(this.accuracies[i]);
+
+		return m;
+	}
+}
@@ -0,0 +1,352 @@
+package mathling;
+
+import java.util.Arrays;
+
+import expression.Expression;
+import expression.ExpressionProgram;
+
+/**
+ * Tunes the numbers in a {@code Mathling}'s {@code Expression} directly,
+ * rather than waiting for mutation to poke them the right way. The
+ * {@code Expression}'s shape is left alone; only its constants move.
+ * <br><br>
+ * 
+ * Tuning is Levenberg-Marquardt, over the derivatives of every result
+ * with respect to every constant, as worked out by
+ * {@link ExpressionProgram#differentiate(double[], double[], double[], boolean[], double[])}.
+ * Each step solves for the constants which would best fit the samples if
+ * the {@code Expression} were linear in them, damped towards a small step
+ * along the gradient when that guess doesn't pay off. As accuracy is an
+ * average absolute error rather than a squared one, each sample's error
+ * is weighted by the inverse of its size, so that the least squares fit
+ * leans towards the least absolute one.
+ * <br><br>
+ * 
+ * A step is only taken if it lowers the average error, without any more
+ * samples dividing by zero, and tuning stops as soon as steps stop paying
+ * off. The result is only taken on if a full accuracy calculation
+ * agrees. A tuned {@code Mathling} is never worse than it was, and one
+ * which has been tuned isn't tuned again until its {@code Expression}
+ * changes.
+ * 
+ * @see main.Simulation#setConstantOptimization(int, ConstantOptimizer)
+ */
+public class ConstantOptimizer
+{
+	// How strongly steps are damped to begin with, and the range the
+	// damping is kept in
+	private static final double initialDamping = 1e-3,
+								minDamping = 1e-12,
+								maxDamping = 1e12;
+	
+	// Errors smaller than this, relative to the average, are weighted as
+	// if they were this big, so that no sample dominates the fit
+	private static final double minWeightedError = 1e-6;
+	
+	// Steps which move no constant by more than this fraction of its
+	// size are too small to be worth trying, so tuning stops
+	private static final double minStep = 1e-9;
+	
+	// Steps which improve the error by less than this fraction are the
+	// last taken
+	private static final double minProgress = 1e-6;
+	
+	// Tuning must improve accuracy by more than this fraction to be taken
+	// on, so that rounding alone never counts
+	private static final double minImprovement = 1e-9;
+	
+	private final int steps;
+	
+	/**
+	 * Creates an optimizer which tries at most 20 steps each time.
+	 */
+	public ConstantOptimizer()
+	{
+		this(20);
+		return;
+	}
+	
+	/**
+	 * @param steps	The most steps to try each time, at least 1. A step
+	 * 				which doesn't help still counts.
+	 */
+	public ConstantOptimizer(int steps)
+	{
+		if (steps < 1)
+			throw new IllegalArgumentException("Need at least one step, got " + steps);
+		
+		this.steps = steps;
+		return;
+	}
+	
+	/**
+	 * @return	The most steps tried each time.
+	 */
+	public int getSteps()
+	{
+		return this.steps;
+	}
+	
+	/**
+	 * Tunes a {@code Mathling}'s constants against some samples. Its
+	 * accuracy must already have been calculated against the same ones.
+	 * If tuning helps, the {@code Mathling} takes on the tuned
+	 * {@code Expression} and its accuracy; otherwise, it's left as it is.
+	 * <br><br>
+	 * 
+	 * This is safe to call from several threads at once, on different
+	 * {@code Mathling}s.
+	 * 
+	 * @param m			The {@code Mathling} to tune.
+	 * @param samples	The goal function's inputs and results.
+	 * @return			True if the {@code Mathling} was improved.
+	 */
+	public boolean optimize(Mathling m, TargetSamples samples)
+	{
+		final Expression e = m.peekExpression();
+		final double accuracy = m.getAccuracy();
+		
+		if (m.isTuned() || m.isRejected() || !(accuracy < Double.POSITIVE_INFINITY))
+			return false;
+		
+		final ExpressionProgram program = ExpressionProgram.compile(e);
+		final double[] constants = program.getConstants();
+		final double[] inputs = samples.inputs,
+					   targets = samples.targets;
+		final int k = constants.length,
+				  n = inputs.length;
+		
+		if (k == 0)
+		{
+			m.markTuned(e);
+			return false;
+		}
+		
+		final double[] results = new double[n],
+					   trialResults = new double[n],
+					   jacobian = new double[n * k],
+					   trial = new double[k],
+					   gradient = new double[k];
+		final double[][] normal = new double[k][k],
+						 damped = new double[k][k];
+		final boolean[] faults = new boolean[n],
+						trialFaults = new boolean[n];
+		
+		final int faulted = program.differentiate(inputs, constants, results, faults, jacobian);
+		double error = meanError(results, faults, targets, faulted);
+		double damping = initialDamping;
+		boolean moved = true;
+		
+		for (int step = 0; step < this.steps && damping <= maxDamping && error > 0; step++)
+		{
+			if (moved)
+			{
+				normalEquations(jacobian, results, faults, targets, error, normal, gradient);
+				moved = false;
+			}
+			
+			for (int c = 0; c < k; c++)
+			{
+				System.arraycopy(normal[c], 0, damped[c], 0, k);
+				damped[c][c] += damping * Math.max(normal[c][c], minDamping);
+			}
+			
+			if (!solve(damped, gradient, trial))
+			{
+				damping *= 10;
+				continue;
+			}
+			
+			boolean negligible = true;
+			
+			for (int c = 0; c < k; c++)
+			{
+				negligible &= Math.abs(trial[c]) <= minStep * Math.abs(constants[c]);
+				trial[c] = constants[c] - trial[c];
+			}
+			
+			if (negligible)
+				break;
+			
+			final int trialFaulted = program.differentiate(inputs, trial, trialResults, trialFaults, null);
+			final double trialError = meanError(trialResults, trialFaults, targets, trialFaulted);
+			
+			if (trialFaulted <= faulted && trialError < error)
+			{
+				// A step which barely helps is as far as tuning will go
+				final boolean converged = trialError > error * (1 - minProgress);
+				
+				System.arraycopy(trial, 0, constants, 0, k);
+				error = trialError;
+				
+				if (converged)
+					break;
+				
+				program.differentiate(inputs, constants, results, faults, jacobian);
+				damping = Math.max(damping / 10, minDamping);
+				moved = true;
+			}
+			else
+			{
+				damping *= 10;
+			}
+		}
+		
+		// Whether or not tuning helped, it won't do any better next time
+		final double target = accuracy * (1 - minImprovement);
+		
+		if (!(error < target))
+		{
+			m.markTuned(e);
+			return false;
+		}
+		
+		final Mathling tuned = new Mathling(ExpressionProgram.withConstants(e, constants));
+		tuned.calculateAccuracy(samples);
+		
+		if (!(tuned.getAccuracy() < target) || tuned.getFaultedSamples() > m.getFaultedSamples())
+		{
+			m.markTuned(e);
+			return false;
+		}
+		
+		m.restore(tuned.peekExpression(),
+				tuned.getAccuracy(),
+				tuned.getFaultedSamples(),
+				tuned.getSamplesTested(),
+				false);
+		m.markTuned(tuned.peekExpression());
+		
+		return true;
+	}
+	
+	/**
+	 * @return	The average absolute error of the results which didn't
+	 * 			divide by zero, as {@code Mathling} accuracies are worked
+	 * 			out, or infinity if there are none or it isn't a number.
+	 */
+	private static double meanError(double[] results, boolean[] faults, double[] targets, int faulted)
+	{
+		final int terms = results.length - faulted;
+		double total = 0;
+		
+		for (int i = 0; i < results.length; i++)
+		{
+			if (!faults[i])
+				total += Math.abs(results[i] - targets[i]);
+		}
+		
+		return (terms > 0 && total == total)? total / terms : Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Builds the weighted least squares problem for the next step: the
+	 * matrix of products of derivatives, and the gradient of the weighted
+	 * squared error, with each sample weighted by the inverse of its error.
+	 */
+	private static void normalEquations(double[] jacobian,
+										double[] results,
+										boolean[] faults,
+										double[] targets,
+										double error,
+										double[][] normal,
+										double[] gradient)
+	{
+		final int k = gradient.length;
+		final double floor = Math.max(error * minWeightedError, Double.MIN_NORMAL);
+		
+		for (int c = 0; c < k; c++)
+		{
+			Arrays.fill(normal[c], 0);
+			gradient[c] = 0;
+		}
+		
+		for (int i = 0; i < results.length; i++)
+		{
+			if (faults[i])
+				continue;
+			
+			final double residual = results[i] - targets[i],
+						 weight = 1 / Math.max(Math.abs(residual), floor);
+			final int row = i * k;
+			
+			for (int c = 0; c < k; c++)
+			{
+				final double wj = weight * jacobian[row + c];
+				
+				if (wj == 0)
+					continue;
+				
+				gradient[c] += wj * residual;
+				
+				for (int d = 0; d <= c; d++)
+					normal[c][d] += wj * jacobian[row + d];
+			}
+		}
+		
+		for (int c = 0; c < k; c++)
+		{
+			for (int d = 0; d < c; d++)
+				normal[d][c] = normal[c][d];
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Solves {@code a x = b} for a symmetric positive definite {@code a},
+	 * by Cholesky decomposition. {@code a} is overwritten.
+	 * 
+	 * @return	False if {@code a} isn't positive definite enough to solve,
+	 * 			or the solution isn't finite.
+	 */
+	private static boolean solve(double[][] a, double[] b, double[] x)
+	{
+		final int k = b.length;
+		
+		for (int c = 0; c < k; c++)
+		{
+			for (int d = 0; d <= c; d++)
+			{
+				double sum = a[c][d];
+				for (int j = 0; j < d; j++)
+					sum -= a[c][j] * a[d][j];
+				
+				if (c == d)
+				{
+					if (!(sum > 0) || sum == Double.POSITIVE_INFINITY)
+						return false;
+					
+					a[c][c] = Math.sqrt(sum);
+				}
+				else
+				{
+					a[c][d] = sum / a[d][d];
+				}
+			}
+		}
+		
+		for (int c = 0; c < k; c++)
+		{
+			double sum = b[c];
+			for (int j = 0; j < c; j++)
+				sum -= a[c][j] * x[j];
+			
+			x[c] = sum / a[c][c];
+		}
+		
+		for (int c = k - 1; c >= 0; c--)
+		{
+			double sum = x[c];
+			for (int j = c + 1; j < k; j++)
+				sum -= a[j][c] * x[j];
+			
+			x[c] = sum / a[c][c];
+			
+			if (Double.isNaN(x[c]) || Double.isInfinite(x[c]))
+				return false;
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,107 @@
+package mathling;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The messages a coordinator and its evaluation workers send each other
+ * over TCP. Every message is a frame, with every value big-endian:
+ * <pre>
+ * length		4 bytes, of the type and payload
+ * type		1 byte
+ * payload		the rest
+ * </pre>
+ * The payloads, with the size of each value in bytes, are:
+ * <pre>
+ * HELLO, to a worker:
+ * 	magic "MTHW" (4), version (2), sample order (1), sample count (4),
+ * 	then every input and every target (8 each)
+ * READY, to the coordinator:
+ * 	how many threads the worker evaluates on (4)
+ * BATCH, to a worker:
+ * 	batch id (8), bound (8), count (4), then one MathlingCodec record
+ * 	per Mathling
+ * RESULTS, to the coordinator:
+ * 	batch id (8), count (4), then per Mathling: accuracy (8), faulted
+ * 	samples (4), samples tested (4), flags (1), and a MathlingCodec
+ * 	record of the simplified Expression if the CHANGED flag is set
+ * </pre>
+ * The coordinator sends many batches without waiting for their results,
+ * which can come back in any order, matched up by batch id.
+ *
+ * @see mathling.EvaluationWorker
+ * @see mathling.RemoteEvaluator
+ */
+final class EvaluationProtocol
+{
+	static final int magic = 0x4D544857;
+	static final short version = 1;
+
+	static final byte	HELLO	= 1,
+						READY	= 2,
+						BATCH	= 3,
+						RESULTS	= 4;
+
+	// Flags for each result
+	static final byte	REJECTED	= 1,
+						CHANGED		= 2;
+
+	// No honest frame comes close to this
+	private static final int maxFrameLength = 1 << 28;
+
+	private EvaluationProtocol()
+	{
+	}
+
+	/**
+	 * Writes a frame and flushes it. Callers writing from several threads
+	 * must hold the stream's lock.
+	 *
+	 * @param out		The stream to write to.
+	 * @param type		The frame's type.
+	 * @param payload	The payload, from its position to its limit.
+	 */
+	static void writeFrame(DataOutputStream out, byte type, ByteBuffer payload) throws IOException
+	{
+		out.writeInt(payload.remaining() + 1);
+		out.writeByte(type);
+		out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+		out.flush();
+
+		return;
+	}
+
+	/**
+	 * Reads the next frame.
+	 *
+	 * @param in	The stream to read from.
+	 * @return		The frame, starting with its type, or null if the
+	 * 				stream ended cleanly between frames.
+	 * @throws IOException	If the stream fails, ends mid-frame, or holds
+	 * 						something other than a frame.
+	 */
+	static ByteBuffer readFrame(DataInputStream in) throws IOException
+	{
+		final int length;
+
+		try
+		{
+			length = in.readInt();
+		}
+		catch (EOFException e)
+		{
+			return null;
+		}
+
+		if (length < 1 || length > maxFrameLength)
+			throw new IOException("Corrupt frame: " + length + " bytes");
+
+		final byte[] frame = new byte[length];
+		in.readFully(frame);
+
+		return ByteBuffer.wrap(frame);
+	}
+}
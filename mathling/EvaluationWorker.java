@@ -0,0 +1,323 @@
+package mathling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import expression.Expression;
+
+/**
+ * Calculates accuracies for a coordinator running in another process,
+ * usually on another machine. The coordinator connects, sends the samples
+ * to test against, then streams batches of encoded {@code Mathling}s,
+ * and gets back each one's accuracy, exactly as
+ * {@link Mathling#calculateAccuracy(TargetSamples, double)} would have
+ * worked it out locally.<br><br>
+ *
+ * Batches are evaluated on a pool of threads as they arrive, so a
+ * coordinator can keep several in flight, and results go back as soon as
+ * each batch is done. Any number of coordinators may connect at once,
+ * until the worker is closed.
+ *
+ * @see mathling.RemoteEvaluator
+ * @see mathling.EvaluationProtocol
+ */
+public class EvaluationWorker
+{
+	private static final int bufferSize = 1 << 16;
+
+	private final ServerSocket server;
+	private final ForkJoinPool pool;
+	private final int threads;
+
+	// The coordinators connected right now, and how many batches have
+	// been answered in all
+	private final Set<Socket> coordinators = ConcurrentHashMap.newKeySet();
+	private final AtomicLong answered = new AtomicLong();
+
+	/**
+	 * Starts listening for coordinators, without accepting any yet.
+	 *
+	 * @param port		The port to listen on, or 0 for any free one.
+	 * @param threads	How many threads to evaluate on, at least 1.
+	 * @throws IOException	If the port can't be listened on.
+	 * @see #run()
+	 */
+	public EvaluationWorker(int port, int threads) throws IOException
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, got " + threads);
+
+		this.server = new ServerSocket(port);
+		this.pool = new ForkJoinPool(threads);
+		this.threads = threads;
+
+		return;
+	}
+
+	/**
+	 * @return	The port this is listening on.
+	 */
+	public int getPort()
+	{
+		return this.server.getLocalPort();
+	}
+
+	/**
+	 * @return	How many batches have been evaluated and answered.
+	 */
+	public long getAnswered()
+	{
+		return this.answered.get();
+	}
+
+	/**
+	 * Serves coordinators, each on its own thread, until closed.
+	 */
+	public void run()
+	{
+		while (!this.server.isClosed())
+		{
+			try
+			{
+				final Socket socket = this.server.accept();
+				this.coordinators.add(socket);
+
+				// Closed in the meantime, and so missed by close()
+				if (this.server.isClosed())
+				{
+					socket.close();
+					break;
+				}
+
+				final Thread t = new Thread(() -> this.serve(socket),
+						"worker-" + socket.getRemoteSocketAddress());
+
+				t.setDaemon(true);
+				t.start();
+			}
+			catch (IOException e)
+			{
+				if (!this.server.isClosed())
+					e.printStackTrace();
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 * Stops accepting coordinators, and disconnects those already
+	 * connected, just as if the process had ended. Their coordinators
+	 * send the batches which were in flight elsewhere.
+	 */
+	public void close()
+	{
+		try
+		{
+			this.server.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		for (Socket s : this.coordinators)
+		{
+			try
+			{
+				s.close();
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 * Greets a coordinator, then evaluates its batches until it goes away.
+	 */
+	private void serve(Socket socket)
+	{
+		try (Socket s = socket)
+		{
+			s.setTcpNoDelay(true);
+
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(s.getInputStream(), bufferSize));
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream(), bufferSize));
+
+			final TargetSamples samples = readHello(EvaluationProtocol.readFrame(in));
+
+			final ByteBuffer ready = ByteBuffer.allocate(Integer.BYTES);
+			ready.putInt(this.threads);
+			ready.flip();
+			EvaluationProtocol.writeFrame(out, EvaluationProtocol.READY, ready);
+
+			while (true)
+			{
+				final ByteBuffer frame = EvaluationProtocol.readFrame(in);
+
+				if (frame == null)
+					return;
+
+				if (frame.get() != EvaluationProtocol.BATCH)
+					throw new IOException("Expected a batch");
+
+				this.pool.execute(() -> this.answer(s, out, frame, samples));
+			}
+		}
+		catch (IOException e)
+		{
+			if (!this.server.isClosed())
+				System.out.println("Lost coordinator " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+		}
+		finally
+		{
+			this.coordinators.remove(socket);
+		}
+
+		return;
+	}
+
+	/**
+	 * Evaluates a batch and sends back its results. If that fails, the
+	 * connection is closed, and the coordinator sends the batch elsewhere.
+	 */
+	private void answer(Socket socket, DataOutputStream out, ByteBuffer batch, TargetSamples samples)
+	{
+		try
+		{
+			final ByteBuffer results = evaluate(batch, samples);
+
+			synchronized (out)
+			{
+				EvaluationProtocol.writeFrame(out, EvaluationProtocol.RESULTS, results);
+			}
+
+			this.answered.incrementAndGet();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 * @param hello	The coordinator's greeting, starting with its type.
+	 * @return		The samples it wants accuracies against.
+	 */
+	private static TargetSamples readHello(ByteBuffer hello) throws IOException
+	{
+		if (hello == null || hello.get() != EvaluationProtocol.HELLO)
+			throw new IOException("Expected a greeting");
+
+		if (hello.getInt() != EvaluationProtocol.magic)
+			throw new IOException("Not a Mathling coordinator");
+
+		final short found = hello.getShort();
+		if (found != EvaluationProtocol.version)
+			throw new IOException("Can't speak version " + found + " of the evaluation protocol");
+
+		final byte order = hello.get();
+		final int n = hello.getInt();
+
+		if (order < 0 || order >= SampleOrder.values().length || n < 0 || hello.remaining() != (long) n * 2 * Double.BYTES)
+			throw new IOException("Corrupt greeting");
+
+		final double[] inputs = new double[n],
+					   targets = new double[n];
+
+		hello.asDoubleBuffer().get(inputs).get(targets);
+
+		return new TargetSamples(inputs, targets, SampleOrder.values()[order]);
+	}
+
+	/**
+	 * @param batch		A batch, after its type.
+	 * @param samples	The samples to test against.
+	 * @return			The batch's results, ready to be written.
+	 */
+	private static ByteBuffer evaluate(ByteBuffer batch, TargetSamples samples) throws IOException
+	{
+		final long id = batch.getLong();
+		final double bound = batch.getDouble();
+		final int count = batch.getInt();
+
+		if (count < 0)
+			throw new IOException("Corrupt batch: " + count + " mathlings");
+
+		final Mathling[] mathlings = new Mathling[count];
+		final Expression[] sent = new Expression[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			mathlings[i] = MathlingCodec.decode(batch);
+			sent[i] = mathlings[i].peekExpression();
+		}
+
+		// Only expressions which were simplified along the way go back
+		final ByteBuffer[] changed = new ByteBuffer[count];
+		int size = Long.BYTES + Integer.BYTES;
+
+		for (int i = 0; i < count; i++)
+		{
+			final Mathling m = mathlings[i];
+			m.calculateAccuracy(samples, bound);
+
+			size += Double.BYTES + 2 * Integer.BYTES + 1;
+
+			if (m.peekExpression() != sent[i])
+			{
+				changed[i] = MathlingCodec.encode(m.peekExpression(), 0, 0, false);
+				size += changed[i].remaining();
+			}
+		}
+
+		final ByteBuffer results = ByteBuffer.allocate(size);
+		results.putLong(id);
+		results.putInt(count);
+
+		for (int i = 0; i < count; i++)
+		{
+			final Mathling m = mathlings[i];
+			byte flags = 0;
+
+			if (m.isRejected())
+				flags |= EvaluationProtocol.REJECTED;
+			if (changed[i] != null)
+				flags |= EvaluationProtocol.CHANGED;
+
+			results.putDouble(m.getAccuracy());
+			results.putInt(m.getFaultedSamples());
+			results.putInt(m.getSamplesTested());
+			results.put(flags);
+
+			if (changed[i] != null)
+				results.put(changed[i]);
+		}
+
+		results.flip();
+		return results;
+	}
+}
@@ -0,0 +1,317 @@
+package mathling;
+
+import java.util.Arrays;
+
+import expression.Expression;
+import expression.ExpressionArena;
+
+/**
+ * Generates random {@code Expression}s within a budget of nodes and
+ * levels, without recursing, so that no choice of odds can run out of
+ * stack. The random numbers come from {@code MathlingMutator}, so seeding
+ * it makes generation repeatable too.<br><br>
+ *
+ * There are three ways to generate a tree:<br><br>
+ *
+ * GROW:	Each node is a number, the variable, or an operator, by the
+ * 			given odds. Once a budget is reached, only numbers and the
+ * 			variable are picked. Unless a budget is reached, this is
+ * 			exactly the distribution (and the sequence of random numbers)
+ * 			of the old recursive generator.<br>
+ * FULL:	Every node is an operator until the depth or size budget is
+ * 			reached, and only then a number or the variable, so the tree
+ * 			is as bushy as the budgets allow.<br>
+ * RAMPED:	Picks a depth between {@link #minRampedDepth} and the depth
+ * 			budget, then grows or fills a tree of that depth, with even
+ * 			odds. A population made this way has a wide spread of sizes
+ * 			and shapes (the "ramped half-and-half" of genetic
+ * 			programming).
+ *
+ * @see mathling.MathlingMutator#newExpressionSafe(double[])
+ */
+public class ExpressionGenerator
+{
+	/**
+	 * The ways to generate a tree. See {@link ExpressionGenerator}.
+	 */
+	public enum Method
+	{
+		GROW,
+		FULL,
+		RAMPED
+	}
+
+	/**
+	 * The shallowest tree a RAMPED generation will aim for.
+	 */
+	public static final int minRampedDepth = 2;
+
+	private static final char var = 'x';
+	private static final double max = 100,
+								min = -100;
+
+	/**
+	 * Generates a tree.
+	 *
+	 * @param method	How to generate it.
+	 * @param odds		The chances of a number and of the variable, out of
+	 * 					100, as for {@link #grow(double[], int, int)}. FULL
+	 * 					trees only use them to pick between the two.
+	 * @param maxSize	The most nodes the tree may have, at least 1.
+	 * @param maxDepth	The most levels the tree may have, at least 1.
+	 * @return			The generated tree.
+	 */
+	public static Expression generate(Method method, double[] odds, int maxSize, int maxDepth)
+	{
+		switch (method)
+		{
+			case FULL:
+				return generate(odds, maxSize, maxDepth, true);
+			case RAMPED:
+				final int low = Math.min(minRampedDepth, maxDepth),
+						  depth = low + (int) MathlingMutator.randMinMax(0, maxDepth - low + 1);
+				final boolean full = MathlingMutator.randMinMax(0, 100) < 50;
+
+				return generate(odds, maxSize, depth, full);
+			default:
+				return grow(odds, maxSize, maxDepth);
+		}
+	}
+
+	/**
+	 * Grows a tree, where the odds of each node being one of the three
+	 * types of {@code Expression}s is determined by the input array, as
+	 * long as the budgets allow.
+	 *
+	 * @param odds		The probability of each node being a certain type.
+	 * 					{@code odds[0]} is the probability of the node being
+	 * 					a numerical {@code Expression}. {@code odds[1]} is
+	 * 					the probability of the node being a variable
+	 * 					{@code Expression}. The probability of a complex
+	 * 					{@code Expression} is determined from the
+	 * 					remainder. For example, {@code [20, 30]} would mean
+	 * 					a 20% chance of being a number, a 30% chance of
+	 * 					being a variable, and a 50% chance of being a
+	 * 					complex {@code Expression}.
+	 * @param maxSize	The most nodes the tree may have, at least 1.
+	 * @param maxDepth	The most levels the tree may have, at least 1.
+	 * @return			The generated tree.
+	 */
+	public static Expression grow(double[] odds, int maxSize, int maxDepth)
+	{
+		return generate(odds, maxSize, maxDepth, false);
+	}
+
+	/**
+	 * Grows a tree just as {@link #grow(double[], int, int)} does, drawing
+	 * the very same random numbers, but writes its nodes straight into an
+	 * arena instead of building an {@code Expression}. Meant to be called
+	 * from an {@code ExpressionArena.Subtree}.
+	 *
+	 * @param arena		The arena to write the nodes into.
+	 * @param odds		As for {@link #grow(double[], int, int)}.
+	 * @param maxSize	The most nodes the tree may have, at least 1.
+	 * @param maxDepth	The most levels the tree may have, at least 1.
+	 * @see expression.ExpressionArena#add(ExpressionArena.Subtree)
+	 */
+	public static void grow(ExpressionArena arena, double[] odds, int maxSize, int maxDepth)
+	{
+		generate(odds, maxSize, maxDepth, false, new Sink()
+		{
+			@Override
+			public void number(double n)
+			{
+				arena.pushNumber(n);
+				return;
+			}
+
+			@Override
+			public void variable(char v)
+			{
+				arena.pushVariable(v);
+				return;
+			}
+
+			@Override
+			public void operator(char o)
+			{
+				arena.pushOperator(o);
+				return;
+			}
+		});
+
+		return;
+	}
+
+	private static Expression generate(double[] odds, int maxSize, int maxDepth, boolean full)
+	{
+		final Builder builder = new Builder();
+		generate(odds, maxSize, maxDepth, full, builder);
+
+		return builder.stack[0];
+	}
+
+	/**
+	 * Generates a tree in pre-order, keeping every operator which is still
+	 * waiting for its children on a stack, and hands its nodes to the sink
+	 * in postfix order. An operator is only picked if the tree can still
+	 * be finished within the budgets, counting one node for every child
+	 * not generated yet.
+	 */
+	private static void generate(double[] odds, int maxSize, int maxDepth, boolean full, Sink sink)
+	{
+		if (maxSize < 1 || maxDepth < 1)
+			throw new IllegalArgumentException("Need room for at least one node, got size "
+					+ maxSize + " and depth " + maxDepth);
+
+		// The operators waiting for children, whether their left children
+		// are done, and their depths
+		char[] operators = new char[16];
+		boolean[] hasLeft = new boolean[16];
+		int[] depths = new int[16];
+		int top = -1;
+
+		int depth = 1,
+			nodes = 0,
+			open = 1;
+
+		while (true)
+		{
+			final boolean canBranch = depth < maxDepth && nodes + open + 2 <= maxSize;
+			final boolean branch;
+			final double roll;
+
+			if (full)
+			{
+				roll = 0;
+				branch = canBranch;
+			}
+			else
+			{
+				roll = MathlingMutator.randMinMax(0, 100);
+				branch = canBranch && roll > odds[0] + odds[1];
+			}
+
+			nodes++;
+
+			if (branch)
+			{
+				if (top + 1 == operators.length)
+				{
+					operators = Arrays.copyOf(operators, operators.length * 2);
+					hasLeft = Arrays.copyOf(hasLeft, hasLeft.length * 2);
+					depths = Arrays.copyOf(depths, depths.length * 2);
+				}
+
+				// Its operator is picked after its left side, as the
+				// recursive generator did
+				top++;
+				hasLeft[top] = false;
+				depths[top] = depth;
+
+				open++;
+				depth++;
+				continue;
+			}
+
+			leaf(odds, full? -1 : roll, sink);
+			open--;
+
+			while (top >= 0 && hasLeft[top])
+				sink.operator(operators[top--]);
+
+			if (top < 0)
+				return;
+
+			hasLeft[top] = true;
+			operators[top] = MathlingMutator.randomFunction();
+			depth = depths[top] + 1;
+		}
+	}
+
+	/**
+	 * Picks a number or the variable.
+	 *
+	 * @param odds	The chances of each, out of 100.
+	 * @param roll	The roll already made for this node, or -1 if there
+	 * 				wasn't one. If it picked an operator, which the budget
+	 * 				didn't allow, it's rolled again between the two.
+	 * @param sink	Where the node goes.
+	 */
+	private static void leaf(double[] odds, double roll, Sink sink)
+	{
+		final double leaves = odds[0] + odds[1];
+		final boolean number;
+
+		if (roll >= 0 && roll <= leaves)
+			number = roll <= odds[0];
+		else if (leaves > 0)
+			number = MathlingMutator.randMinMax(0, leaves) <= odds[0];
+		else
+			number = MathlingMutator.randMinMax(0, 100) < 50;
+
+		if (number)
+			sink.number(MathlingMutator.randMinMax(min, max));
+		else
+			sink.variable(var);
+
+		return;
+	}
+
+	/**
+	 * Receives a generated tree's nodes, in postfix order.
+	 */
+	private interface Sink
+	{
+		void number(double n);
+
+		void variable(char v);
+
+		/**
+		 * Joins the two subtrees just before it.
+		 */
+		void operator(char o);
+	}
+
+	/**
+	 * Builds the nodes into an {@code Expression}, which is left at the
+	 * bottom of its stack.
+	 */
+	private static class Builder implements Sink
+	{
+		private Expression[] stack = new Expression[16];
+		private int top = -1;
+
+		@Override
+		public void number(double n)
+		{
+			this.push(Expression.of(n));
+			return;
+		}
+
+		@Override
+		public void variable(char v)
+		{
+			this.push(Expression.of(v));
+			return;
+		}
+
+		@Override
+		public void operator(char o)
+		{
+			final Expression right = this.stack[this.top--];
+			this.stack[this.top] = Expression.of(this.stack[this.top], o, right);
+
+			return;
+		}
+
+		private void push(Expression e)
+		{
+			if (++this.top == this.stack.length)
+				this.stack = Arrays.copyOf(this.stack, this.stack.length * 2);
+
+			this.stack[this.top] = e;
+			return;
+		}
+	}
+}
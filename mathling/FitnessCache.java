@@ -0,0 +1,266 @@
+package mathling;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import expression.Expression;
+
+/**
+ * Remembers the accuracies of recently evaluated {@code Expression}s.
+ * Many mutations leave an {@code Expression} exactly as it was (a poke
+ * which misses every number, for example), and a loaded simulation starts
+ * with the same {@code Mathling} in every slot. Looking these up is far
+ * cheaper than evaluating them again.<br><br>
+ *
+ * {@code Expression}s are matched by their structural hash, and then
+ * checked with {@link expression.Expression#equivalent(Expression)}. The
+ * cache holds a bounded number of entries, evicting the least recently
+ * used one when full. All results are for one set of
+ * {@code TargetSamples}: if different samples are used, the cache is
+ * cleared first.<br><br>
+ *
+ * This is safe to use from several threads at once.
+ *
+ * @see mathling.Mathling#calculateAccuracy(TargetSamples, double)
+ */
+public class FitnessCache
+{
+	private final Map<Key, Result> entries;
+	private TargetSamples samples = null;
+
+	private long hits = 0,
+				 misses = 0,
+				 evictions = 0;
+
+	/**
+	 * @param capacity	The most accuracies to remember at once.
+	 */
+	public FitnessCache(final int capacity)
+	{
+		this.entries = new LinkedHashMap<Key, Result>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest)
+			{
+				if (this.size() > capacity)
+				{
+					FitnessCache.this.evictions++;
+					return true;
+				}
+
+				return false;
+			}
+		};
+
+		return;
+	}
+
+	/**
+	 * Updates a {@code Mathling}'s accuracy, from the cache if its
+	 * {@code Expression} has been seen before, or by evaluating it
+	 * otherwise. A remembered result also brings back any simplification
+	 * which the original evaluation made.<br><br>
+	 *
+	 * Only complete results are remembered, not rejections.
+	 *
+	 * @param m			The {@code Mathling} to update.
+	 * @param samples	The goal function's inputs and results.
+	 * @param bound		The accuracy past which the {@code Mathling} may be
+	 * 					rejected.
+	 *
+	 * @see mathling.Mathling#calculateAccuracy(TargetSamples, double)
+	 */
+	public void calculateAccuracy(Mathling m, TargetSamples samples, double bound)
+	{
+		this.calculateAccuracy(m, samples, bound, null);
+		return;
+	}
+
+	/**
+	 * Identical to {@link #calculateAccuracy(Mathling, TargetSamples, double)},
+	 * except that a {@code Mathling} which isn't remembered is evaluated
+	 * through held node vectors.
+	 *
+	 * @param m			The {@code Mathling} to update.
+	 * @param samples	The goal function's inputs and results.
+	 * @param bound		The accuracy past which the {@code Mathling} may be
+	 * 					rejected.
+	 * @param vectors	The held node vectors, or null.
+	 *
+	 * @see mathling.Mathling#calculateAccuracy(TargetSamples, double, NodeVectorCache)
+	 */
+	public void calculateAccuracy(Mathling m,
+									TargetSamples samples,
+									double bound,
+									NodeVectorCache vectors)
+	{
+		final Expression e = m.peekExpression();
+
+		if (this.recall(m, samples))
+			return;
+
+		m.calculateAccuracy(samples, bound, vectors);
+		this.remember(e, m, samples);
+
+		return;
+	}
+
+	/**
+	 * Gives a {@code Mathling} its remembered result, if there is one.
+	 *
+	 * @param m			The {@code Mathling} to look up.
+	 * @param samples	The goal function's inputs and results.
+	 * @return			True if it was remembered, and so needs no
+	 * 					evaluating.
+	 * @see mathling.RemoteEvaluator
+	 */
+	boolean recall(Mathling m, TargetSamples samples)
+	{
+		final Key key = new Key(m.peekExpression());
+		Result known;
+
+		synchronized (this)
+		{
+			if (this.samples != samples)
+			{
+				this.entries.clear();
+				this.samples = samples;
+			}
+
+			known = this.entries.get(key);
+
+			if (known != null)
+				this.hits++;
+			else
+				this.misses++;
+		}
+
+		if (known == null)
+			return false;
+
+		m.restore(known.expression, known.accuracy, known.faultedSamples);
+		return true;
+	}
+
+	/**
+	 * Remembers the result of a {@code Mathling}'s evaluation, unless it
+	 * was rejected.
+	 *
+	 * @param evaluated	Its {@code Expression} before the evaluation,
+	 * 					which may have simplified it.
+	 * @param m			The {@code Mathling}, just evaluated.
+	 * @param samples	The goal function's inputs and results.
+	 */
+	void remember(Expression evaluated, Mathling m, TargetSamples samples)
+	{
+		final Result result = m.snapshotResult();
+
+		if (result != null)
+		{
+			synchronized (this)
+			{
+				if (this.samples == samples)
+					this.entries.put(new Key(evaluated), result);
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 * Forgets every remembered accuracy. The counts of hits, misses and
+	 * evictions are kept.
+	 */
+	public synchronized void clear()
+	{
+		this.entries.clear();
+		this.samples = null;
+
+		return;
+	}
+
+	/**
+	 * @return	How many lookups found a remembered accuracy.
+	 */
+	public synchronized long getHits()
+	{
+		return this.hits;
+	}
+
+	/**
+	 * @return	How many lookups had to evaluate.
+	 */
+	public synchronized long getMisses()
+	{
+		return this.misses;
+	}
+
+	/**
+	 * @return	How many remembered accuracies have been pushed out to
+	 * 			make room for new ones.
+	 */
+	public synchronized long getEvictions()
+	{
+		return this.evictions;
+	}
+
+	/**
+	 * @return	How many accuracies are currently remembered.
+	 */
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * Wraps an {@code Expression} so that it can be used as a map key,
+	 * hashing and comparing by structure rather than identity.
+	 */
+	private static class Key
+	{
+		private final Expression expression;
+		private final int hash;
+
+		Key(Expression e)
+		{
+			this.expression = e;
+			this.hash = e.structuralHash();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+
+			final Key other = (Key) o;
+			return this.hash == other.hash &&
+					this.expression.equivalent(other.expression);
+		}
+	}
+
+	/**
+	 * A remembered accuracy calculation.
+	 */
+	static class Result
+	{
+		final Expression expression;
+		final double accuracy;
+		final int faultedSamples;
+
+		Result(Expression expression, double accuracy, int faultedSamples)
+		{
+			this.expression = expression;
+			this.accuracy = accuracy;
+			this.faultedSamples = faultedSamples;
+		}
+	}
+}
@@ -2,9 +2,11 @@ package mathling;
 import expression.DivideByZeroError;
 import expression.Expression;
 import expression.ExpressionCopier;
+import expression.ExpressionProgram;
 import expression.Simplifier;
 import lambdaType.Computable;
 import lambdaType.Thunklet;
+import lambdaType.ThunkletCompiler;
 
 import java.io.Serializable;
 
@@ -33,6 +35,45 @@ public class Mathling implements Serializable
 	private Expression expr = null;
 	private double accuracy = 0;
 	
+	// Compiled lazily from expr, and dropped whenever expr is replaced
+	private transient ExpressionProgram program = null;
+	
+	// Only built for long-lived elites, see markElite()
+	private transient Computable compiled = null;
+	private transient int eliteGenerations = 0;
+	
+	// How many samples divided by zero in the last accuracy calculation
+	private transient int faultedSamples = 0;
+	
+	// Whether the last accuracy calculation gave up early
+	private transient boolean rejected = false;
+	
+	// How many samples the last accuracy calculation actually evaluated
+	private transient int samplesTested = 0;
+	
+	// The last Expression rewrite() kept or turned down, so it isn't
+	// worked out again
+	private transient Expression rewritten = null;
+	
+	// The last Expression whose constants were tuned, so they aren't
+	// tuned again
+	private transient Expression tuned = null;
+	
+	// How many samples to test between checks against an accuracy bound
+	private static final int blockSize = 32;
+	
+	// How far the least possible error must be past a bound, as a
+	// fraction, before a Mathling is rejected without being sampled
+	private static final double screenTolerance = 1e-9;
+	
+	// Per-thread buffers for accuracy calculations
+	private static final ThreadLocal<Scratch> scratch =
+			ThreadLocal.withInitial(() -> new Scratch());
+	
+	// How many generations a Mathling must stay an elite before it's
+	// worth compiling to bytecode
+	private static final int compileThreshold = 20;
+	
 	final static double minTest = -360,
 						maxTest = 360;
 	
@@ -53,6 +94,25 @@ public class Mathling implements Serializable
 		return;
 	}
 	
+	/**
+	 * Creates a {@code Mathling} with a randomized {@code Expression},
+	 * generated a particular way.
+	 * 
+	 * @param method	How to generate the {@code Expression}.
+	 * @param maxDepth	The most levels it may have, which is further
+	 * 					limited by the tree limits.
+	 * 
+	 * @see mathling.ExpressionGenerator
+	 * @see mathling.MathlingMutator#setTreeLimits(int, int)
+	 */
+	public Mathling(ExpressionGenerator.Method method, int maxDepth)
+	{
+		this.expr = ExpressionGenerator.generate(method, odds,
+				MathlingMutator.getMaxTreeSize(),
+				Math.min(maxDepth, MathlingMutator.getMaxTreeDepth()));
+		return;
+	}
+	
 	/**
 	 * Creates a {@code Mathling} with a predefined {@code Expression}.
 	 * @param e	The {@code Expression} to assign to the new {@code Mathling}.
@@ -85,59 +145,325 @@ public class Mathling implements Serializable
 		return this.expr.collapse(input);
 	}
 	
+	/**
+	 * @return	The compiled form of the inner {@code Expression}, compiling
+	 * 			it first if needed. Callers must hold this {@code Mathling}'s
+	 * 			lock.
+	 * 
+	 * @see expression.ExpressionProgram
+	 */
+	private ExpressionProgram getProgram()
+	{
+		if (this.program == null)
+			this.program = ExpressionProgram.compile(this.expr);
+		
+		return this.program;
+	}
+	
 	/**
 	 * Given a lambda, find the average difference between the
 	 * {@code Expression}'s approximation and the goal function's result.
 	 * <br><br>
 	 * 
 	 * Note: Calculates the error across the range of {@code minTest} and
-	 * {@code maxTest}.
+	 * {@code maxTest}. This samples the goal function every time, so when
+	 * testing many {@code Mathling}s against the same function, use
+	 * {@link #calculateAccuracy(TargetSamples)} instead.
 	 * @param f	The goal function to emulate.
 	 * 
-	 * @see	expression.Expression#collapse(double)
+	 * @see #calculateAccuracy(TargetSamples)
 	 * @see lambdaType.Computable
 	 */
 	public void calculateAccuracy(Computable f)
 	{
-		this.accuracy = 0;
-		int terms = Math.abs((int) minTest - (int) maxTest);
-		//if (this.expr.getType() == ExpressionType.COMPLEX)
-		//{
-		//	calculateAccuracyThunklet(f);
-		//	return;
-		//}
+		this.calculateAccuracy(new TargetSamples(f));
+		return;
+	}
+	
+	/**
+	 * Find the average difference between the {@code Expression}'s
+	 * approximation and a goal function's precalculated results.
+	 * <br><br>
+	 * 
+	 * The {@code Expression} is evaluated through its compiled
+	 * {@code ExpressionProgram} over every sample input in one call, and the
+	 * errors are then summed in order. If any input divides by zero, the
+	 * {@code Expression} is simplified, and if that changes it, the accuracy
+	 * is recalculated with the simplified {@code Expression}. Otherwise, the
+	 * inputs which divided by zero are left out of the average. Division by
+	 * zero is reported through a mask rather than thrown, so bad inputs
+	 * cost no more than good ones.
+	 * <br><br>
+	 * 
+	 * Long-lived elites which have been compiled to bytecode are evaluated
+	 * input by input instead, with the same rules. Either way, the result
+	 * is the same as it would be with {@code collapse}.
+	 * <br><br>
+	 * 
+	 * This is safe to call from several threads at once, even on the same
+	 * {@code Mathling}. All of the work is done on a snapshot of the
+	 * {@code Expression}, and the results (including any simplification)
+	 * are only published at the end.
+	 * @param samples	The goal function's inputs and results.
+	 * 
+	 * @see	expression.Expression#collapse(double)
+	 * @see expression.ExpressionProgram#evaluate(double[], double[], boolean[])
+	 * @see expression.Simplifier#simplify(Expression)
+	 * @see #calculateAccuracy(TargetSamples, double)
+	 * @see #markElite()
+	 * @see mathling.TargetSamples
+	 */
+	public void calculateAccuracy(TargetSamples samples)
+	{
+		this.calculateAccuracy(samples, Double.POSITIVE_INFINITY);
+		return;
+	}
+	
+	/**
+	 * Identical to {@link #calculateAccuracy(TargetSamples)}, except this
+	 * gives up as soon as the accuracy is certain to be worse than
+	 * {@code bound}. The samples are then worked through a block at a time,
+	 * and after each block the error so far is checked against the bound.
+	 * <br><br>
+	 * 
+	 * A {@code Mathling} which is given up on is marked as rejected, and
+	 * its accuracy is set to infinity. Otherwise, its accuracy is exactly
+	 * what {@link #calculateAccuracy(TargetSamples)} would give. Before
+	 * any samples are tested, the range of the {@code Expression}'s
+	 * results is bounded by interval arithmetic, and if that alone shows
+	 * it's worse than the bound, it's rejected having tested none.
+	 * <br><br>
+	 * 
+	 * Note: Stopping early is safe because errors are never negative, and
+	 * leaving out inputs which divide by zero only shrinks the divisor of
+	 * the average. So the error summed so far, divided by the total number
+	 * of samples, can only grow as more samples are tested.
+	 * @param samples	The goal function's inputs and results. Testing
+	 * 					these in a {@code SampleOrder} which spreads across
+	 * 					the whole range catches bad candidates sooner.
+	 * @param bound		The accuracy past which this {@code Mathling} is of
+	 * 					no use. Infinity means it is never rejected.
+	 * 
+	 * @see #isRejected()
+	 * @see mathling.SampleOrder
+	 */
+	public void calculateAccuracy(TargetSamples samples, double bound)
+	{
+		this.calculateAccuracy(samples, bound, null);
+		return;
+	}
+	
+	/**
+	 * Identical to {@link #calculateAccuracy(TargetSamples, double)}, except
+	 * this evaluates through the held node vectors of the last generation's
+	 * elites. Only the nodes this {@code Mathling} doesn't share with them
+	 * are worked out, which for a freshly mutated child is little more than
+	 * the mutated path. The accuracy is exactly the same either way.
+	 * @param samples	The goal function's inputs and results.
+	 * @param bound		The accuracy past which this {@code Mathling} is of
+	 * 					no use. Infinity means it is never rejected.
+	 * @param vectors	The held node vectors. If null, or built for other
+	 * 					samples, the {@code Expression} is evaluated whole.
+	 * 
+	 * @see mathling.NodeVectorCache
+	 */
+	public void calculateAccuracy(TargetSamples samples, double bound, NodeVectorCache vectors)
+	{
+		final NodeVectorCache held = (vectors != null && vectors.isFor(samples))? vectors : null;
+		final double[] inputs = samples.inputs,
+					   targets = samples.targets;
+		final int n = inputs.length;
+		
+		// Blocks only pay for themselves if there's a bound to stop at
+		final int block = (bound < Double.POSITIVE_INFINITY)? blockSize : Math.max(n, 1);
 		
-		for (int i = (int) minTest; i < (int) maxTest; i++)
+		Expression e;
+		ExpressionProgram program;
+		Computable self;
+		
+		synchronized (this)
 		{
-			try {
-				double bump = Math.abs(this.collapse(i) - f.compute(i));
-				this.accuracy += bump;
-			} catch (DivideByZeroError err) {
-				Expression tryToSimplify = Simplifier.simplify(this.expr);
-				if (!tryToSimplify.equivalent(this.expr))
+			e = this.expr;
+			
+			// The held vectors cover what the program and bytecode would
+			program = (held == null)? this.getProgram() : this.program;
+			self = (held == null)? this.compiled : null;
+		}
+		
+		if (bound < Double.POSITIVE_INFINITY &&
+				isCertainlyWorse(e, program, samples, bound))
+		{
+			synchronized (this)
+			{
+				this.faultedSamples = 0;
+				this.samplesTested = 0;
+				this.rejected = true;
+				this.accuracy = Double.POSITIVE_INFINITY;
+			}
+			
+			return;
+		}
+		
+		double total;
+		int terms,
+			tested;
+		boolean rejected;
+		
+		evaluation:
+		while (true)
+		{
+			total = 0;
+			terms = n;
+			tested = n;
+			rejected = false;
+			
+			if (self == null)
+			{
+				final Scratch buffers = scratch.get().ensure(n);
+				final double[] results = buffers.results;
+				final boolean[] faults = buffers.faults;
+				boolean triedToSimplify = false;
+				
+				for (int start = 0; start < n; start += block)
 				{
-					this.expr = tryToSimplify;
-					this.calculateAccuracy(f);
-					return;
+					final int end = Math.min(n, start + block);
+					final int faulted = (held == null)?
+							program.evaluate(inputs, start, end, results, faults) :
+							held.evaluate(e, start, end, results, faults);
+					
+					if (faulted > 0 && !triedToSimplify)
+					{
+						Expression tryToSimplify = Simplifier.simplify(e);
+						if (!tryToSimplify.equivalent(e))
+						{
+							e = tryToSimplify;
+							program = (held == null)? ExpressionProgram.compile(e) : null;
+							continue evaluation;
+						}
+						
+						triedToSimplify = true;
+					}
+					
+					if (faulted == 0)
+					{
+						for (int i = start; i < end; i++)
+							total += Math.abs(results[i] - targets[i]);
+					}
+					else
+					{
+						for (int i = start; i < end; i++)
+						{
+							if (!faults[i])
+								total += Math.abs(results[i] - targets[i]);
+						}
+						
+						terms -= faulted;
+					}
+					
+					if (total / n > bound)
+					{
+						rejected = true;
+						tested = end;
+						break;
+					}
+				}
+				
+				break;
+			}
+			
+			for (int i = 0; i < n; i++)
+			{
+				try {
+					total += Math.abs(self.compute(inputs[i]) - targets[i]);
+				} catch (DivideByZeroError err) {
+					Expression tryToSimplify = Simplifier.simplify(e);
+					if (!tryToSimplify.equivalent(e))
+					{
+						e = tryToSimplify;
+						program = ExpressionProgram.compile(e);
+						self = null;
+						continue evaluation;
+					}
+					else
+					{
+						terms--;
+					}
 				}
-				else
+				
+				if ((i + 1) % block == 0 && total / n > bound)
 				{
-					terms--;
+					rejected = true;
+					tested = i + 1;
+					break;
 				}
 			}
+			
+			break;
 		}
 		
-		if (terms > 0)
-			this.accuracy /= terms;
-		else
+		synchronized (this)
 		{
-			this.accuracy = 1000;
-		}
+			if (this.expr != e)
+			{
+				this.expr = e;
+				this.program = program;
+				this.compiled = null;
+			}
 			
+			this.faultedSamples = n - terms;
+			this.samplesTested = tested;
+			this.rejected = rejected;
+			
+			if (rejected)
+				this.accuracy = Double.POSITIVE_INFINITY;
+			else if (terms > 0)
+				this.accuracy = total / terms;
+			else
+				this.accuracy = 1000;
+		}
 		
 		return;
 	}
 	
+	/**
+	 * Screens an {@code Expression} before any sample is evaluated. The
+	 * range its results must fall in over the samples' inputs is worked
+	 * out by interval arithmetic, and if even the closest results in that
+	 * range would miss the targets by more than the bound on average, the
+	 * {@code Expression} is certainly worse than the bound.
+	 * <br><br>
+	 * 
+	 * Note: If any divisor could be zero, nothing is certain. Samples
+	 * which divide by zero are left out of the average, so the error over
+	 * the rest could be anything, and near a pole the range is unbounded
+	 * anyway. Such {@code Expression}s are always evaluated.
+	 * 
+	 * @param e			The {@code Expression} to screen.
+	 * @param program	Its compiled program, or null to compile it here.
+	 * @param samples	The goal function's inputs and results.
+	 * @param bound		The accuracy past which it's of no use.
+	 * @return			True if it's certainly worse than the bound.
+	 * 
+	 * @see expression.ExpressionProgram#bound(double, double, double[])
+	 * @see mathling.TargetSamples#minimumError(double, double)
+	 */
+	private static boolean isCertainlyWorse(Expression e,
+											ExpressionProgram program,
+											TargetSamples samples,
+											double bound)
+	{
+		final double[] range = new double[2];
+		
+		if (program == null)
+			program = ExpressionProgram.compile(e);
+		
+		if (!program.bound(samples.getLowestInput(), samples.getHighestInput(), range))
+			return false;
+		
+		// Leave room for rounding in the sums behind the least error
+		return samples.minimumError(range[0], range[1]) * (1 - screenTolerance) > bound;
+	}
+	
 	/**
 	 * Identical to {@link #calculateAccuracy(Computable)}, except this
 	 * first creates a {@code Thunklet} for the {@code Expression} before
@@ -168,18 +494,146 @@ public class Mathling implements Serializable
 	}
 	
 	/**
-	 * Copies the inner {@code Expression} and returns a mutated form of it.
+	 * Records that this {@code Mathling} has survived another generation
+	 * as one of the simulation's elites. Once it has done so for long
+	 * enough, its {@code Expression} is compiled to bytecode, which is
+	 * then used for all further accuracy calculations.
+	 * <br><br>
+	 * 
+	 * Compiling is only worth it for {@code Mathling}s which will be
+	 * evaluated over many generations, so short-lived ones are left alone.
+	 * Neither are ones which divide by zero, as compiled bytecode has to
+	 * throw for each bad input.
+	 * 
+	 * @see lambdaType.ThunkletCompiler
+	 */
+	public synchronized void markElite()
+	{
+		this.eliteGenerations++;
+		
+		if (this.compiled == null &&
+				this.faultedSamples == 0 &&
+				this.eliteGenerations >= compileThreshold)
+			this.compiled = ThunkletCompiler.compile(this.expr);
+		
+		return;
+	}
+	
+	/**
+	 * Replaces the inner {@code Expression} with its rewritten form,
+	 * which calculates nearly the same thing with fewer nodes. Some
+	 * rewrites aren't exact, as they can change a result by rounding,
+	 * or stop a division by zero, so the rewritten form is evaluated
+	 * over every sample before it's kept. It's only kept if it's at least
+	 * as accurate, and then its accuracy replaces this one's, so the
+	 * accuracy always matches the {@code Expression}.
+	 * <br><br>
+	 * 
+	 * Elites are rewritten before they become parents, so that their
+	 * children don't inherit dead weight. A rewrite which was turned down
+	 * isn't tried again.
+	 * 
+	 * @param samples	The goal function's inputs and results, which this
+	 * 					{@code Mathling}'s accuracy was calculated over.
+	 * @return			True if the rewrite was kept.
+	 * 
+	 * @see expression.Simplifier#rewrite(Expression)
+	 * @see #calculateAccuracy(TargetSamples)
+	 */
+	public boolean rewrite(TargetSamples samples)
+	{
+		final Expression original;
+		final double before;
+		
+		synchronized (this)
+		{
+			if (this.expr == this.rewritten)
+				return false;
+			
+			original = this.expr;
+			before = this.accuracy;
+		}
+		
+		final Expression e = Simplifier.rewrite(original);
+		
+		if (e == original)
+		{
+			synchronized (this)
+			{
+				this.rewritten = e;
+			}
+			
+			return false;
+		}
+		
+		final Mathling trial = new Mathling(e);
+		trial.calculateAccuracy(samples);
+		
+		synchronized (this)
+		{
+			// Whatever happened in the meantime is left alone
+			if (this.expr != original)
+				return false;
+			
+			if (Double.compare(trial.accuracy, before) > 0)
+			{
+				this.rewritten = original;
+				return false;
+			}
+			
+			this.expr = trial.expr;
+			this.program = trial.program;
+			this.compiled = null;
+			this.accuracy = trial.accuracy;
+			this.faultedSamples = trial.faultedSamples;
+			this.samplesTested = trial.samplesTested;
+			this.rejected = false;
+			this.rewritten = trial.expr;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns a mutated form of the inner {@code Expression}. The child
+	 * shares every subtree the mutation didn't touch with this
+	 * {@code Mathling}, so only the mutated path is newly allocated.
 	 * @return	A mutated form of this {@code Mathling}'s {@code Expression}.
 	 * 
 	 * @see mathling.MathlingMutator#mutateExpression(Expression, double, double[])
 	 */
 	public Mathling getMutation()
 	{
-		return new Mathling(
+		final Expression e = this.peekExpression();
+		final Mathling child = new Mathling(
 				MathlingMutator.mutateExpression(
-						ExpressionCopier.copy(this.expr),
+						e,
 						this.mutationSignificance,
 						Mathling.odds));
+		
+		// A child the mutation left alone needs no more tuning than this
+		if (child.expr == e)
+			child.tuned = this.tuned;
+		
+		return child;
+	}
+	
+	/**
+	 * Copies this {@code Mathling}'s {@code Expression}, accuracy and
+	 * mutation significance, but nothing it has compiled or remembered,
+	 * so that the copy can evolve somewhere else without sharing state
+	 * with this one.
+	 * @return	A fresh {@code Mathling} just as accurate as this one.
+	 * 
+	 * @see main.IslandModel
+	 */
+	public synchronized Mathling copy()
+	{
+		final Mathling m = new Mathling(this.expr);
+		m.accuracy = this.accuracy;
+		m.mutationSignificance = this.mutationSignificance;
+	
+		return m;
 	}
 	
 	/**
@@ -209,4 +663,169 @@ public class Mathling implements Serializable
 		this.accuracy = newAccuracy;
 	}
 	
+	/**
+	 * @return	How likely a mutation is to change large parts of the tree.
+	 * @see mathling.MathlingCodec
+	 */
+	double getMutationSignificance()
+	{
+		return this.mutationSignificance;
+	}
+	
+	/**
+	 * @param significance	How likely a mutation should be to change
+	 * 						large parts of the tree.
+	 * @see mathling.MathlingCodec
+	 */
+	void setMutationSignificance(double significance)
+	{
+		this.mutationSignificance = significance;
+	}
+	
+	/**
+	 * @return	The inner {@code Expression} itself, rather than a copy.
+	 * 			Only for use within this package, by code which won't
+	 * 			modify it.
+	 */
+	synchronized Expression peekExpression()
+	{
+		return this.expr;
+	}
+	
+	/**
+	 * @return	The outcome of the last accuracy calculation, or null if
+	 * 			it was rejected and so has no exact accuracy.
+	 * @see mathling.FitnessCache
+	 */
+	synchronized FitnessCache.Result snapshotResult()
+	{
+		if (this.rejected)
+			return null;
+		
+		return new FitnessCache.Result(this.expr, this.accuracy, this.faultedSamples);
+	}
+	
+	/**
+	 * Takes on the outcome of an earlier accuracy calculation, as if it
+	 * had just been done on this {@code Mathling}.
+	 * 
+	 * @param e					The {@code Expression} after the calculation,
+	 * 							which may have been simplified.
+	 * @param accuracy			The calculated accuracy.
+	 * @param faultedSamples	How many samples divided by zero.
+	 * @see mathling.FitnessCache
+	 */
+	synchronized void restore(Expression e, double accuracy, int faultedSamples)
+	{
+		this.restore(e, accuracy, faultedSamples, 0, false);
+		return;
+	}
+	
+	/**
+	 * Takes on the outcome of an accuracy calculation done somewhere
+	 * else, exactly as if it had been done on this {@code Mathling}.
+	 * 
+	 * @param e					The {@code Expression} after the calculation,
+	 * 							which may have been simplified.
+	 * @param accuracy			The calculated accuracy.
+	 * @param faultedSamples	How many samples divided by zero.
+	 * @param samplesTested		How many samples were evaluated.
+	 * @param rejected			Whether the calculation gave up early.
+	 * @see mathling.RemoteEvaluator
+	 */
+	synchronized void restore(Expression e,
+								double accuracy,
+								int faultedSamples,
+								int samplesTested,
+								boolean rejected)
+	{
+		if (this.expr != e && !this.expr.equivalent(e))
+		{
+			this.expr = e;
+			this.program = null;
+			this.compiled = null;
+		}
+		
+		this.accuracy = accuracy;
+		this.faultedSamples = faultedSamples;
+		this.rejected = rejected;
+		this.samplesTested = samplesTested;
+		
+		return;
+	}
+	
+	/**
+	 * @return	True if the inner {@code Expression}'s constants have
+	 * 			already been tuned as far as they'll go.
+	 * @see mathling.ConstantOptimizer
+	 */
+	synchronized boolean isTuned()
+	{
+		return this.expr == this.tuned;
+	}
+	
+	/**
+	 * Records that an {@code Expression}'s constants have been tuned as
+	 * far as they'll go, so that if it's still this {@code Mathling}'s,
+	 * they aren't tuned again.
+	 * 
+	 * @param e	The tuned {@code Expression}.
+	 * @see mathling.ConstantOptimizer
+	 */
+	synchronized void markTuned(Expression e)
+	{
+		this.tuned = e;
+		return;
+	}
+	
+	/**
+	 * @return	True if the last accuracy calculation gave up early,
+	 * 			because this {@code Mathling} was certain to be worse
+	 * 			than the bound it was given.
+	 * @see #calculateAccuracy(TargetSamples, double)
+	 */
+	public synchronized boolean isRejected()
+	{
+		return this.rejected;
+	}
+	
+	/**
+	 * @return	How many samples the last accuracy calculation evaluated.
+	 * 			This is fewer than all of them if it was rejected early,
+	 * 			and none if its accuracy was remembered from before.
+	 */
+	public synchronized int getSamplesTested()
+	{
+		return this.samplesTested;
+	}
+	
+	/**
+	 * @return	How many samples divided by zero, and were left out, in
+	 * 			the last accuracy calculation.
+	 */
+	public synchronized int getFaultedSamples()
+	{
+		return this.faultedSamples;
+	}
+	
+	/**
+	 * Result buffers for accuracy calculations, kept per thread so that
+	 * evaluating doesn't allocate.
+	 */
+	private static class Scratch
+	{
+		double[] results = new double[0];
+		boolean[] faults = new boolean[0];
+		
+		Scratch ensure(int size)
+		{
+			if (this.results.length < size)
+			{
+				this.results = new double[size];
+				this.faults = new boolean[size];
+			}
+			
+			return this;
+		}
+	}
 }
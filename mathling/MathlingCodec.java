@@ -0,0 +1,246 @@
+package mathling;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import expression.Expression;
+
+/**
+ * Encodes {@code Mathling}s in a compact binary form, in place of Java
+ * serialization. There are no class descriptors, and every node costs a
+ * single byte, plus eight for a number. Both directions work with an
+ * explicit stack, so no tree is too deep to save or load.<br><br>
+ *
+ * The layout, with every value big-endian, is:
+ * <pre>
+ * magic				4 bytes, "MTHL"
+ * version				2 bytes, currently 1
+ * flags				2 bytes, bit 0 set if its constants are tuned
+ * accuracy				8 bytes, IEEE double
+ * mutation significance	8 bytes, IEEE double
+ * node count			4 bytes
+ * number count			4 bytes
+ * numbers				8 bytes each, IEEE doubles, in pre-order
+ * operations			1 byte per node, in pre-order
+ * </pre>
+ * An operation is 0 for a number, 1 for a variable (followed by one more
+ * byte, its letter), or otherwise the operator itself. The numbers come
+ * first so that they stay 8-byte aligned. Unknown flags are ignored, and
+ * records written before there were any flags read as untuned.
+ *
+ * @see mathling.MathlingSaver
+ */
+public class MathlingCodec
+{
+	static final int magic = 0x4D54484C;
+	static final short version = 1;
+
+	private static final int headerSize = 32;
+
+	private static final byte	NUMBER		= 0,
+								VARIABLE	= 1;
+
+	// Set if the constants have been tuned as far as they'll go
+	private static final short TUNED = 1;
+
+	/**
+	 * @param m	The {@code Mathling} to encode.
+	 * @return	The encoded {@code Mathling}, ready to be written from its
+	 * 			position to its limit.
+	 */
+	public static ByteBuffer encode(Mathling m)
+	{
+		return encode(m.peekExpression(), m.getAccuracy(), m.getMutationSignificance(), m.isTuned());
+	}
+	
+	/**
+	 * @param root			The {@code Expression} to encode.
+	 * @param accuracy		Its {@code Mathling}'s accuracy.
+	 * @param significance	Its {@code Mathling}'s mutation significance.
+	 * @param tuned			Whether its constants are already tuned.
+	 * @return				The encoded {@code Mathling}.
+	 * @see #encode(Mathling)
+	 */
+	static ByteBuffer encode(Expression root, double accuracy, double significance, boolean tuned)
+	{
+		final int nodes = root.getSize();
+
+		// Count the numbers first, so the buffer can be sized exactly
+		Expression[] pending = new Expression[16];
+		int top = 0,
+			numbers = 0,
+			variables = 0;
+
+		pending[0] = root;
+		while (top >= 0)
+		{
+			final Expression e = pending[top--];
+
+			switch (e.getType())
+			{
+				case NUMBER:
+					numbers++;
+					break;
+				case VARIABLE:
+					variables++;
+					break;
+				case COMPLEX:
+					if (top + 2 >= pending.length)
+						pending = Arrays.copyOf(pending, pending.length * 2);
+					pending[++top] = e.getRight();
+					pending[++top] = e.getLeft();
+					break;
+			}
+		}
+
+		final ByteBuffer out = ByteBuffer.allocate(
+				headerSize + numbers * Double.BYTES + nodes + variables);
+
+		out.putInt(magic);
+		out.putShort(version);
+		out.putShort(tuned? TUNED : 0);
+		out.putDouble(accuracy);
+		out.putDouble(significance);
+		out.putInt(nodes);
+		out.putInt(numbers);
+
+		int numberAt = headerSize,
+			opAt = headerSize + numbers * Double.BYTES;
+
+		top = 0;
+		pending[0] = root;
+		while (top >= 0)
+		{
+			final Expression e = pending[top--];
+
+			switch (e.getType())
+			{
+				case NUMBER:
+					out.put(opAt++, NUMBER);
+					out.putDouble(numberAt, e.getNum());
+					numberAt += Double.BYTES;
+					break;
+				case VARIABLE:
+					out.put(opAt++, VARIABLE);
+					out.put(opAt++, (byte) e.getVariable());
+					break;
+				case COMPLEX:
+					out.put(opAt++, (byte) e.getOperator());
+					pending[++top] = e.getRight();
+					pending[++top] = e.getLeft();
+					break;
+			}
+		}
+
+		out.position(0);
+		return out;
+	}
+
+	/**
+	 * @param in	A buffer starting with an encoded {@code Mathling}.
+	 * @return		True if it starts with this format's magic number.
+	 */
+	public static boolean isEncoded(ByteBuffer in)
+	{
+		return in.remaining() >= 4 && in.getInt(in.position()) == magic;
+	}
+
+	/**
+	 * Decodes a {@code Mathling}, reading from the buffer's position on.
+	 *
+	 * @param in	The encoded {@code Mathling}.
+	 * @return		The decoded {@code Mathling}, with its saved accuracy,
+	 * 				and marked as tuned if it was.
+	 * @throws IOException	If the data isn't a {@code Mathling} in a
+	 * 						version of this format which can be read.
+	 */
+	public static Mathling decode(ByteBuffer in) throws IOException
+	{
+		try
+		{
+			if (in.getInt() != magic)
+				throw new IOException("Not an encoded Mathling");
+
+			final short found = in.getShort();
+			if (found != version)
+				throw new IOException("Can't read version " + found + " of the Mathling format");
+
+			final short flags = in.getShort();
+			final double accuracy = in.getDouble(),
+						 significance = in.getDouble();
+			final int nodes = in.getInt(),
+					  numbers = in.getInt();
+
+			if (nodes < 1 || numbers < 0 || numbers > nodes)
+				throw new IOException("Corrupt Mathling: " + nodes + " nodes, " + numbers + " numbers");
+
+			int numberAt = in.position(),
+				opAt = numberAt + numbers * Double.BYTES;
+
+			// Operators still waiting for children, and their left
+			// children once those are done
+			final byte[] operators = new byte[nodes];
+			final Expression[] lefts = new Expression[nodes];
+			int top = -1;
+
+			Expression done = null;
+
+			for (int i = 0; i < nodes; i++)
+			{
+				final byte op = in.get(opAt++);
+				Expression value;
+
+				if (op == NUMBER)
+				{
+					value = Expression.of(in.getDouble(numberAt));
+					numberAt += Double.BYTES;
+				}
+				else if (op == VARIABLE)
+				{
+					value = Expression.of((char) in.get(opAt++));
+				}
+				else
+				{
+					operators[++top] = op;
+					lefts[top] = null;
+					continue;
+				}
+
+				// A finished subtree completes every operator whose left
+				// side was already done
+				while (top >= 0 && lefts[top] != null)
+				{
+					value = Expression.of(lefts[top], (char) operators[top], value);
+					lefts[top--] = null;
+				}
+
+				if (top >= 0)
+					lefts[top] = value;
+				else if (i == nodes - 1)
+					done = value;
+				else
+					throw new IOException("Corrupt Mathling: tree ends early");
+			}
+
+			if (done == null)
+				throw new IOException("Corrupt Mathling: tree is incomplete");
+
+			in.position(opAt);
+
+			final Mathling m = new Mathling(done);
+			m.setAccuracy(accuracy);
+			m.setMutationSignificance(significance);
+
+			if ((flags & TUNED) != 0)
+				m.markTuned(done);
+
+			return m;
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException e)
+		{
+			throw new IOException("Corrupt Mathling: truncated", e);
+		}
+	}
+}
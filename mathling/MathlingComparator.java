@@ -5,7 +5,10 @@ import java.util.Comparator;
 /**
  * Provides a function which compares the accuracy of two {@code Mathling}'s
  * for sorting purposes, in order to find the most accurate one.
+ * Accuracies are compared as {@link Double#compare(double, double)} does,
+ * so that NaN is worse than anything else and sorting stays consistent.
  *
+ * @see mathling.Selection
  */
 public class MathlingComparator
 {
@@ -16,10 +19,7 @@ public class MathlingComparator
 	{
 		public int compare(Mathling m1, Mathling m2)
 		{
-			if (m1.getAccuracy() == m2.getAccuracy())
-				return 0;
-			else
-				return (m2.getAccuracy() > m1.getAccuracy())? -1 : 1;
+			return Double.compare(m1.getAccuracy(), m2.getAccuracy());
 		}
 	};
 }
@@ -1,20 +1,76 @@
 package mathling;
 
+import java.util.Arrays;
+
 import expression.Expression;
-import expression.ExpressionCopier;
+import expression.ExpressionArena;
+import expression.ExpressionType;
+import expression.ExpressionVisitor;
+import expression.ExpressionWalker;
 
 /**
  * A collection of useful functions for mutating and generating {@code Mathling}s.
- *
+ * 
  */
 public class MathlingMutator
 {
-	private static final char var = 'x';
-	private static final double max = 100,
-								min = -100,
-								shiftMin = -5,
+	private static final double shiftMin = -5,
 								shiftMax = 5;
 	
+	private static final MathlingRandom random = new MathlingRandom();
+	
+	// A thread's own generator, in place of the shared one, see useRandom()
+	private static final ThreadLocal<MathlingRandom> threadRandom = new ThreadLocal<MathlingRandom>();
+	
+	// See setTreeLimits()
+	private static volatile int maxTreeSize = 1024,
+								maxTreeDepth = 64;
+	
+	/**
+	 * Restarts the random numbers behind every mutation and generated
+	 * {@code Expression} from a seed, so that a run can be repeated.
+	 * 
+	 * @param seed	The seed to restart from.
+	 * @see mathling.MathlingRandom
+	 */
+	public static void setSeed(long seed)
+	{
+		random.setState(seed);
+		return;
+	}
+	
+	/**
+	 * @return	The random number generator behind every mutation on this
+	 * 			thread, for saving or restoring its state. This is the
+	 * 			shared one, unless the thread was given its own.
+	 * @see #useRandom(MathlingRandom)
+	 */
+	public static MathlingRandom getRandom()
+	{
+		final MathlingRandom own = threadRandom.get();
+		
+		return (own != null)? own : random;
+	}
+	
+	/**
+	 * Gives the current thread its own random number generator, so that
+	 * its mutations neither contend with nor depend on any other
+	 * thread's. Each island of an island model evolves this way.
+	 * 
+	 * @param r	The generator to draw from on this thread, or null to go
+	 * 			back to the shared one.
+	 * @see main.IslandModel
+	 */
+	public static void useRandom(MathlingRandom r)
+	{
+		if (r == null)
+			threadRandom.remove();
+		else
+			threadRandom.set(r);
+		
+		return;
+	}
+	
 	/**
 	 * Returns a {@code double} between two values.
 	 * @param lower	The lower bound to generate between.
@@ -23,7 +79,7 @@ public class MathlingMutator
 	 */
 	public static double randMinMax(double lower, double upper)
 	{
-		return lower + Math.random() * (upper - lower);
+		return lower + getRandom().nextDouble() * (upper - lower);
 	}
 	
 	/**
@@ -32,9 +88,9 @@ public class MathlingMutator
 	 * @return The chosen operator.
 	 * @see expression.Expression
 	 */
-	private static char randomFunction()
+	static char randomFunction()
 	{
-		final double roll = Math.random();
+		final double roll = getRandom().nextDouble();
 		
 		if (roll <= 0.25)
 			return '+';
@@ -47,81 +103,86 @@ public class MathlingMutator
 	}
 	
 	/**
-	 * Recursively generates a new, random {@code Expression}, where the
-	 * odds of each node being one of the three types of {@code Expression}s
-	 * is determined by the input array.
-	 * <br><br>
+	 * Generates a new, random {@code Expression} by growing it within the
+	 * tree size and depth limits, where the odds of each node being one
+	 * of the three types of {@code Expression}s is determined by the
+	 * input array.
 	 * 
-	 * Currently this function has no way to stop when a tree becomes too
-	 * large. This means it may ambitiously eat up all of the allotted stack
-	 * memory. Bless its heart.
-	 * 
-	 * @param odds	The probability of each node being a certain type.
-	 * 				{@code odds[0]} is the probability of the node being
-	 * 				a numerical {@code Expression}. {@code odds[1]} is
-	 * 				the probability of the node being a variable {@code Expression}.
-	 * 				The probability of a complex {@code Expression} is determined
-	 * 				from the remainder. For example, {@code [20, 30]} would mean
-	 * 				a 20% chance of being a number, a 30% chance of being
-	 * 				a variable, and a 50% chance of being a complex {@code Expression}.
+	 * @param odds	The probabilities of each type of node. See
+	 * 				{@link mathling.ExpressionGenerator#grow(double[], int, int)}
+	 * 				for more details.
 	 * @return		The generated {@code Expression}.
 	 * 
-	 * @see expression.Expression
-	 * @see #newExpressionSafe(double[])
+	 * @see	expression.Expression
+	 * @see #setTreeLimits(int, int)
 	 */
-	private static Expression newExpressionUnsafe(double[] odds) throws StackOverflowError
+	public static Expression newExpressionSafe(double[] odds)
 	{
-		final double roll = randMinMax(0, 100);
-		if (roll <= odds[0])
-			return new Expression(randMinMax(min, max));
-		
-		else if (roll <= (odds[0] + odds[1]))
-			return new Expression(var);
-		
-		else
-			return new Expression(
-					newExpressionUnsafe(odds),
-					randomFunction(),
-					newExpressionUnsafe(odds));
+		return ExpressionGenerator.grow(odds, maxTreeSize, maxTreeDepth);
 	}
 	
 	/**
-	 * This gets around the {@code StackOverflowError} by repeatedly
-	 * retrying the function until it works.
-	 * <br><br>
-	 * 
-	 * Note: This does affect the probability! Odds of {@code [0.1, 0.1]}
-	 * will almost certainly overflow, and further repeats will almost
-	 * certainly repeat until the first {@code Expression} generated is
-	 * either a number or a variable. Therefore in this case, the
-	 * probability of a complex {@code Expression} is almost 0% instead
-	 * of the expected 99.8%. Increase the odds of the former two if
-	 * this ends up happening.
-	 * <br><br>
+	 * Identical to {@link #newExpressionSafe(double[])}, but grows the new
+	 * tree straight into an {@code ExpressionArena}, without building an
+	 * {@code Expression} first. The same random numbers are drawn, so
+	 * the tree is the same too.
 	 * 
-	 * Testing still needs to be done to find the optimal odds for
-	 * generation of complex {@code Expression}s.
+	 * @param arena	The arena to add the tree to.
+	 * @param odds	The probabilities of each type of node.
+	 * @return		The new tree's index.
 	 * 
-	 * @param odds	The probabilities to attempt to match. See 
-	 * 				{@link #newExpressionUnsafe(double[])} for more details.
-	 * @return		The safely-generated {@code Expression}.
+	 * @see expression.ExpressionArena
+	 */
+	public static int newArenaTree(ExpressionArena arena, double[] odds)
+	{
+		return arena.add((into) -> ExpressionGenerator.grow(into, odds, maxTreeSize, maxTreeDepth));
+	}
+	
+	/**
+	 * Limits the size of every {@code Expression} generated, and of every
+	 * mutated one: a mutation only grows a new subtree as big as the
+	 * rest of the tree leaves room for. Trees which are already bigger
+	 * aren't cut down, but can only be mutated into smaller ones.
 	 * 
-	 * @see	expression.Expression
-	 * @see	#newExpressionUnsafe(double[])
+	 * @param size	The most nodes a tree may have, at least 1.
+	 * @param depth	The most levels a tree may have, at least 1.
 	 */
-	public static Expression newExpressionSafe(double[] odds)
+	public static void setTreeLimits(int size, int depth)
 	{
-		// Who says Java is an unsafe language?
-		try {
-			return newExpressionUnsafe(odds);
-		} catch (StackOverflowError err) {
-			return newExpressionSafe(odds);
-		}
+		if (size < 1 || depth < 1)
+			throw new IllegalArgumentException("Trees need room for at least one node, got size "
+					+ size + " and depth " + depth);
+		
+		maxTreeSize = size;
+		maxTreeDepth = depth;
+		return;
+	}
+	
+	/**
+	 * @return	The most nodes a generated or mutated tree may have.
+	 */
+	public static int getMaxTreeSize()
+	{
+		return maxTreeSize;
+	}
+	
+	/**
+	 * @return	The most levels a generated or mutated tree may have.
+	 */
+	public static int getMaxTreeDepth()
+	{
+		return maxTreeDepth;
 	}
 	
 	/**
 	 * A "poke" is a chance to change one or more of an {@code Expression}'s
 	 * numerical nodes while leaving the structure of the tree fully intact.
+	 * <br><br>
+	 * 
+	 * Only the nodes above a poked number are rebuilt. Any subtree which
+	 * wasn't poked is shared with the original {@code Expression}, and if
+	 * nothing was poked at all, the original is returned as-is. Nodes are
+	 * visited depth-first, left side first, without recursing.
 	 * 
 	 * @param e					The {@code Expression} to poke.
 	 * @param aggressiveness	How likely it will be to poke any found
@@ -134,29 +195,64 @@ public class MathlingMutator
 	public static Expression pokeExpression(Expression e,
 											double aggressiveness)
 	{
-		final double roll = randMinMax(0, 100);
+		final Expression[] results = new Expression[e.getDepth() + 1];
 		
-		switch (e.getType())
+		ExpressionWalker.walk(e, new ExpressionVisitor<RuntimeException>()
 		{
-			case NUMBER:
-				if (roll <= aggressiveness)
-					return new Expression(
+			int top = -1;
+			
+			@Override
+			public void enter(Expression e, int level)
+			{
+				// Every node has its roll, even though a complex one's is
+				// never used, so the same seed pokes the same numbers
+				randMinMax(0, 100);
+				return;
+			}
+			
+			@Override
+			public void leaf(Expression e, int level)
+			{
+				final double roll = randMinMax(0, 100);
+				
+				if (e.getType() == ExpressionType.NUMBER && roll <= aggressiveness)
+					results[++this.top] = Expression.of(
 							e.shiftNumber(randMinMax(shiftMin, shiftMax)));
-				break;
-			case COMPLEX:
-				return new Expression(
-						pokeExpression(e.getLeft(), aggressiveness),
-						e.getOperator(),
-						pokeExpression(e.getRight(), aggressiveness));
-			default:
-				break;
-		}
-		return e;
+				else
+					results[++this.top] = e;
+				
+				return;
+			}
+			
+			@Override
+			public void exit(Expression e, int level)
+			{
+				final Expression right = results[this.top--],
+								 left = results[this.top];
+				
+				if (left != e.getLeft() || right != e.getRight())
+					results[this.top] = Expression.of(left, e.getOperator(), right);
+				else
+					results[this.top] = e;
+				
+				return;
+			}
+		});
+		
+		return results[0];
 	}
 	
 	/**
 	 * Unlike a poke, a full mutation does have a chance of (perhaps
 	 * dramatically) altering the structure of an {@code Expression}.
+	 * <br><br>
+	 * 
+	 * The original {@code Expression} is never modified. Only the nodes on
+	 * the path from the root down to the point of mutation are rebuilt;
+	 * every other subtree is shared with the original. The new subtree
+	 * grown at that point is only as big as the tree limits leave room
+	 * for. The path is followed down and rebuilt back up in loops, so
+	 * trees of any depth can be mutated.
 	 *  
 	 * @param e					The {@code Expression} to mutate.
 	 * 
@@ -171,54 +267,174 @@ public class MathlingMutator
 	 * 							minimally altering the {@code Expression}.
 	 * 
 	 * @param odds				The odds to generate a new {@code Expression}
-	 * 							with. See {@link mathling.MathlingMutator#newExpressionUnsafe(double[])}
+	 * 							with. See {@link mathling.ExpressionGenerator#grow(double[], int, int)}
 	 * 							for more details.
 	 * 
 	 * @return					The mutated {@code Expression}.
 	 * 
 	 * @see	#pokeExpression(Expression, double)
 	 * @see expression.Expression
-	 * @see mathling.MathlingMutator#newExpressionUnsafe(double[])
+	 * @see #setTreeLimits(int, int)
 	 */
 	public static Expression mutateExpression(Expression e,
 												double aggressiveness,
 												double[] odds)
 	{
-		if (randMinMax(0, 100) >= aggressiveness)
-			return pokeExpression(ExpressionCopier.copy(e), aggressiveness);
+		final int rootSize = e.getSize();
+		
+		// The nodes on the way down to the point of mutation, and which
+		// side was taken from each
+		final Expression[] path = new Expression[e.getDepth()];
+		final boolean[] tookLeft = new boolean[e.getDepth()];
 		
+		Expression node = e,
+				   mutated;
+		int depth = 1;
 		
-		switch (e.getType())
+		while (true)
 		{
-			case NUMBER:
-			case VARIABLE:
-				return newExpressionSafe(odds);
-			case COMPLEX:
-				final double roll = randMinMax(0, 100);
-				if (roll <= aggressiveness)
-					return newExpressionSafe(odds);
+			if (randMinMax(0, 100) >= aggressiveness)
+			{
+				mutated = pokeExpression(node, aggressiveness);
+				break;
+			}
+			
+			if (node.getType() != ExpressionType.COMPLEX ||
+					randMinMax(0, 100) <= aggressiveness)
+			{
+				mutated = newSubtree(odds, rootSize - node.getSize(), depth);
+				break;
+			}
+			
+			path[depth - 1] = node;
+			tookLeft[depth - 1] = randMinMax(0, 100) <= 50;
+			node = tookLeft[depth - 1]? node.getLeft() : node.getRight();
+			depth++;
 		}
-		final double roll = randMinMax(0, 100);
 		
-		if (roll <= 50)
+		for (int i = depth - 2; i >= 0; i--)
 		{
-			Expression newLeft = mutateExpression(
-					e.getLeft(),
-					aggressiveness,
-					odds);
-			return new Expression(newLeft,
-					e.getOperator(),
-					e.getRight());
+			final Expression parent = path[i];
+			
+			if (tookLeft[i])
+				mutated = Expression.of(mutated, parent.getOperator(), parent.getRight());
+			else
+				mutated = Expression.of(parent.getLeft(), parent.getOperator(), mutated);
 		}
-		else
+		
+		return mutated;
+	}
+	
+	/**
+	 * Grows a subtree to replace part of a tree, within what the tree
+	 * limits leave room for. There's always room for at least one node.
+	 * 
+	 * @param odds	The odds to grow the subtree with.
+	 * @param rest	How many nodes the tree has outside of the subtree.
+	 * @param depth	The level the subtree starts at.
+	 * @return		The new subtree.
+	 */
+	private static Expression newSubtree(double[] odds, int rest, int depth)
+	{
+		return ExpressionGenerator.grow(odds,
+				Math.max(1, maxTreeSize - rest),
+				Math.max(1, maxTreeDepth - depth + 1));
+	}
+	
+	/**
+	 * Identical to {@link #mutateExpression(Expression, double, double[])},
+	 * but for a tree stored in an {@code ExpressionArena}. The chances of
+	 * each kind of mutation are exactly the same. The mutated tree is
+	 * written into the arena as a new tree, new subtree and all, and the
+	 * original is left as it was.
+	 * 
+	 * @param arena				The arena holding the tree.
+	 * @param tree				The index of the tree to mutate.
+	 * @param aggressiveness	See {@link #mutateExpression(Expression, double, double[])}.
+	 * @param odds				The odds to generate new subtrees with.
+	 * @return					The index of the mutated tree.
+	 * 
+	 * @see expression.ExpressionArena
+	 */
+	public static int mutateArena(ExpressionArena arena,
+									int tree,
+									double aggressiveness,
+									double[] odds)
+	{
+		final int rootSize = arena.getNodeCount(tree);
+		int node = arena.getRoot(tree),
+			depth = 1;
+		
+		while (true)
+		{
+			if (randMinMax(0, 100) >= aggressiveness)
+			{
+				final int poked = arena.copy(arena, tree);
+				pokeArena(arena, node - arena.getRoot(tree) + arena.getRoot(poked), aggressiveness);
+				return poked;
+			}
+			
+			if (arena.getType(node) != ExpressionType.COMPLEX ||
+					randMinMax(0, 100) <= aggressiveness)
+			{
+				// Grown straight into the arena, within the same budget
+				// as newSubtree() would give
+				final int size = Math.max(1, maxTreeSize - (rootSize - arena.getSubtreeSize(node))),
+						  levels = Math.max(1, maxTreeDepth - depth + 1);
+				
+				return arena.replace(tree, node,
+						(into) -> ExpressionGenerator.grow(into, odds, size, levels));
+			}
+			
+			node = (randMinMax(0, 100) <= 50)? arena.getLeft(node) : arena.getRight(node);
+			depth++;
+		}
+	}
+	
+	/**
+	 * Pokes the numbers of a subtree in place, visiting nodes in the same
+	 * order as {@link #pokeExpression(Expression, double)}.
+	 * 
+	 * @param arena				The arena holding the subtree.
+	 * @param node				The slot of the subtree's root. Its tree
+	 * 							mustn't be shared with anything yet.
+	 * @param aggressiveness	How likely it will be to poke any found
+	 * 							number node.
+	 */
+	private static void pokeArena(ExpressionArena arena,
+									int node,
+									double aggressiveness)
+	{
+		int[] pending = new int[16];
+		int top = 0;
+		
+		pending[0] = node;
+		
+		while (top >= 0)
 		{
-			Expression newRight = mutateExpression(e.getRight(),
-					aggressiveness,
-					odds);
-			return new Expression(
-					e.getLeft(),
-					e.getOperator(),
-					newRight);
-		}	
+			final int next = pending[top--];
+			final double roll = randMinMax(0, 100);
+			
+			switch (arena.getType(next))
+			{
+				case NUMBER:
+					if (roll <= aggressiveness)
+						arena.setNumber(next,
+								arena.getNum(next) + randMinMax(shiftMin, shiftMax));
+					break;
+				case COMPLEX:
+					if (top + 2 >= pending.length)
+						pending = Arrays.copyOf(pending, pending.length * 2);
+					
+					// Right first, so the left side is visited first
+					pending[++top] = arena.getRight(next);
+					pending[++top] = arena.getLeft(next);
+					break;
+				default:
+					break;
+			}
+		}
+		
+		return;
 	}
 }
@@ -0,0 +1,81 @@
+package mathling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The random number generator behind every mutation. Unlike
+ * {@code Math.random()}, it can be seeded, so that a run can be repeated
+ * exactly, and its whole state is a single {@code long}, so that it can
+ * be saved and restored.<br><br>
+ *
+ * This is the SplitMix64 generator. Each number comes from advancing a
+ * counter by a fixed odd constant and then scrambling the counter, which
+ * means several threads can draw from one generator without locking.
+ * Only a single thread gives a repeatable sequence, though.
+ *
+ * @see mathling.MathlingMutator
+ */
+public class MathlingRandom
+{
+	private static final long gamma = 0x9e3779b97f4a7c15L;
+
+	private final AtomicLong state;
+
+	/**
+	 * Creates a generator with an unpredictable seed.
+	 */
+	public MathlingRandom()
+	{
+		this(System.nanoTime() ^ Double.doubleToLongBits(Math.random()));
+		return;
+	}
+
+	/**
+	 * @param seed	The seed to start from. The same seed always gives
+	 * 				the same sequence.
+	 */
+	public MathlingRandom(long seed)
+	{
+		this.state = new AtomicLong(seed);
+		return;
+	}
+
+	/**
+	 * @return	A random {@code double}, at least 0 and less than 1.
+	 */
+	public double nextDouble()
+	{
+		return (this.nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * @return	A random {@code long}, with every value equally likely.
+	 */
+	public long nextLong()
+	{
+		long z = this.state.addAndGet(gamma);
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * @return	The generator's whole state. Passing it to
+	 * 			{@link #setState(long)} later continues the sequence from
+	 * 			this point.
+	 */
+	public long getState()
+	{
+		return this.state.get();
+	}
+
+	/**
+	 * @param state	A state from {@link #getState()}, or a seed.
+	 */
+	public void setState(long state)
+	{
+		this.state.set(state);
+		return;
+	}
+}
@@ -1,33 +1,49 @@
 package mathling;
 
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Functionality for saving/loading {@code Mathling}s for further use.
+ * <br><br>
+ * 
+ * {@code Mathling}s are saved in the binary format of
+ * {@code MathlingCodec}. Files saved with Java serialization, as older
+ * versions did, can still be loaded, and {@link #migrate(String)}
+ * rewrites them in the new format.
  *
  * @see mathling.Mathling
+ * @see mathling.MathlingCodec
  */
 public class MathlingSaver
 {
+	// Larger files are mapped into memory rather than read
+	private static final long mapThreshold = 1 << 20;
+	
 	/**
-	 * Saves a {@code Mathling} to a file.
+	 * Saves a {@code Mathling} to a file. The file is replaced in one
+	 * step, so a crash while saving leaves the old file as it was rather
+	 * than a truncated one.
 	 * 
 	 * @param m		The {@code Mathling} to save.
 	 * @param name	The name of the file to save to.
+	 * @see #writeAtomically(Path, byte[])
 	 */
 	public static void saveMathling(final Mathling m, final String name)
 	{
 		try
 		{
-			FileOutputStream file = new FileOutputStream(name);
-			ObjectOutputStream objWriter = new ObjectOutputStream(file);
-
-			objWriter.writeObject(m);
-			objWriter.close();
+			writeAtomically(Paths.get(name), toBytes(m));
 		}
 		catch (IOException e)
 		{
@@ -38,7 +54,100 @@ public class MathlingSaver
 	}
 	
 	/**
-	 * Loads a {@code Mathling} from a specified file.
+	 * Encodes a {@code Mathling} in memory.
+	 * 
+	 * @param m	The {@code Mathling} to encode.
+	 * @return	The encoded {@code Mathling}, as would be saved to a file.
+	 * @see mathling.MathlingCodec#encode(Mathling)
+	 */
+	public static byte[] toBytes(final Mathling m)
+	{
+		return MathlingCodec.encode(m).array();
+	}
+	
+	/**
+	 * Something to write to a file, a piece at a time.
+	 * 
+	 * @see MathlingSaver#writeAtomically(Path, Contents)
+	 */
+	public interface Contents
+	{
+		/**
+		 * @param channel	The channel to write everything to.
+		 */
+		void writeTo(WritableByteChannel channel) throws IOException;
+	}
+	
+	/**
+	 * Replaces a file's contents all at once.
+	 * 
+	 * @param target	The file to replace.
+	 * @param contents	What to replace it with.
+	 * @see #writeAtomically(Path, Contents)
+	 */
+	public static void writeAtomically(final Path target, final byte[] contents) throws IOException
+	{
+		writeAtomically(target, (channel) -> {
+			final ByteBuffer buffer = ByteBuffer.wrap(contents);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		});
+		
+		return;
+	}
+	
+	/**
+	 * Replaces a file's contents all at once. The contents are first
+	 * written to a temporary file next to the target (its name plus
+	 * ".tmp") and flushed to disk, which is then renamed over the target.
+	 * Readers (and anything left after a crash) see either the old
+	 * contents or the new ones, never a mix.
+	 * <br><br>
+	 * 
+	 * The contents are written as they're produced, so they never have
+	 * to be held in memory all at once.
+	 * 
+	 * @param target	The file to replace.
+	 * @param contents	Writes what to replace it with.
+	 */
+	public static void writeAtomically(final Path target, final Contents contents) throws IOException
+	{
+		final Path absolute = target.toAbsolutePath(),
+				   temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+		
+		try
+		{
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE))
+			{
+				contents.writeTo(channel);
+				channel.force(true);
+			}
+			
+			try
+			{
+				Files.move(temp, absolute,
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Loads a {@code Mathling} from a specified file, in either the
+	 * binary format or the older Java serialization.
 	 * @param name	The name of the file to load from.
 	 * @return		The loaded {@code Mathling}. Will be null
 	 * 				if not found.
@@ -47,13 +156,12 @@ public class MathlingSaver
 	{
 		try
 		{
-			FileInputStream file = new FileInputStream(name);
-			ObjectInputStream objReader = new ObjectInputStream(file);
+			final ByteBuffer contents = read(Paths.get(name));
 			
-			Mathling loaded = (Mathling) objReader.readObject();
-			objReader.close();
+			if (MathlingCodec.isEncoded(contents))
+				return MathlingCodec.decode(contents);
 			
-			return loaded;
+			return loadSerialized(name);
 		} 
 		catch (Exception e)
 		{
@@ -62,4 +170,62 @@ public class MathlingSaver
 		
 		return null;
 	}
+	
+	/**
+	 * Rewrites a file saved with Java serialization in the binary format.
+	 * Files already in the binary format are left alone.
+	 * 
+	 * @param name	The name of the file to migrate.
+	 * @return		True if the file was rewritten.
+	 */
+	public static boolean migrate(final String name) throws IOException
+	{
+		if (MathlingCodec.isEncoded(read(Paths.get(name))))
+			return false;
+		
+		final Mathling m;
+		try
+		{
+			m = loadSerialized(name);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IOException("Couldn't load " + name, e);
+		}
+		
+		writeAtomically(Paths.get(name), toBytes(m));
+		return true;
+	}
+	
+	/**
+	 * Reads a whole file, mapping it into memory if it's large.
+	 */
+	static ByteBuffer read(final Path path) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			final long size = channel.size();
+			
+			if (size >= mapThreshold)
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			
+			final ByteBuffer contents = ByteBuffer.allocate((int) size);
+			while (contents.hasRemaining() && channel.read(contents) >= 0)
+				continue;
+			
+			contents.flip();
+			return contents;
+		}
+	}
+	
+	/**
+	 * Loads a {@code Mathling} saved with Java serialization.
+	 */
+	private static Mathling loadSerialized(final String name) throws IOException, ClassNotFoundException
+	{
+		try (ObjectInputStream objReader = new ObjectInputStream(new FileInputStream(name)))
+		{
+			return (Mathling) objReader.readObject();
+		}
+	}
 }
@@ -0,0 +1,375 @@
+package mathling;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import expression.Expression;
+import expression.ExpressionType;
+
+/**
+ * Holds the output of an elite {@code Mathling}'s nodes across every
+ * sample, so that its children can be evaluated incrementally. A child
+ * from {@link mathling.MathlingMutator#mutateExpression(Expression, double, double[])}
+ * shares every subtree except the mutated path with its parent, and since
+ * {@code Expression}s are hash-consed, those shared subtrees are the very
+ * same objects. Only nodes which aren't held here need to be worked out,
+ * so a child costs about its mutated path times the number of samples,
+ * rather than its whole tree.<br><br>
+ *
+ * Nodes are chosen breadth first from the roots, as the nodes near a root
+ * are shared with the most children. Leaves are never held, as they cost
+ * no more to work out than to copy. Once built, a cache is never changed,
+ * so it can be read from several threads at once. A new one is built for
+ * each generation, and carries over any vectors the last one already had.
+ * <br><br>
+ *
+ * Results are identical to {@link expression.ExpressionProgram}, as every
+ * node's operation is applied to the same values in the same order.
+ *
+ * @see mathling.Mathling#calculateAccuracy(TargetSamples, double, NodeVectorCache)
+ */
+public class NodeVectorCache
+{
+	// Per-thread columns, one per level of the tree being evaluated
+	private static final ThreadLocal<Scratch> scratch =
+			ThreadLocal.withInitial(() -> new Scratch());
+
+	private final TargetSamples samples;
+	private final Map<Expression, Column> columns =
+			new IdentityHashMap<Expression, Column>();
+
+	/**
+	 * Works out (or carries over) the output vectors of the nodes nearest
+	 * to each root.
+	 *
+	 * @param samples	The samples to evaluate over.
+	 * @param roots		The {@code Expression}s whose nodes to hold, most
+	 * 					important first. Null entries are skipped.
+	 * @param capacity	The most node vectors to hold. Each one takes
+	 * 					about nine bytes per sample.
+	 * @param previous	The last generation's cache, or null. Vectors it
+	 * 					already holds for the same samples are reused.
+	 */
+	public NodeVectorCache(TargetSamples samples,
+							Expression[] roots,
+							int capacity,
+							NodeVectorCache previous)
+	{
+		this.samples = samples;
+
+		final List<Expression> chosen = new ArrayList<Expression>();
+		final Map<Expression, Boolean> seen = new IdentityHashMap<Expression, Boolean>();
+		final ArrayDeque<Expression> queue = new ArrayDeque<Expression>();
+
+		for (Expression root : roots)
+		{
+			if (root != null && seen.put(root, Boolean.TRUE) == null)
+				queue.add(root);
+		}
+
+		while (!queue.isEmpty() && chosen.size() < capacity)
+		{
+			final Expression e = queue.poll();
+			if (e.getType() != ExpressionType.COMPLEX)
+				continue;
+
+			chosen.add(e);
+
+			if (seen.put(e.getLeft(), Boolean.TRUE) == null)
+				queue.add(e.getLeft());
+			if (seen.put(e.getRight(), Boolean.TRUE) == null)
+				queue.add(e.getRight());
+		}
+
+		final boolean reuse = previous != null && previous.samples == samples;
+		final int n = samples.size();
+
+		// Children are always chosen after their parents, so working
+		// backwards means a node's held children are ready before it is
+		for (int i = chosen.size() - 1; i >= 0; i--)
+		{
+			final Expression e = chosen.get(i);
+			final Column known = reuse? previous.columns.get(e) : null;
+
+			if (known != null)
+			{
+				this.columns.put(e, known);
+				continue;
+			}
+
+			final double[] values = new double[n];
+			final boolean[] faults = new boolean[n];
+			final int faulted = this.evaluate(e, 0, n, values, faults);
+
+			this.columns.put(e, new Column(values, (faulted > 0)? faults : null));
+		}
+
+		return;
+	}
+
+	/**
+	 * @param samples	The samples about to be evaluated.
+	 * @return			True if this cache was built for those samples.
+	 */
+	public boolean isFor(TargetSamples samples)
+	{
+		return this.samples == samples;
+	}
+
+	/**
+	 * @return	How many node vectors are held.
+	 */
+	public int size()
+	{
+		return this.columns.size();
+	}
+
+	/**
+	 * Evaluates an {@code Expression} over the samples from index
+	 * {@code from} up to (but not including) {@code to}, reusing any held
+	 * node vectors. Behaves exactly like
+	 * {@link expression.ExpressionProgram#evaluate(double[], int, int, double[], boolean[])}
+	 * over the samples' inputs: any input which divides by zero is marked
+	 * in {@code faults} and its result is set to {@code NaN}.
+	 *
+	 * @param e			The {@code Expression} to evaluate.
+	 * @param from		The first sample to evaluate.
+	 * @param to		One past the last sample to evaluate.
+	 * @param out		Receives the result for each sample.
+	 * @param faults	Receives whether each sample divided by zero.
+	 * @return			How many of the evaluated samples divided by zero.
+	 */
+	public int evaluate(Expression e, int from, int to, double[] out, boolean[] faults)
+	{
+		final Scratch s = scratch.get();
+
+		// Like ExpressionProgram, the bottom level is the caller's output
+		s.ensure(1, to);
+		s.values[0] = out;
+		s.faults[0] = faults;
+
+		this.evaluate(e, from, to, s);
+
+		s.values[0] = null;
+		s.faults[0] = null;
+
+		int count = 0;
+		for (int i = from; i < to; i++)
+		{
+			if (faults[i])
+			{
+				out[i] = Double.NaN;
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Writes an {@code Expression}'s results, and whether each divided by
+	 * zero, into the bottom level of the scratch columns. A complex node's
+	 * left side is written into its own level and its right side into the
+	 * next, then the two are combined. Held nodes are copied rather than
+	 * walked into, so the walk is done here with an explicit stack rather
+	 * than by an {@code ExpressionWalker}, and never recurses.
+	 *
+	 * @param root	The {@code Expression} to evaluate.
+	 * @param from	The first sample to evaluate.
+	 * @param to	One past the last sample to evaluate.
+	 * @param s		This thread's scratch columns and stack.
+	 */
+	private void evaluate(Expression root, int from, int to, Scratch s)
+	{
+		Expression next = root;
+		int level = 0,
+			top = -1;
+
+		while (true)
+		{
+			// Down left sides until a node can be written straight away
+			while (!this.load(next, level, from, to, s))
+			{
+				s.ensure(level + 2, to);
+				s.push(++top, next, level);
+				next = next.getLeft();
+			}
+
+			// Back up past every node whose sides are both written
+			while (top >= 0 && s.rightSide[top])
+			{
+				this.combine(s.path[top], s.levels[top], from, to, s);
+				s.path[top--] = null;
+			}
+
+			if (top < 0)
+				break;
+
+			s.rightSide[top] = true;
+			next = s.path[top].getRight();
+			level = s.levels[top] + 1;
+		}
+
+		return;
+	}
+
+	/**
+	 * Writes a held node's vector, a number or the inputs into one level
+	 * of the scratch columns.
+	 *
+	 * @return	False if the node is complex and isn't held, so has to be
+	 * 			worked out from its sides.
+	 */
+	private boolean load(Expression e, int level, int from, int to, Scratch s)
+	{
+		final Column known = this.columns.get(e);
+
+		if (known != null)
+		{
+			System.arraycopy(known.values, from, s.values[level], from, to - from);
+
+			if (known.faults != null)
+				System.arraycopy(known.faults, from, s.faults[level], from, to - from);
+			else
+				Arrays.fill(s.faults[level], from, to, false);
+
+			return true;
+		}
+
+		switch (e.getType())
+		{
+			case NUMBER:
+				Arrays.fill(s.values[level], from, to, e.getNum());
+				Arrays.fill(s.faults[level], from, to, false);
+				return true;
+			case VARIABLE:
+				System.arraycopy(this.samples.inputs, from, s.values[level], from, to - from);
+				Arrays.fill(s.faults[level], from, to, false);
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Combines a complex node's sides, already written into its level and
+	 * the next, into its level.
+	 */
+	private void combine(Expression e, int level, int from, int to, Scratch s)
+	{
+		final double[] a = s.values[level], b = s.values[level + 1];
+		final boolean[] fa = s.faults[level], fb = s.faults[level + 1];
+
+		for (int i = from; i < to; i++)
+			fa[i] |= fb[i];
+
+		switch (e.getOperator())
+		{
+			case '+':
+				for (int i = from; i < to; i++)
+					a[i] = a[i] + b[i];
+				break;
+			case '-':
+				for (int i = from; i < to; i++)
+					a[i] = a[i] - b[i];
+				break;
+			case '*':
+				for (int i = from; i < to; i++)
+					a[i] = a[i] * b[i];
+				break;
+			case '/':
+				for (int i = from; i < to; i++)
+					fa[i] |= (b[i] == 0);
+				for (int i = from; i < to; i++)
+					a[i] = a[i] / b[i];
+				break;
+			default:
+				// Like makeFunction, keep the left side
+				break;
+		}
+
+		return;
+	}
+
+	/**
+	 * One node's results across every sample. The faults are null if no
+	 * sample divided by zero.
+	 */
+	private static class Column
+	{
+		final double[] values;
+		final boolean[] faults;
+
+		Column(double[] values, boolean[] faults)
+		{
+			this.values = values;
+			this.faults = faults;
+		}
+	}
+
+	/**
+	 * Columns for intermediate results, one pair per level of the tree,
+	 * and the stack of complex nodes being worked out.
+	 */
+	private static class Scratch
+	{
+		double[][] values = new double[0][];
+		boolean[][] faults = new boolean[0][];
+
+		// Each node on the stack, the level it writes into, and whether
+		// its left side is done so its right is being worked out
+		Expression[] path = new Expression[16];
+		int[] levels = new int[16];
+		boolean[] rightSide = new boolean[16];
+
+		/**
+		 * Puts a complex node on the stack, about to work out its left
+		 * side.
+		 */
+		void push(int top, Expression e, int level)
+		{
+			if (top == this.path.length)
+			{
+				this.path = Arrays.copyOf(this.path, top * 2);
+				this.levels = Arrays.copyOf(this.levels, top * 2);
+				this.rightSide = Arrays.copyOf(this.rightSide, top * 2);
+			}
+
+			this.path[top] = e;
+			this.levels[top] = level;
+			this.rightSide[top] = false;
+
+			return;
+		}
+
+		/**
+		 * Makes sure there are at least {@code count} levels, and that the
+		 * last two (other than the first) can hold {@code length} samples.
+		 * Shallower levels were already checked on the way down.
+		 */
+		void ensure(int count, int length)
+		{
+			if (this.values.length < count)
+			{
+				final int size = Math.max(count, this.values.length * 2);
+				this.values = Arrays.copyOf(this.values, size);
+				this.faults = Arrays.copyOf(this.faults, size);
+			}
+
+			for (int i = Math.max(1, count - 2); i < count; i++)
+			{
+				if (this.values[i] == null || this.values[i].length < length)
+				{
+					this.values[i] = new double[length];
+					this.faults[i] = new boolean[length];
+				}
+			}
+
+			return;
+		}
+	}
+}
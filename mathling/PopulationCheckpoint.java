@@ -0,0 +1,264 @@
+package mathling;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+import expression.Expression;
+
+/**
+ * A whole population, frozen at one moment of a simulation: every
+ * {@code Mathling} with its accuracy and whether its constants are tuned,
+ * the generation it was taken at, and the state of the random numbers
+ * behind every mutation. Resuming from it continues the run exactly where
+ * it stopped, without evaluating or tuning any of its {@code Mathling}s
+ * again.<br><br>
+ *
+ * Taking one only copies references and numbers, as {@code Expression}s
+ * are immutable, so it's cheap enough to take between generations. Saving
+ * it encodes and writes one {@code Mathling} at a time, so a large
+ * population is never held in memory a second time.<br><br>
+ *
+ * The file, with every value big-endian, is:
+ * <pre>
+ * magic				4 bytes, "MTHP"
+ * version				2 bytes, currently 1
+ * flags				2 bytes, currently 0
+ * generation			8 bytes
+ * random state			8 bytes
+ * population size		4 bytes
+ * mathlings			one {@code MathlingCodec} record each, in order
+ * </pre>
+ *
+ * @see mathling.MathlingCodec
+ * @see main.Simulation
+ */
+public class PopulationCheckpoint
+{
+	static final int magic = 0x4D544850;
+	static final short version = 1;
+
+	private static final int headerSize = 28;
+
+	// Encoded mathlings are gathered into chunks about this big per write
+	private static final int chunkSize = 1 << 16;
+
+	private final Expression[] expressions;
+	private final double[] accuracies,
+						   significances;
+	private final boolean[] tuned;
+	private final long generation,
+					   randomState;
+
+	private PopulationCheckpoint(Expression[] expressions,
+									double[] accuracies,
+									double[] significances,
+									boolean[] tuned,
+									long generation,
+									long randomState)
+	{
+		this.expressions = expressions;
+		this.accuracies = accuracies;
+		this.significances = significances;
+		this.tuned = tuned;
+		this.generation = generation;
+		this.randomState = randomState;
+
+		return;
+	}
+
+	/**
+	 * Takes a checkpoint of a population whose accuracies have just been
+	 * calculated.
+	 *
+	 * @param population	The population, in order.
+	 * @param generation	The generation it has reached.
+	 * @param randomState	The state of the random numbers, from
+	 * 						{@link mathling.MathlingRandom#getState()}.
+	 * @return				The checkpoint.
+	 */
+	public static PopulationCheckpoint of(Mathling[] population, long generation, long randomState)
+	{
+		final int n = population.length;
+		final Expression[] expressions = new Expression[n];
+		final double[] accuracies = new double[n],
+					   significances = new double[n];
+		final boolean[] tuned = new boolean[n];
+
+		for (int i = 0; i < n; i++)
+		{
+			final Mathling m = population[i];
+
+			expressions[i] = m.peekExpression();
+			accuracies[i] = m.getAccuracy();
+			significances[i] = m.getMutationSignificance();
+			tuned[i] = m.isTuned();
+		}
+
+		return new PopulationCheckpoint(expressions, accuracies, significances, tuned, generation, randomState);
+	}
+
+	/**
+	 * @return	A new population, exactly as it was checkpointed, with every
+	 * 			accuracy already set and every tuned {@code Mathling}
+	 * 			marked as such.
+	 */
+	public Mathling[] toMathlings()
+	{
+		final Mathling[] population = new Mathling[this.expressions.length];
+
+		for (int i = 0; i < population.length; i++)
+		{
+			population[i] = new Mathling(this.expressions[i]);
+			population[i].setAccuracy(this.accuracies[i]);
+			population[i].setMutationSignificance(this.significances[i]);
+
+			if (this.tuned[i])
+				population[i].markTuned(this.expressions[i]);
+		}
+
+		return population;
+	}
+
+	/**
+	 * @return	How many {@code Mathling}s are in the population.
+	 */
+	public int size()
+	{
+		return this.expressions.length;
+	}
+
+	/**
+	 * @return	The generation the population had reached.
+	 */
+	public long getGeneration()
+	{
+		return this.generation;
+	}
+
+	/**
+	 * @return	The state of the random numbers, for
+	 * 			{@link mathling.MathlingRandom#setState(long)}.
+	 */
+	public long getRandomState()
+	{
+		return this.randomState;
+	}
+
+	/**
+	 * Saves this checkpoint, replacing the file all at once.
+	 *
+	 * @param target	The file to save to.
+	 * @see mathling.MathlingSaver#writeAtomically(Path, MathlingSaver.Contents)
+	 */
+	public void save(Path target) throws IOException
+	{
+		MathlingSaver.writeAtomically(target, this::writeTo);
+		return;
+	}
+
+	private void writeTo(WritableByteChannel channel) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate(headerSize);
+
+		header.putInt(magic);
+		header.putShort(version);
+		header.putShort((short) 0);
+		header.putLong(this.generation);
+		header.putLong(this.randomState);
+		header.putInt(this.expressions.length);
+		header.flip();
+
+		final ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+		chunk.put(header);
+
+		for (int i = 0; i < this.expressions.length; i++)
+		{
+			final ByteBuffer record = MathlingCodec.encode(
+					this.expressions[i], this.accuracies[i], this.significances[i], this.tuned[i]);
+
+			if (record.remaining() > chunk.remaining())
+			{
+				chunk.flip();
+				writeFully(channel, chunk);
+				chunk.clear();
+			}
+
+			// Records too big for a chunk go straight out
+			if (record.remaining() > chunk.remaining())
+				writeFully(channel, record);
+			else
+				chunk.put(record);
+		}
+
+		chunk.flip();
+		writeFully(channel, chunk);
+
+		return;
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+
+		return;
+	}
+
+	/**
+	 * Loads a checkpoint, if the file holds one.
+	 *
+	 * @param name	The name of the file to load from.
+	 * @return		The checkpoint, or null if the file holds something
+	 * 				else, such as a single saved {@code Mathling}.
+	 * @throws IOException	If the file can't be read, or is a damaged
+	 * 						checkpoint.
+	 */
+	public static PopulationCheckpoint load(Path name) throws IOException
+	{
+		final ByteBuffer in = MathlingSaver.read(name);
+
+		if (in.remaining() < 4 || in.getInt(in.position()) != magic)
+			return null;
+
+		try
+		{
+			in.getInt();
+
+			final short found = in.getShort();
+			if (found != version)
+				throw new IOException("Can't read version " + found + " of the population format");
+
+			in.getShort();
+			final long generation = in.getLong(),
+					   randomState = in.getLong();
+			final int n = in.getInt();
+
+			if (n < 0)
+				throw new IOException("Corrupt population: " + n + " mathlings");
+
+			final Expression[] expressions = new Expression[n];
+			final double[] accuracies = new double[n],
+						   significances = new double[n];
+			final boolean[] tuned = new boolean[n];
+
+			for (int i = 0; i < n; i++)
+			{
+				final Mathling m = MathlingCodec.decode(in);
+
+				expressions[i] = m.peekExpression();
+				accuracies[i] = m.getAccuracy();
+				significances[i] = m.getMutationSignificance();
+				tuned[i] = m.isTuned();
+			}
+
+			return new PopulationCheckpoint(expressions, accuracies, significances, tuned, generation, randomState);
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Corrupt population: truncated", e);
+		}
+	}
+}
@@ -0,0 +1,588 @@
+package mathling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import expression.Expression;
+
+/**
+ * Calculates accuracies on worker processes, in place of this one. The
+ * population is split into batches, which are streamed to every worker
+ * at once: each worker has a few batches in flight, and is sent another
+ * as soon as one comes back, so none of them waits on the network.<br><br>
+ *
+ * A worker which disconnects, fails a batch, or takes too long to answer
+ * is dropped, and its batches are sent to the others. It's tried again a
+ * few seconds later. A batch which has failed too many times, or finds
+ * no worker left, is evaluated here instead, so a generation always
+ * finishes.<br><br>
+ *
+ * Workers are sent the samples themselves, and evaluate with
+ * {@link Mathling#calculateAccuracy(TargetSamples, double)}, so an
+ * accuracy is exactly the same wherever it was calculated. Accuracies
+ * remembered by the fitness cache are looked up here, and never sent.
+ *
+ * @see mathling.EvaluationWorker
+ * @see mathling.EvaluationProtocol
+ */
+public class RemoteEvaluator
+{
+	private static final int bufferSize = 1 << 16;
+
+	// How many mathlings go in a batch, and how many batches each worker
+	// may have in flight at once
+	private static final int batchSize = 16,
+							 window = 4;
+
+	// How many times a batch is sent before it's evaluated here instead
+	private static final int maxAttempts = 3;
+
+	private static final long connectTimeoutMillis = 2000,
+							  answerTimeoutMillis = 30000,
+							  reconnectMillis = 5000,
+							  pollMillis = 100;
+
+	private final Worker[] workers;
+
+	// Results and failures from every worker's reader thread
+	private final BlockingQueue<Event> events = new LinkedBlockingQueue<Event>();
+
+	private long nextBatch = 0,
+				 retries = 0,
+				 localBatches = 0;
+
+	/**
+	 * Connects to the workers lazily, when they're first needed.
+	 *
+	 * @param addresses	Where the workers are listening.
+	 */
+	public RemoteEvaluator(List<InetSocketAddress> addresses)
+	{
+		this.workers = new Worker[addresses.size()];
+
+		for (int i = 0; i < this.workers.length; i++)
+			this.workers[i] = new Worker(addresses.get(i));
+
+		return;
+	}
+
+	/**
+	 * Updates every {@code Mathling}'s accuracy, as
+	 * {@link Mathling#calculateAccuracy(TargetSamples, double)} would, on
+	 * the workers. Only one population is evaluated at a time; other
+	 * threads wait their turn.
+	 *
+	 * @param mathlings	The {@code Mathling}s to update.
+	 * @param samples	The goal function's inputs and results.
+	 * @param bound		The accuracy past which a {@code Mathling} may be
+	 * 					rejected.
+	 * @param cache		Remembered accuracies, or null.
+	 */
+	public synchronized void calculateAccuracies(Mathling[] mathlings,
+												 TargetSamples samples,
+												 double bound,
+												 FitnessCache cache)
+	{
+		final ArrayDeque<Batch> pending = new ArrayDeque<Batch>();
+		List<Mathling> members = new ArrayList<Mathling>(batchSize);
+
+		for (Mathling m : mathlings)
+		{
+			if (cache != null && cache.recall(m, samples))
+				continue;
+
+			members.add(m);
+
+			if (members.size() == batchSize)
+			{
+				pending.add(new Batch(this.nextBatch++, members));
+				members = new ArrayList<Mathling>(batchSize);
+			}
+		}
+
+		if (!members.isEmpty())
+			pending.add(new Batch(this.nextBatch++, members));
+
+		int remaining = pending.size();
+
+		this.connect(samples);
+
+		while (remaining > 0)
+		{
+			boolean anyAlive = false;
+
+			for (Worker w : this.workers)
+			{
+				while (w.isAlive() && w.inFlight.size() < window && !pending.isEmpty())
+				{
+					final Batch b = pending.poll();
+
+					if (b.attempts >= maxAttempts)
+					{
+						remaining -= this.evaluateHere(b, samples, bound, cache);
+						continue;
+					}
+
+					this.send(w, b, bound, pending);
+				}
+
+				anyAlive |= w.isAlive();
+			}
+
+			if (!anyAlive)
+			{
+				while (!pending.isEmpty())
+					remaining -= this.evaluateHere(pending.poll(), samples, bound, cache);
+
+				break;
+			}
+
+			final Event event;
+
+			try
+			{
+				event = this.events.poll(pollMillis, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			if (event == null)
+			{
+				this.dropSlowWorkers(pending);
+				continue;
+			}
+
+			// Anything from a connection already dropped is out of date
+			if (event.connection != event.worker.connection)
+				continue;
+
+			if (event.frame == null)
+			{
+				this.drop(event.worker, pending);
+				continue;
+			}
+
+			final Batch b = this.complete(event, samples, cache);
+
+			if (b == null)
+				this.drop(event.worker, pending);
+			else
+				remaining--;
+		}
+
+		return;
+	}
+
+	/**
+	 * @return	How many workers are connected right now.
+	 */
+	public synchronized int getConnectedWorkers()
+	{
+		int connected = 0;
+
+		for (Worker w : this.workers)
+		{
+			if (w.isAlive())
+				connected++;
+		}
+
+		return connected;
+	}
+
+	/**
+	 * @return	How many batches have been sent again after a worker
+	 * 			failed them.
+	 */
+	public synchronized long getRetries()
+	{
+		return this.retries;
+	}
+
+	/**
+	 * @return	How many batches were evaluated here, as no worker could.
+	 */
+	public synchronized long getLocalBatches()
+	{
+		return this.localBatches;
+	}
+
+	/**
+	 * Disconnects from every worker.
+	 */
+	public synchronized void close()
+	{
+		for (Worker w : this.workers)
+			w.disconnect();
+
+		return;
+	}
+
+	/**
+	 * Connects to every worker which isn't connected for these samples,
+	 * unless it failed too recently to try again.
+	 */
+	private void connect(TargetSamples samples)
+	{
+		final long now = System.currentTimeMillis();
+
+		for (Worker w : this.workers)
+		{
+			if (w.isAlive() && w.samples == samples)
+				continue;
+
+			if (!w.isAlive() && now - w.failedAt < reconnectMillis)
+				continue;
+
+			w.disconnect();
+
+			try
+			{
+				w.connect(samples, this.events);
+			}
+			catch (IOException e)
+			{
+				System.out.println("Can't reach worker " + w.address + ": " + e.getMessage());
+				w.disconnect();
+				w.failedAt = now;
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 * Sends a batch to a worker, or puts it back if the worker has gone.
+	 */
+	private void send(Worker w, Batch b, double bound, ArrayDeque<Batch> pending)
+	{
+		final ByteBuffer[] records = new ByteBuffer[b.members.size()];
+		int size = Long.BYTES + Double.BYTES + Integer.BYTES;
+
+		for (int i = 0; i < records.length; i++)
+		{
+			final Mathling m = b.members.get(i);
+
+			b.sent[i] = m.peekExpression();
+			records[i] = MathlingCodec.encode(b.sent[i], 0, m.getMutationSignificance(), false);
+			size += records[i].remaining();
+		}
+
+		final ByteBuffer frame = ByteBuffer.allocate(size);
+		frame.putLong(b.id);
+		frame.putDouble(bound);
+		frame.putInt(records.length);
+
+		for (ByteBuffer r : records)
+			frame.put(r);
+
+		frame.flip();
+
+		b.attempts++;
+		b.sentAt = System.currentTimeMillis();
+		w.inFlight.put(b.id, b);
+
+		try
+		{
+			EvaluationProtocol.writeFrame(w.out, EvaluationProtocol.BATCH, frame);
+		}
+		catch (IOException e)
+		{
+			this.drop(w, pending);
+		}
+
+		return;
+	}
+
+	/**
+	 * Gives a batch's {@code Mathling}s the results a worker sent back.
+	 *
+	 * @return	The batch, or null if the results were damaged.
+	 */
+	private Batch complete(Event event, TargetSamples samples, FitnessCache cache)
+	{
+		final ByteBuffer in = event.frame;
+
+		try
+		{
+			if (in.get() != EvaluationProtocol.RESULTS)
+				return null;
+
+			final Batch b = event.worker.inFlight.get(in.getLong());
+			final int count = in.getInt();
+
+			if (b == null || count != b.members.size())
+				return null;
+
+			// Read everything before changing anything, in case it's damaged
+			final double[] accuracies = new double[count];
+			final int[] faulted = new int[count],
+						tested = new int[count];
+			final byte[] flags = new byte[count];
+			final Expression[] results = new Expression[count];
+
+			for (int i = 0; i < count; i++)
+			{
+				accuracies[i] = in.getDouble();
+				faulted[i] = in.getInt();
+				tested[i] = in.getInt();
+				flags[i] = in.get();
+
+				results[i] = ((flags[i] & EvaluationProtocol.CHANGED) != 0)?
+						MathlingCodec.decode(in).peekExpression() : b.sent[i];
+			}
+
+			event.worker.inFlight.remove(b.id);
+
+			for (int i = 0; i < count; i++)
+			{
+				final Mathling m = b.members.get(i);
+
+				m.restore(results[i], accuracies[i], faulted[i], tested[i],
+						(flags[i] & EvaluationProtocol.REJECTED) != 0);
+
+				if (cache != null)
+					cache.remember(b.sent[i], m, samples);
+			}
+
+			return b;
+		}
+		catch (IOException | BufferUnderflowException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Evaluates a batch here, as it would have been on a worker.
+	 *
+	 * @return	1, the number of batches done.
+	 */
+	private int evaluateHere(Batch b, TargetSamples samples, double bound, FitnessCache cache)
+	{
+		for (Mathling m : b.members)
+		{
+			final Expression e = m.peekExpression();
+
+			m.calculateAccuracy(samples, bound);
+
+			if (cache != null)
+				cache.remember(e, m, samples);
+		}
+
+		this.localBatches++;
+		return 1;
+	}
+
+	/**
+	 * Drops every worker which has had a batch for too long.
+	 */
+	private void dropSlowWorkers(ArrayDeque<Batch> pending)
+	{
+		final long now = System.currentTimeMillis();
+
+		for (Worker w : this.workers)
+		{
+			for (Batch b : w.inFlight.values())
+			{
+				if (now - b.sentAt > answerTimeoutMillis)
+				{
+					this.drop(w, pending);
+					break;
+				}
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 * Disconnects from a worker, and puts its batches back to be sent
+	 * elsewhere.
+	 */
+	private void drop(Worker w, ArrayDeque<Batch> pending)
+	{
+		if (w.connection != null)
+			System.out.println("Lost worker " + w.address + ", resending " + w.inFlight.size() + " batches");
+
+		for (Batch b : w.inFlight.values())
+		{
+			pending.addFirst(b);
+			this.retries++;
+		}
+
+		w.inFlight.clear();
+		w.disconnect();
+		w.failedAt = System.currentTimeMillis();
+
+		return;
+	}
+
+	/**
+	 * A worker, and its connection if there is one.
+	 */
+	private static class Worker
+	{
+		final InetSocketAddress address;
+		final Map<Long, Batch> inFlight = new HashMap<Long, Batch>();
+
+		Socket connection = null;
+		DataOutputStream out = null;
+		TargetSamples samples = null;
+		long failedAt = Long.MIN_VALUE / 2;
+
+		Worker(InetSocketAddress address)
+		{
+			this.address = address;
+		}
+
+		boolean isAlive()
+		{
+			return this.connection != null;
+		}
+
+		/**
+		 * Connects, sends the samples, waits for the worker to be ready,
+		 * then starts reading its results onto the event queue.
+		 */
+		void connect(TargetSamples samples, BlockingQueue<Event> events) throws IOException
+		{
+			final Socket s = new Socket();
+			this.connection = s;
+
+			s.connect(this.address, (int) connectTimeoutMillis);
+			s.setTcpNoDelay(true);
+			s.setSoTimeout((int) answerTimeoutMillis);
+
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(s.getInputStream(), bufferSize));
+			this.out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream(), bufferSize));
+
+			final int n = samples.inputs.length;
+			final ByteBuffer hello = ByteBuffer.allocate(11 + 2 * n * Double.BYTES);
+
+			hello.putInt(EvaluationProtocol.magic);
+			hello.putShort(EvaluationProtocol.version);
+			hello.put((byte) samples.getOrder().ordinal());
+			hello.putInt(n);
+			hello.asDoubleBuffer().put(samples.inputs).put(samples.targets);
+			hello.position(0);
+
+			EvaluationProtocol.writeFrame(this.out, EvaluationProtocol.HELLO, hello);
+
+			final ByteBuffer ready = EvaluationProtocol.readFrame(in);
+			if (ready == null || ready.get() != EvaluationProtocol.READY)
+				throw new IOException("Worker didn't get ready");
+
+			// Reads block until there's a result, however long that takes
+			s.setSoTimeout(0);
+			this.samples = samples;
+
+			final Thread reader = new Thread(() -> read(s, in, events), "reader-" + this.address);
+			reader.setDaemon(true);
+			reader.start();
+
+			return;
+		}
+
+		/**
+		 * Passes every frame from a worker onto the event queue, then a
+		 * null frame once the connection ends.
+		 */
+		private void read(Socket s, DataInputStream in, BlockingQueue<Event> events)
+		{
+			ByteBuffer frame;
+
+			try
+			{
+				while ((frame = EvaluationProtocol.readFrame(in)) != null)
+					events.add(new Event(this, s, frame));
+			}
+			catch (IOException e)
+			{
+				// Reported as the connection ending
+			}
+
+			events.add(new Event(this, s, null));
+			return;
+		}
+
+		void disconnect()
+		{
+			if (this.connection != null)
+			{
+				try
+				{
+					this.connection.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+
+			this.connection = null;
+			this.out = null;
+			this.samples = null;
+
+			return;
+		}
+	}
+
+	/**
+	 * Up to {@code batchSize} {@code Mathling}s, sent and answered
+	 * together.
+	 */
+	private static class Batch
+	{
+		final long id;
+		final List<Mathling> members;
+
+		// What each member's expression was when it was sent
+		final Expression[] sent;
+
+		int attempts = 0;
+		long sentAt = 0;
+
+		Batch(long id, List<Mathling> members)
+		{
+			this.id = id;
+			this.members = members;
+			this.sent = new Expression[members.size()];
+		}
+	}
+
+	/**
+	 * A frame from a worker's connection, or null once it has ended.
+	 */
+	private static class Event
+	{
+		final Worker worker;
+		final Socket connection;
+		final ByteBuffer frame;
+
+		Event(Worker worker, Socket connection, ByteBuffer frame)
+		{
+			this.worker = worker;
+			this.connection = connection;
+			this.frame = frame;
+		}
+	}
+}
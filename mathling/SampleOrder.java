@@ -0,0 +1,74 @@
+package mathling;
+
+/**
+ * The order in which a {@code Mathling}'s samples are tested. When an
+ * accuracy calculation may stop early, it helps to see inputs from across
+ * the whole test range first, so that bad candidates are caught within the
+ * first few dozen samples.<br><br>
+ *
+ * Sequential:		Lowest input to highest.<br>
+ * 	Ex:				0, 1, 2, 3, 4, 5, 6, 7<br><br>
+ *
+ * Strided:			Every k-th input, then every k-th input starting one
+ * 					later, and so on, where k is about the square root of
+ * 					the number of samples.<br>
+ * 	Ex:				0, 3, 6, 1, 4, 7, 2, 5<br><br>
+ *
+ * Coarse to fine:	A few widely spaced inputs, then the ones halfway
+ * 					between those, and so on.<br>
+ * 	Ex:				0, 4, 2, 6, 1, 3, 5, 7
+ *
+ * Note: Only the sequential order sums errors in the same order as an
+ * unordered calculation, so the others may differ in the last few bits.
+ *
+ * @see mathling.TargetSamples
+ * @see mathling.Mathling#calculateAccuracy(TargetSamples, double)
+ */
+public enum SampleOrder
+{
+	SEQUENTIAL,
+	STRIDED,
+	COARSE_TO_FINE;
+
+	/**
+	 * @param size	The number of samples.
+	 * @return		The indices of the samples, in the order they should
+	 * 				be tested.
+	 */
+	int[] permutation(int size)
+	{
+		final int[] order = new int[size];
+		int next = 0;
+
+		switch (this)
+		{
+			case SEQUENTIAL:
+				for (int i = 0; i < size; i++)
+					order[next++] = i;
+				break;
+			case STRIDED:
+				final int stride = Math.max(1, (int) Math.ceil(Math.sqrt(size)));
+				for (int start = 0; start < stride; start++)
+					for (int i = start; i < size; i += stride)
+						order[next++] = i;
+				break;
+			case COARSE_TO_FINE:
+				int step = Integer.highestOneBit(Math.max(1, size));
+				final boolean[] taken = new boolean[size];
+				for (; step > 0; step /= 2)
+				{
+					for (int i = 0; i < size; i += step)
+					{
+						if (!taken[i])
+						{
+							taken[i] = true;
+							order[next++] = i;
+						}
+					}
+				}
+				break;
+		}
+
+		return order;
+	}
+}
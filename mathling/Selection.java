@@ -0,0 +1,548 @@
+package mathling;
+
+/**
+ * Picks which {@code Mathling}s of a population become parents, and
+ * refills the rest of it. The population can be any size; what it's
+ * refilled with is set by ratios, one for each parent, then one for
+ * survivors and one for newcomers:
+ * <br><br>
+ * 
+ * Parents:		The best {@code Mathling}s, one for each ratio but the
+ * 				last two, are kept as they are, best first.<br>
+ * Survivors:	Random other {@code Mathling}s, kept as they are.<br>
+ * Newcomers:	New, randomly generated {@code Mathling}s.<br>
+ * Children:	Mutations of parents, in every other slot.
+ * <br><br>
+ * 
+ * How each child's parent is picked depends on the strategy:
+ * <br><br>
+ * 
+ * TRUNCATION:		Each parent has its ratio's share of the children.
+ * 					The default, {70, 20, 5, 1, 1}, is the simulation's
+ * 					original scheme: in a population of 100, the best has
+ * 					70 children, the next 20 and the third 5, beside one
+ * 					survivor and one newcomer.<br>
+ * TOURNAMENT:		A few {@code Mathling}s are drawn from the whole
+ * 					population, and the best of them is the parent. The
+ * 					parents' ratios only set how many children there
+ * 					are.<br>
+ * MU_PLUS_LAMBDA:	Each child's parent is one of the parents, with
+ * 					even odds. As the parents are kept beside their
+ * 					children, and the best of both become the next
+ * 					parents, this is a (&mu;+&lambda;) strategy.
+ * <br><br>
+ * 
+ * Only the parents are ever put in order. They're picked out with a
+ * quickselect over a plain array of accuracies, and only then sorted, so
+ * selection takes linear time however large the population grows.
+ * Accuracies are compared as {@link Double#compare(double, double)}
+ * does, so a {@code Mathling} whose accuracy is NaN is always worst.
+ * <br><br>
+ * 
+ * Populations stored some other way than as an array of
+ * {@code Mathling}s, such as in an {@code ExpressionArena}, are selected
+ * by their accuracies alone, and refilled through a {@link Breeder}.
+ * 
+ * @see main.Simulation
+ * @see mathling.ArenaPopulation
+ */
+public class Selection
+{
+	/**
+	 * How children's parents are picked. See {@link Selection}.
+	 */
+	public enum Strategy
+	{
+		TRUNCATION,
+		TOURNAMENT,
+		MU_PLUS_LAMBDA
+	}
+	
+	/**
+	 * Refills the slots of a population which isn't an array of
+	 * {@code Mathling}s. Slots are filled in order, right after the
+	 * parents, and every index refers to the population as it was
+	 * after its parents were selected.
+	 * 
+	 * @see Selection#breed(double[], Breeder)
+	 */
+	public interface Breeder
+	{
+		/**
+		 * @param slot	The slot to fill.
+		 * @param from	The index to keep as it is.
+		 */
+		void keep(int slot, int from);
+		
+		/**
+		 * @param slot	The slot to fill with a newly generated tree.
+		 */
+		void newcomer(int slot);
+		
+		/**
+		 * @param slot		The slot to fill.
+		 * @param parent	The index of the parent to mutate.
+		 */
+		void child(int slot, int parent);
+	}
+	
+	private static final double[] defaultRatios = {70, 20, 5, 1, 1};
+	
+	// Ranges at most this long are sorted by insertion
+	private static final int insertionSortLength = 16;
+	
+	private final Strategy strategy;
+	private final double[] ratios;
+	private final int parents,
+					  tournamentSize;
+	
+	/**
+	 * Creates the simulation's original selection: truncation, with the
+	 * default ratios.
+	 */
+	public Selection()
+	{
+		this(Strategy.TRUNCATION, defaultRatios, 2);
+		return;
+	}
+	
+	/**
+	 * @param strategy			How to pick each child's parent.
+	 * @param ratios			The share of the population for each
+	 * 							parent's children, best first, then for
+	 * 							survivors, then for newcomers. There must
+	 * 							be at least one parent.
+	 * @param tournamentSize	How many {@code Mathling}s each tournament
+	 * 							draws, if the strategy is TOURNAMENT.
+	 */
+	public Selection(Strategy strategy, double[] ratios, int tournamentSize)
+	{
+		if (ratios.length < 3)
+			throw new IllegalArgumentException("Need ratios for at least one parent, survivors and newcomers, got "
+					+ ratios.length);
+		if (tournamentSize < 1)
+			throw new IllegalArgumentException("Need a tournament of at least 1, got " + tournamentSize);
+		
+		double total = 0;
+		for (double r : ratios)
+		{
+			if (!(r >= 0) || Double.isInfinite(r))
+				throw new IllegalArgumentException("Ratios must be finite and at least 0, got " + r);
+			
+			total += r;
+		}
+		
+		if (total == 0)
+			throw new IllegalArgumentException("Need at least one ratio above 0");
+		
+		this.strategy = strategy;
+		this.ratios = ratios.clone();
+		this.parents = ratios.length - 2;
+		this.tournamentSize = tournamentSize;
+		
+		return;
+	}
+	
+	/**
+	 * @return	How the children's parents are picked.
+	 */
+	public Strategy getStrategy()
+	{
+		return this.strategy;
+	}
+	
+	/**
+	 * @return	True if the next generation's parents are always its best
+	 * 			{@code Mathling}s, so nothing worse than the worst parent
+	 * 			kept now can ever be one. This holds for every strategy but
+	 * 			TOURNAMENT, whose tournaments draw from the whole
+	 * 			population and so need every accuracy exactly.
+	 * @see main.Simulation#setEarlyAbort(boolean)
+	 */
+	public boolean boundsParents()
+	{
+		return this.strategy != Strategy.TOURNAMENT;
+	}
+	
+	/**
+	 * @return	How many of the best {@code Mathling}s are kept as parents
+	 * 			each generation.
+	 */
+	public int getParents()
+	{
+		return this.parents;
+	}
+	
+	/**
+	 * Moves the parents to the front of the population, best first. The
+	 * rest are left in no particular order.
+	 * 
+	 * @param population	The evaluated population.
+	 * @throws IllegalArgumentException	If the population has no room for
+	 * 									anything but parents.
+	 */
+	public void selectParents(Mathling[] population)
+	{
+		if (population.length <= this.parents)
+			throw new IllegalArgumentException("A population of " + population.length
+					+ " has no room beside " + this.parents + " parents");
+		
+		sortBest(population, this.parents);
+		return;
+	}
+	
+	/**
+	 * Identical to {@link #selectParents(Mathling[])}, but for a
+	 * population known only by its accuracies.
+	 * 
+	 * @param accuracies	The evaluated population's accuracies, which are
+	 * 						put in the same order as the population should
+	 * 						be.
+	 * @return				For each slot of the reordered population, the
+	 * 						index it came from.
+	 * @throws IllegalArgumentException	If the population has no room for
+	 * 									anything but parents.
+	 */
+	public int[] selectParents(double[] accuracies)
+	{
+		if (accuracies.length <= this.parents)
+			throw new IllegalArgumentException("A population of " + accuracies.length
+					+ " has no room beside " + this.parents + " parents");
+		
+		return rank(accuracies, this.parents, true);
+	}
+	
+	/**
+	 * Replaces every {@code Mathling} after the parents with survivors,
+	 * newcomers, and children.
+	 * 
+	 * @param population	The population, after
+	 * 						{@link #selectParents(Mathling[])}.
+	 */
+	public void breed(Mathling[] population)
+	{
+		final int n = population.length;
+		final double[] accuracies = new double[n];
+		
+		// Survivors and tournaments draw from the population as it was
+		final Mathling[] previous = population.clone();
+		for (int i = 0; i < n; i++)
+			accuracies[i] = previous[i].getAccuracy();
+		
+		this.breed(accuracies, new Breeder()
+		{
+			@Override
+			public void keep(int slot, int from)
+			{
+				population[slot] = previous[from];
+				return;
+			}
+			
+			@Override
+			public void newcomer(int slot)
+			{
+				population[slot] = new Mathling();
+				return;
+			}
+			
+			@Override
+			public void child(int slot, int parent)
+			{
+				population[slot] = previous[parent].getMutation();
+				return;
+			}
+		});
+		
+		return;
+	}
+	
+	/**
+	 * Identical to {@link #breed(Mathling[])}, but for a population known
+	 * only by its accuracies. Every slot after the parents is handed to
+	 * the breeder in order, with the same random draws as for an array
+	 * of {@code Mathling}s.
+	 * 
+	 * @param accuracies	The population's accuracies, after
+	 * 						{@link #selectParents(double[])}.
+	 * @param breeder		What fills each slot.
+	 */
+	public void breed(double[] accuracies, Breeder breeder)
+	{
+		final int n = accuracies.length,
+				  p = this.parents;
+		final int[] counts = this.allocate(n - p);
+		int slot = p;
+		
+		for (int i = 0; i < counts[p]; i++)
+			breeder.keep(slot++, (int) MathlingMutator.randMinMax(p, n));
+		
+		for (int i = 0; i < counts[p + 1]; i++)
+			breeder.newcomer(slot++);
+		
+		switch (this.strategy)
+		{
+			case TRUNCATION:
+				for (int parent = 0; parent < p; parent++)
+				{
+					for (int i = 0; i < counts[parent]; i++)
+						breeder.child(slot++, parent);
+				}
+				break;
+			case TOURNAMENT:
+				while (slot < n)
+					breeder.child(slot++, this.tournament(accuracies));
+				break;
+			case MU_PLUS_LAMBDA:
+				while (slot < n)
+					breeder.child(slot++, (int) MathlingMutator.randMinMax(0, p));
+				break;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * @return	The index of the best of {@code tournamentSize} random
+	 * 			draws.
+	 */
+	private int tournament(double[] accuracies)
+	{
+		int best = (int) MathlingMutator.randMinMax(0, accuracies.length);
+		
+		for (int i = 1; i < this.tournamentSize; i++)
+		{
+			final int drawn = (int) MathlingMutator.randMinMax(0, accuracies.length);
+			
+			if (Double.compare(accuracies[drawn], accuracies[best]) < 0)
+				best = drawn;
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Splits slots between the ratios, rounding down, then giving any
+	 * left over to the ratios which lost the most by rounding.
+	 * 
+	 * @param slots	How many slots there are to fill.
+	 * @return		How many slots each ratio gets.
+	 */
+	private int[] allocate(int slots)
+	{
+		final int[] counts = new int[this.ratios.length];
+		final double[] remainders = new double[this.ratios.length];
+		
+		double total = 0;
+		for (double r : this.ratios)
+			total += r;
+		
+		int given = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			final double exact = slots * this.ratios[i] / total;
+			
+			counts[i] = (int) exact;
+			remainders[i] = exact - counts[i];
+			given += counts[i];
+		}
+		
+		for (; given < slots; given++)
+		{
+			int most = 0;
+			for (int i = 1; i < remainders.length; i++)
+			{
+				if (remainders[i] > remainders[most])
+					most = i;
+			}
+			
+			counts[most]++;
+			remainders[most] = -1;
+		}
+		
+		return counts;
+	}
+	
+	/**
+	 * Moves the {@code k} most accurate {@code Mathling}s to the front,
+	 * best first. The rest follow in no particular order. This takes
+	 * linear time, plus the time to sort the {@code k}.
+	 * 
+	 * @param population	The evaluated population.
+	 * @param k				How many to put in order at the front.
+	 */
+	public static void sortBest(Mathling[] population, int k)
+	{
+		reorder(population, k, true);
+		return;
+	}
+	
+	/**
+	 * Moves the {@code k} most accurate {@code Mathling}s to the front, in
+	 * no particular order. This takes linear time.
+	 * 
+	 * @param population	The evaluated population.
+	 * @param k				How many to put at the front.
+	 */
+	public static void partition(Mathling[] population, int k)
+	{
+		reorder(population, k, false);
+		return;
+	}
+	
+	private static void reorder(Mathling[] population, int k, boolean sorted)
+	{
+		final int n = population.length;
+		k = Math.min(k, n);
+		
+		if (k <= 0)
+			return;
+		
+		final double[] keys = new double[n];
+		
+		for (int i = 0; i < n; i++)
+			keys[i] = population[i].getAccuracy();
+		
+		final int[] order = rank(keys, k, sorted);
+		
+		final Mathling[] previous = population.clone();
+		for (int i = 0; i < n; i++)
+			population[i] = previous[order[i]];
+		
+		return;
+	}
+	
+	/**
+	 * Moves the {@code k} smallest keys to the front, sorted if asked.
+	 * 
+	 * @param keys		The keys, which are reordered.
+	 * @param k			How many to put at the front, at least 1.
+	 * @param sorted	Whether to sort the front.
+	 * @return			For each key's new place, where it came from.
+	 */
+	private static int[] rank(double[] keys, int k, boolean sorted)
+	{
+		final int[] order = new int[keys.length];
+		
+		for (int i = 0; i < keys.length; i++)
+			order[i] = i;
+		
+		select(keys, order, k);
+		
+		if (sorted)
+			sort(keys, order, 0, k - 1);
+		
+		return order;
+	}
+	
+	/**
+	 * Quickselect, with a three-way partition so that many equal
+	 * accuracies, as from clones, don't slow it down. Afterwards, the
+	 * first {@code k} keys are the smallest.
+	 */
+	private static void select(double[] keys, int[] order, int k)
+	{
+		int lo = 0,
+			hi = keys.length - 1;
+		
+		while (lo < hi)
+		{
+			final long bounds = partition(keys, order, lo, hi);
+			final int lt = (int) (bounds >>> 32),
+					  gt = (int) bounds;
+			
+			if (k <= lt)
+				hi = lt - 1;
+			else if (k <= gt + 1)
+				return;
+			else
+				lo = gt + 1;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Sorts keys from {@code lo} to {@code hi}, inclusive, recursing only
+	 * into the smaller side of each partition.
+	 */
+	private static void sort(double[] keys, int[] order, int lo, int hi)
+	{
+		while (hi - lo >= insertionSortLength)
+		{
+			final long bounds = partition(keys, order, lo, hi);
+			final int lt = (int) (bounds >>> 32),
+					  gt = (int) bounds;
+			
+			if (lt - lo < hi - gt)
+			{
+				sort(keys, order, lo, lt - 1);
+				lo = gt + 1;
+			}
+			else
+			{
+				sort(keys, order, gt + 1, hi);
+				hi = lt - 1;
+			}
+		}
+		
+		for (int i = lo + 1; i <= hi; i++)
+		{
+			for (int j = i; j > lo && Double.compare(keys[j], keys[j - 1]) < 0; j--)
+				swap(keys, order, j, j - 1);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Partitions keys from {@code lo} to {@code hi}, inclusive, around the
+	 * median of the first, middle and last, into those less than it,
+	 * equal to it, and greater than it.
+	 * 
+	 * @return	The first index equal to the pivot in the high half, and
+	 * 			the last in the low half.
+	 */
+	private static long partition(double[] keys, int[] order, int lo, int hi)
+	{
+		final double a = keys[lo],
+					 b = keys[(lo + hi) >>> 1],
+					 c = keys[hi];
+		final double pivot;
+		
+		if (Double.compare(a, b) < 0)
+			pivot = (Double.compare(b, c) < 0)? b : (Double.compare(a, c) < 0)? c : a;
+		else
+			pivot = (Double.compare(a, c) < 0)? a : (Double.compare(b, c) < 0)? c : b;
+		
+		int lt = lo,
+			gt = hi,
+			i = lo;
+		
+		while (i <= gt)
+		{
+			final int cmp = Double.compare(keys[i], pivot);
+			
+			if (cmp < 0)
+				swap(keys, order, lt++, i++);
+			else if (cmp > 0)
+				swap(keys, order, i, gt--);
+			else
+				i++;
+		}
+		
+		return ((long) lt << 32) | (gt & 0xFFFFFFFFL);
+	}
+	
+	private static void swap(double[] keys, int[] order, int i, int j)
+	{
+		final double k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+		
+		final int o = order[i];
+		order[i] = order[j];
+		order[j] = o;
+		
+		return;
+	}
+}
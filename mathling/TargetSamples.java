@@ -0,0 +1,267 @@
+package mathling;
+
+import java.util.Arrays;
+
+import expression.DivideByZeroError;
+import lambdaType.Computable;
+
+/**
+ * The inputs a {@code Mathling} is tested on, paired with what the goal
+ * function returns for each of them. These never change over a
+ * simulation, so they're calculated once and shared by every
+ * {@code Mathling} instead of calling the goal function per candidate.
+ * <br><br>
+ *
+ * The samples cover every integer from {@code Mathling.minTest} up to (but
+ * not including) {@code Mathling.maxTest}, stored in the order given by a
+ * {@code SampleOrder}. That range is fixed, so only a change of order
+ * calls for new samples.
+ *
+ * @see mathling.Mathling#calculateAccuracy(TargetSamples)
+ * @see mathling.SampleOrder
+ */
+public class TargetSamples
+{
+	final double[] inputs;
+	final double[] targets;
+
+	private final SampleOrder order;
+
+	// The targets in ascending order, and the sums of the first i of them,
+	// for minimumError()
+	private final double[] sortedTargets,
+						   targetSums;
+
+	// The lowest and highest inputs, for bounding results
+	private final double lowestInput,
+						 highestInput;
+
+	/**
+	 * Samples a goal function across the {@code Mathling} test range, in
+	 * sequential order.
+	 *
+	 * @param f	The goal function to sample.
+	 * @see #TargetSamples(Computable, SampleOrder)
+	 */
+	public TargetSamples(Computable f)
+	{
+		this(f, SampleOrder.SEQUENTIAL);
+		return;
+	}
+
+	/**
+	 * Samples a goal function across the {@code Mathling} test range.
+	 * <br><br>
+	 *
+	 * Note: Any input at which the goal function itself divides by zero is
+	 * left out, as there's nothing to compare against there.
+	 *
+	 * @param f		The goal function to sample.
+	 * @param order	The order to store (and so test) the samples in.
+	 */
+	public TargetSamples(Computable f, SampleOrder order)
+	{
+		this.order = order;
+
+		final int size = Math.abs((int) Mathling.minTest - (int) Mathling.maxTest);
+		double[] inputs = new double[size],
+				 targets = new double[size];
+		int count = 0;
+
+		for (int i = (int) Mathling.minTest; i < (int) Mathling.maxTest; i++)
+		{
+			try {
+				targets[count] = f.compute(i);
+				inputs[count] = i;
+				count++;
+			} catch (DivideByZeroError err) {
+				continue;
+			}
+		}
+
+		final int[] permutation = order.permutation(count);
+		this.inputs = new double[count];
+		this.targets = new double[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			this.inputs[i] = inputs[permutation[i]];
+			this.targets[i] = targets[permutation[i]];
+		}
+
+		this.sortedTargets = sorted(this.targets);
+		this.targetSums = sums(this.sortedTargets);
+		this.lowestInput = lowest(this.inputs);
+		this.highestInput = highest(this.inputs);
+
+		return;
+	}
+
+	/**
+	 * Takes on samples which were calculated elsewhere, already in
+	 * order, such as those a coordinator sends its workers.
+	 *
+	 * @param inputs	The inputs, in the order to test them.
+	 * @param targets	The goal function's result for each input.
+	 * @param order		The order they're in.
+	 * @see mathling.EvaluationWorker
+	 */
+	TargetSamples(double[] inputs, double[] targets, SampleOrder order)
+	{
+		this.order = order;
+		this.inputs = inputs;
+		this.targets = targets;
+		this.sortedTargets = sorted(targets);
+		this.targetSums = sums(this.sortedTargets);
+		this.lowestInput = lowest(inputs);
+		this.highestInput = highest(inputs);
+
+		return;
+	}
+
+	/**
+	 * @return	The order the samples are stored in.
+	 */
+	public SampleOrder getOrder()
+	{
+		return this.order;
+	}
+
+	/**
+	 * @return	The number of samples.
+	 */
+	public int size()
+	{
+		return this.inputs.length;
+	}
+
+	/**
+	 * @param i	Which sample to look at.
+	 * @return	The input of that sample.
+	 */
+	public double getInput(int i)
+	{
+		return this.inputs[i];
+	}
+
+	/**
+	 * @param i	Which sample to look at.
+	 * @return	The goal function's result for that sample.
+	 */
+	public double getTarget(int i)
+	{
+		return this.targets[i];
+	}
+
+	/**
+	 * The least average error that any {@code Mathling} could have on
+	 * these samples, if all of its results fall between {@code low} and
+	 * {@code high}: every target outside that range is missed by at
+	 * least its distance to the range. Found by binary search, without
+	 * looking at each sample.
+	 *
+	 * @param low	The lowest result possible.
+	 * @param high	The highest result possible.
+	 * @return		The least possible average absolute error.
+	 * @see expression.ExpressionProgram#bound(double, double, double[])
+	 */
+	double minimumError(double low, double high)
+	{
+		final int n = this.sortedTargets.length;
+
+		if (n == 0)
+			return 0;
+
+		// Targets before below are under the range, and from above on, over it
+		final int below = firstAtLeast(low, false),
+				  above = firstAtLeast(high, true);
+		double total = 0;
+
+		if (below > 0)
+			total += below * low - this.targetSums[below];
+		if (above < n)
+			total += (this.targetSums[n] - this.targetSums[above]) - (n - above) * high;
+
+		return total / n;
+	}
+
+	/**
+	 * @return	The lowest input.
+	 */
+	double getLowestInput()
+	{
+		return this.lowestInput;
+	}
+
+	/**
+	 * @return	The highest input.
+	 */
+	double getHighestInput()
+	{
+		return this.highestInput;
+	}
+
+	/**
+	 * @param value		The value to look for.
+	 * @param strictly	Whether to look for the first target above the
+	 * 					value, rather than at or above it.
+	 * @return			The index of that target in the sorted targets, or
+	 * 					their length if there's none.
+	 */
+	private int firstAtLeast(double value, boolean strictly)
+	{
+		int lo = 0,
+			hi = this.sortedTargets.length;
+
+		while (lo < hi)
+		{
+			final int mid = (lo + hi) >>> 1;
+			final double t = this.sortedTargets[mid];
+
+			if (t < value || (strictly && t == value))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+	}
+
+	private static double[] sorted(double[] values)
+	{
+		final double[] sorted = values.clone();
+		Arrays.sort(sorted);
+
+		return sorted;
+	}
+
+	private static double[] sums(double[] values)
+	{
+		final double[] sums = new double[values.length + 1];
+
+		for (int i = 0; i < values.length; i++)
+			sums[i + 1] = sums[i] + values[i];
+
+		return sums;
+	}
+
+	private static double lowest(double[] values)
+	{
+		double lowest = Double.POSITIVE_INFINITY;
+
+		for (double v : values)
+			lowest = Math.min(lowest, v);
+
+		return lowest;
+	}
+
+	private static double highest(double[] values)
+	{
+		double highest = Double.NEGATIVE_INFINITY;
+
+		for (double v : values)
+			highest = Math.max(highest, v);
+
+		return highest;
+	}
+}
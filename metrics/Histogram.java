@@ -0,0 +1,169 @@
+package metrics;
+
+import java.util.Arrays;
+
+/**
+ * Counts recorded values in buckets which grow with the values, so that
+ * anything from a few nanoseconds to several minutes fits in under a
+ * thousand buckets. Values below 16 each get their own bucket; above
+ * that, every power of two is split into 16 buckets, so a percentile is
+ * never off by more than about 6%.<br><br>
+ *
+ * This is not safe to use from several threads at once on its own.
+ *
+ * @see metrics.SimulationMetrics
+ */
+public class Histogram
+{
+	// Each power of two is split into 2^precision buckets
+	private static final int precision = 4,
+							 subBuckets = 1 << precision;
+
+	private final long[] counts = new long[(64 - precision + 1) * subBuckets];
+	private long count = 0,
+				 sum = 0,
+				 min = Long.MAX_VALUE,
+				 max = 0;
+
+	/**
+	 * @param value	The value to count. Negative values count as 0.
+	 */
+	public void record(long value)
+	{
+		final long v = Math.max(0, value);
+
+		this.counts[bucketOf(v)]++;
+		this.count++;
+		this.sum += v;
+		this.min = Math.min(this.min, v);
+		this.max = Math.max(this.max, v);
+
+		return;
+	}
+
+	/**
+	 * @param p	The percentile, from 0 to 100.
+	 * @return	The smallest value which at least {@code p} percent of
+	 * 			the recorded values are no greater than, to within a
+	 * 			bucket. 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double p)
+	{
+		if (this.count == 0)
+			return 0;
+
+		final long rank = Math.max(1, (long) Math.ceil(p / 100 * this.count));
+		long seen = 0;
+
+		for (int i = 0; i < this.counts.length; i++)
+		{
+			seen += this.counts[i];
+			if (seen >= rank)
+				return Math.min(this.max, Math.max(this.min, highestOf(i)));
+		}
+
+		return this.max;
+	}
+
+	/**
+	 * @return	How many values have been recorded.
+	 */
+	public long getCount()
+	{
+		return this.count;
+	}
+
+	/**
+	 * @return	The sum of every recorded value.
+	 */
+	public long getSum()
+	{
+		return this.sum;
+	}
+
+	/**
+	 * @return	The average recorded value, or 0 if there are none.
+	 */
+	public double getMean()
+	{
+		return (this.count == 0)? 0 : (double) this.sum / this.count;
+	}
+
+	/**
+	 * @return	The largest recorded value, or 0 if there are none.
+	 */
+	public long getMax()
+	{
+		return this.max;
+	}
+
+	/**
+	 * Groups the recorded values by powers of two: the first count is
+	 * for 0, the next for 1, then 2 to 3, 4 to 7, and so on, up to the
+	 * group holding the largest value.
+	 *
+	 * @return	How many values fell in each group.
+	 */
+	public long[] getPowerOfTwoCounts()
+	{
+		final long[] groups = new long[65];
+		int used = 1;
+
+		for (int i = 0; i < this.counts.length; i++)
+		{
+			if (this.counts[i] == 0)
+				continue;
+
+			final long low = lowestOf(i);
+			final int group = (low == 0)? 0 : 64 - Long.numberOfLeadingZeros(low);
+
+			groups[group] += this.counts[i];
+			used = Math.max(used, group + 1);
+		}
+
+		return Arrays.copyOf(groups, used);
+	}
+
+	/**
+	 * Forgets every recorded value.
+	 */
+	public void reset()
+	{
+		Arrays.fill(this.counts, 0);
+		this.count = 0;
+		this.sum = 0;
+		this.min = Long.MAX_VALUE;
+		this.max = 0;
+
+		return;
+	}
+
+	private static int bucketOf(long v)
+	{
+		if (v < subBuckets)
+			return (int) v;
+
+		final int exponent = 63 - Long.numberOfLeadingZeros(v),
+				  shift = exponent - precision;
+
+		return (shift + 1) * subBuckets + (int) ((v >>> shift) & (subBuckets - 1));
+	}
+
+	private static long lowestOf(int bucket)
+	{
+		if (bucket < subBuckets)
+			return bucket;
+
+		final int shift = bucket / subBuckets - 1;
+		return ((long) (subBuckets + bucket % subBuckets)) << shift;
+	}
+
+	private static long highestOf(int bucket)
+	{
+		if (bucket < subBuckets)
+			return bucket;
+
+		final int shift = bucket / subBuckets - 1;
+		return lowestOf(bucket) + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,21 @@
+package metrics;
+
+/**
+ * The parts of a generation which are timed separately.<br><br>
+ *
+ * Evaluate:	Calculating every mathling's accuracy.<br>
+ * Sort:		Picking out the best of the population by accuracy.<br>
+ * Repopulate:	Replacing the population with the best ones' children.<br>
+ * Optimize:	Tuning the best ones' constants, every few generations.<br>
+ * Checkpoint:	Saving and transpiling the best mathling.
+ *
+ * @see metrics.SimulationMetrics
+ */
+public enum Phase
+{
+	EVALUATE,
+	SORT,
+	REPOPULATE,
+	OPTIMIZE,
+	CHECKPOINT
+}
@@ -0,0 +1,397 @@
+package metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import mathling.ArenaPopulation;
+import mathling.Mathling;
+
+/**
+ * Collects where a simulation spends its time. Each phase of every
+ * generation is timed into a {@code Histogram}, and the evaluated and
+ * faulted samples are counted, along with the mathlings rejected by
+ * interval bounds without being sampled at all. Every so many generations, these are
+ * summed up into a report, along with histograms of the population's
+ * tree sizes and depths, and the timings start over.<br><br>
+ *
+ * The latest report can be read over JMX, under
+ * {@code mathling:type=SimulationMetrics}, and can also be appended to a
+ * file as one line of JSON per report.<br><br>
+ *
+ * This is safe to use from several threads at once.
+ *
+ * @see metrics.Phase
+ * @see metrics.SimulationMetricsMXBean
+ * @see main.Simulation
+ */
+public class SimulationMetrics implements SimulationMetricsMXBean
+{
+	private static final String objectName = "mathling:type=SimulationMetrics";
+
+	private final int reportInterval;
+	private final Path output;
+
+	private final Map<Phase, Histogram> phases = new EnumMap<Phase, Histogram>(Phase.class);
+
+	private long generations = 0,
+				 samplesEvaluated = 0,
+				 screenedOut = 0;
+
+	// Since the last report
+	private long intervalSamples = 0,
+				 intervalFaults = 0,
+				 intervalEvaluations = 0,
+				 intervalScreened = 0,
+				 intervalStart = System.nanoTime();
+
+	// The last report
+	private final Map<String, Double> meanNanos = new LinkedHashMap<String, Double>();
+	private final Map<String, Long> p50Nanos = new LinkedHashMap<String, Long>(),
+									p99Nanos = new LinkedHashMap<String, Long>(),
+									maxNanos = new LinkedHashMap<String, Long>();
+	private double samplesPerSecond = 0,
+				   divideByZeroRate = 0,
+				   screenRate = 0;
+	private String lastReport = "";
+
+	/**
+	 * @param reportInterval	How many generations to sum up in each
+	 * 							report.
+	 * @param output			The file to append reports to, or null to
+	 * 							only report over JMX.
+	 */
+	public SimulationMetrics(int reportInterval, Path output)
+	{
+		if (reportInterval < 1)
+			throw new IllegalArgumentException("Need at least one generation per report, got " + reportInterval);
+
+		this.reportInterval = reportInterval;
+		this.output = output;
+
+		for (Phase p : Phase.values())
+			this.phases.put(p, new Histogram());
+
+		return;
+	}
+
+	/**
+	 * Makes these metrics readable over JMX, in place of any which were
+	 * registered before.
+	 */
+	public void register()
+	{
+		try
+		{
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(objectName);
+
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+
+			server.registerMBean(this, name);
+		}
+		catch (JMException e)
+		{
+			e.printStackTrace();
+		}
+
+		return;
+	}
+
+	/**
+	 * @param phase	The phase which just finished.
+	 * @param nanos	How long it took.
+	 */
+	public synchronized void record(Phase phase, long nanos)
+	{
+		this.phases.get(phase).record(nanos);
+		return;
+	}
+
+	/**
+	 * Counts the samples which were just evaluated, and how many of them
+	 * divided by zero. Mathlings which were rejected having tested no
+	 * samples were screened out by their interval bounds, so each is an
+	 * evaluation saved.
+	 *
+	 * @param mathlings	The mathlings whose accuracies were just
+	 * 					calculated.
+	 */
+	public void recordEvaluation(Mathling[] mathlings)
+	{
+		long samples = 0,
+			 faults = 0,
+			 evaluations = 0,
+			 screened = 0;
+
+		for (Mathling m : mathlings)
+		{
+			final int tested = m.getSamplesTested();
+
+			// Remembered accuracies weren't evaluated this time
+			if (tested > 0)
+			{
+				samples += tested;
+				faults += m.getFaultedSamples();
+				evaluations++;
+			}
+			else if (m.isRejected())
+			{
+				screened++;
+				evaluations++;
+			}
+		}
+
+		this.recordEvaluation(samples, faults, evaluations, screened);
+		return;
+	}
+
+	/**
+	 * Identical to {@link #recordEvaluation(Mathling[])}, but for a
+	 * population which has already been counted up, such as an
+	 * {@code ArenaPopulation}.
+	 *
+	 * @param samples		How many samples were evaluated.
+	 * @param faults		How many of them divided by zero.
+	 * @param evaluations	How many mathlings were evaluated.
+	 * @param screened		How many of those were screened out by their
+	 * 						interval bounds.
+	 */
+	public synchronized void recordEvaluation(long samples, long faults, long evaluations, long screened)
+	{
+		this.samplesEvaluated += samples;
+		this.screenedOut += screened;
+		this.intervalSamples += samples;
+		this.intervalFaults += faults;
+		this.intervalEvaluations += evaluations;
+		this.intervalScreened += screened;
+
+		return;
+	}
+
+	/**
+	 * Marks the end of a generation, reporting if enough have passed.
+	 *
+	 * @param population	The population as it now stands.
+	 */
+	public synchronized void endGeneration(Mathling[] population)
+	{
+		this.generations++;
+
+		if (this.generations % this.reportInterval == 0)
+		{
+			final Histogram sizes = new Histogram(),
+							depths = new Histogram();
+			for (Mathling m : population)
+			{
+				sizes.record(m.getExpression().getSize());
+				depths.record(m.getExpression().getDepth());
+			}
+
+			this.report(sizes, depths);
+		}
+
+		return;
+	}
+
+	/**
+	 * Identical to {@link #endGeneration(Mathling[])}, but for a
+	 * population kept in arenas.
+	 *
+	 * @param population	The population as it now stands.
+	 */
+	public synchronized void endGeneration(ArenaPopulation population)
+	{
+		this.generations++;
+
+		if (this.generations % this.reportInterval == 0)
+		{
+			final Histogram sizes = new Histogram(),
+							depths = new Histogram();
+			for (int i = 0; i < population.size(); i++)
+			{
+				sizes.record(population.getSize(i));
+				depths.record(population.getDepth(i));
+			}
+
+			this.report(sizes, depths);
+		}
+
+		return;
+	}
+
+	/**
+	 * Sums up the generations since the last report, publishes the
+	 * result, and starts the timings over.
+	 *
+	 * @param sizes		The population's tree sizes.
+	 * @param depths	The population's tree depths.
+	 */
+	private void report(Histogram sizes, Histogram depths)
+	{
+		final long now = System.nanoTime();
+		final double seconds = (now - this.intervalStart) / 1e9;
+
+		this.samplesPerSecond = (seconds > 0)? this.intervalSamples / seconds : 0;
+		this.divideByZeroRate = (this.intervalSamples > 0)?
+				(double) this.intervalFaults / this.intervalSamples : 0;
+		this.screenRate = (this.intervalEvaluations > 0)?
+				(double) this.intervalScreened / this.intervalEvaluations : 0;
+
+		final StringBuilder json = new StringBuilder();
+		json.append(String.format(Locale.ROOT,
+				"{\"generation\":%d,\"time\":%d,\"samplesPerSecond\":%.1f,\"divideByZeroRate\":%.6f,"
+						+ "\"screenedOut\":%d,\"screenRate\":%.6f,\"phases\":{",
+				this.generations, System.currentTimeMillis(),
+				this.samplesPerSecond, this.divideByZeroRate,
+				this.intervalScreened, this.screenRate));
+
+		boolean first = true;
+		for (Map.Entry<Phase, Histogram> entry : this.phases.entrySet())
+		{
+			final String name = entry.getKey().name().toLowerCase(Locale.ROOT);
+			final Histogram h = entry.getValue();
+
+			this.meanNanos.put(name, h.getMean());
+			this.p50Nanos.put(name, h.getPercentile(50));
+			this.p99Nanos.put(name, h.getPercentile(99));
+			this.maxNanos.put(name, h.getMax());
+
+			if (!first)
+				json.append(',');
+			first = false;
+
+			json.append('"').append(name).append("\":");
+			appendSummary(json, h);
+
+			h.reset();
+		}
+
+		json.append("},\"treeSize\":");
+		appendSummary(json, sizes);
+		json.append(",\"treeDepth\":");
+		appendSummary(json, depths);
+		json.append('}');
+
+		this.lastReport = json.toString();
+		this.intervalSamples = 0;
+		this.intervalFaults = 0;
+		this.intervalEvaluations = 0;
+		this.intervalScreened = 0;
+		this.intervalStart = now;
+
+		if (this.output != null)
+		{
+			try
+			{
+				Files.write(this.output,
+						(this.lastReport + "\n").getBytes(StandardCharsets.UTF_8),
+						StandardOpenOption.CREATE,
+						StandardOpenOption.APPEND);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		return;
+	}
+
+	private static void appendSummary(StringBuilder json, Histogram h)
+	{
+		json.append(String.format(Locale.ROOT,
+				"{\"count\":%d,\"mean\":%.1f,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"max\":%d,\"powersOfTwo\":[",
+				h.getCount(), h.getMean(),
+				h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.getMax()));
+
+		final long[] groups = h.getPowerOfTwoCounts();
+		for (int i = 0; i < groups.length; i++)
+		{
+			if (i > 0)
+				json.append(',');
+			json.append(groups[i]);
+		}
+
+		json.append("]}");
+		return;
+	}
+
+	@Override
+	public synchronized long getGenerations()
+	{
+		return this.generations;
+	}
+
+	@Override
+	public synchronized long getSamplesEvaluated()
+	{
+		return this.samplesEvaluated;
+	}
+
+	@Override
+	public synchronized double getSamplesPerSecond()
+	{
+		return this.samplesPerSecond;
+	}
+
+	@Override
+	public synchronized double getDivideByZeroRate()
+	{
+		return this.divideByZeroRate;
+	}
+
+	@Override
+	public synchronized long getScreenedOut()
+	{
+		return this.screenedOut;
+	}
+
+	@Override
+	public synchronized double getScreenRate()
+	{
+		return this.screenRate;
+	}
+
+	@Override
+	public synchronized Map<String, Double> getPhaseMeanNanos()
+	{
+		return new LinkedHashMap<String, Double>(this.meanNanos);
+	}
+
+	@Override
+	public synchronized Map<String, Long> getPhaseP50Nanos()
+	{
+		return new LinkedHashMap<String, Long>(this.p50Nanos);
+	}
+
+	@Override
+	public synchronized Map<String, Long> getPhaseP99Nanos()
+	{
+		return new LinkedHashMap<String, Long>(this.p99Nanos);
+	}
+
+	@Override
+	public synchronized Map<String, Long> getPhaseMaxNanos()
+	{
+		return new LinkedHashMap<String, Long>(this.maxNanos);
+	}
+
+	@Override
+	public synchronized String getLastReport()
+	{
+		return this.lastReport;
+	}
+}
@@ -0,0 +1,73 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * What a running simulation reports over JMX. Phase timings are keyed by
+ * phase name and cover the generations since the last report; the
+ * counters cover the whole run.
+ *
+ * @see metrics.SimulationMetrics
+ */
+public interface SimulationMetricsMXBean
+{
+	/**
+	 * @return	How many generations have finished.
+	 */
+	long getGenerations();
+
+	/**
+	 * @return	How many samples have been evaluated in total.
+	 */
+	long getSamplesEvaluated();
+
+	/**
+	 * @return	Samples evaluated per second of wall time, over the last
+	 * 			report's generations.
+	 */
+	double getSamplesPerSecond();
+
+	/**
+	 * @return	The fraction of evaluated samples which divided by zero,
+	 * 			over the last report's generations.
+	 */
+	double getDivideByZeroRate();
+
+	/**
+	 * @return	How many mathlings have been rejected by their interval
+	 * 			bounds without testing any samples, in total.
+	 */
+	long getScreenedOut();
+
+	/**
+	 * @return	The fraction of evaluated mathlings which were rejected by
+	 * 			their interval bounds, over the last report's generations.
+	 */
+	double getScreenRate();
+
+	/**
+	 * @return	The average time taken by each phase, in nanoseconds.
+	 */
+	Map<String, Double> getPhaseMeanNanos();
+
+	/**
+	 * @return	The median time taken by each phase, in nanoseconds.
+	 */
+	Map<String, Long> getPhaseP50Nanos();
+
+	/**
+	 * @return	The 99th percentile time taken by each phase, in
+	 * 			nanoseconds.
+	 */
+	Map<String, Long> getPhaseP99Nanos();
+
+	/**
+	 * @return	The longest time taken by each phase, in nanoseconds.
+	 */
+	Map<String, Long> getPhaseMaxNanos();
+
+	/**
+	 * @return	The last report, as a line of JSON.
+	 */
+	String getLastReport();
+}
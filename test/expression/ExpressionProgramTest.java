@@ -0,0 +1,55 @@
+package expression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import mathling.MathlingMutator;
+
+public class ExpressionProgramTest
+{
+	private static final double[] odds = {30, 30};
+
+	@Test
+	public void matchesCollapse()
+	{
+		MathlingMutator.setSeed(1);
+
+		final double[] xs = new double[200],
+					   out = new double[xs.length];
+		final boolean[] faults = new boolean[xs.length];
+
+		for (int i = 0; i < xs.length; i++)
+			xs[i] = i - 100;
+
+		for (int t = 0; t < 500; t++)
+		{
+			final Expression e = MathlingMutator.newExpressionSafe(odds);
+			final ExpressionProgram program = ExpressionProgram.compile(e);
+			final int faulted = program.evaluate(xs, out, faults);
+			int expected = 0;
+
+			for (int i = 0; i < xs.length; i++)
+			{
+				try
+				{
+					final double result = e.collapse(xs[i]);
+
+					assertFalse(faults[i], e.print() + " at " + xs[i]);
+					assertEquals(result, out[i], 0, e.print() + " at " + xs[i]);
+				}
+				catch (DivideByZeroError err)
+				{
+					assertTrue(faults[i], e.print() + " at " + xs[i]);
+					expected++;
+				}
+			}
+
+			assertEquals(expected, faulted);
+		}
+
+		return;
+	}
+}
@@ -0,0 +1,64 @@
+package expression;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class ExpressionTest
+{
+	@Test
+	public void identicalTreesAreShared()
+	{
+		final Expression a = Expression.of(Expression.of('x'), '*', Expression.of(2.5)),
+						 b = Expression.of(Expression.of('x'), '*', Expression.of(2.5));
+
+		assertSame(a, b);
+		assertSame(Expression.of(0.0), Expression.of(-0.0 + 0.0));
+
+		return;
+	}
+
+	@Test
+	public void threadsBuildingTheSameTreesShareThem() throws Exception
+	{
+		final int threads = 8,
+				  trees = 2000;
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		try
+		{
+			final List<Future<Expression[]>> results = new ArrayList<Future<Expression[]>>();
+			final Callable<Expression[]> build = () -> {
+				final Expression[] built = new Expression[trees];
+				for (int i = 0; i < trees; i++)
+					built[i] = Expression.of(Expression.of('x'), '+', Expression.of(Expression.of(i), '/', Expression.of('x')));
+
+				return built;
+			};
+
+			for (int t = 0; t < threads; t++)
+				results.add(pool.submit(build));
+
+			final Expression[] first = results.get(0).get();
+			for (Future<Expression[]> f : results)
+			{
+				final Expression[] built = f.get();
+				for (int i = 0; i < trees; i++)
+					assertSame(first[i], built[i]);
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		return;
+	}
+}
@@ -0,0 +1,103 @@
+package mathling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import expression.Expression;
+import expression.ExpressionArena;
+
+public class ArenaPopulationTest
+{
+	@Test
+	public void accuraciesMatchMathlings()
+	{
+		MathlingMutator.setSeed(4);
+
+		final TargetSamples samples = new TargetSamples(x -> Math.sin(Math.toRadians(x)));
+		final Mathling[] mathlings = new Mathling[300];
+
+		for (int i = 0; i < mathlings.length; i++)
+			mathlings[i] = new Mathling();
+
+		final ArenaPopulation population = new ArenaPopulation(mathlings, false, false);
+		population.calculateAccuracies(samples, Double.POSITIVE_INFINITY, null);
+
+		for (int i = 0; i < mathlings.length; i++)
+		{
+			final Expression e = mathlings[i].peekExpression();
+			mathlings[i].calculateAccuracy(samples);
+
+			// Mathlings simplify trees which divide by zero; arenas don't
+			if (mathlings[i].peekExpression() == e)
+				assertEquals(mathlings[i].getAccuracy(), population.getAccuracy(i), 0, e.print());
+		}
+
+		return;
+	}
+
+	@Test
+	public void repopulatingKeepsTheBestAsParents()
+	{
+		MathlingMutator.setSeed(5);
+
+		final TargetSamples samples = new TargetSamples(x -> Math.sin(Math.toRadians(x)));
+		final Selection selection = new Selection();
+		final Mathling[] mathlings = new Mathling[100];
+
+		for (int i = 0; i < mathlings.length; i++)
+			mathlings[i] = new Mathling();
+
+		final ArenaPopulation population = new ArenaPopulation(mathlings, false, true);
+		double best = Double.POSITIVE_INFINITY;
+
+		for (int g = 0; g < 20; g++)
+		{
+			population.calculateAccuracies(samples, Double.POSITIVE_INFINITY, null);
+			population.repopulate(selection);
+
+			assertEquals(mathlings.length, population.size());
+			assertTrue(population.getAccuracy(0) <= best);
+			for (int i = 1; i < selection.getParents(); i++)
+				assertTrue(population.getAccuracy(i - 1) <= population.getAccuracy(i));
+
+			best = population.getAccuracy(0);
+		}
+
+		final Mathling champion = population.toMathlings()[0];
+		champion.calculateAccuracy(samples);
+		assertEquals(best, champion.getAccuracy(), 1e-12);
+
+		return;
+	}
+
+	@Test
+	public void arenaTreesGrowLikeExpressions()
+	{
+		final ExpressionArena arena = new ExpressionArena(16, false);
+		final double[] odds = {30, 30};
+
+		MathlingMutator.setSeed(6);
+		final Expression[] expected = new Expression[200];
+		for (int i = 0; i < expected.length; i++)
+			expected[i] = MathlingMutator.newExpressionSafe(odds);
+
+		MathlingMutator.setSeed(6);
+		for (int i = 0; i < expected.length; i++)
+			assertSame(expected[i], arena.toExpression(MathlingMutator.newArenaTree(arena, odds)));
+
+		// Mutations grow their new subtrees in the arena too
+		for (int i = 0; i < expected.length; i++)
+		{
+			MathlingMutator.setSeed(i);
+			final Expression mutated = MathlingMutator.mutateExpression(expected[i], 50, odds);
+
+			MathlingMutator.setSeed(i);
+			assertSame(mutated, arena.toExpression(MathlingMutator.mutateArena(arena, i, 50, odds)));
+		}
+
+		return;
+	}
+}
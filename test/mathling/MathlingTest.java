@@ -0,0 +1,69 @@
+package mathling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class MathlingTest
+{
+	@Test
+	public void boundedAccuracyRejectsOnlyWhatIsWorse()
+	{
+		MathlingMutator.setSeed(2);
+
+		final TargetSamples samples = new TargetSamples(x -> Math.sin(Math.toRadians(x)), SampleOrder.STRIDED);
+		final MathlingRandom random = new MathlingRandom(3);
+
+		for (int t = 0; t < 2000; t++)
+		{
+			Mathling m = new Mathling();
+			for (int j = (int) (random.nextDouble() * 4); j > 0; j--)
+				m = m.getMutation();
+
+			final Mathling full = new Mathling(m.peekExpression()),
+						   bounded = new Mathling(m.peekExpression());
+			final double bound = Math.exp(random.nextDouble() * 8 - 4);
+
+			full.calculateAccuracy(samples);
+			bounded.calculateAccuracy(samples, bound);
+
+			if (bounded.isRejected())
+				assertTrue(!(full.getAccuracy() <= bound), m.peekExpression().print());
+			else
+				assertEquals(full.getAccuracy(), bounded.getAccuracy(), 0);
+		}
+
+		return;
+	}
+
+	@Test
+	public void rewriteNeverLeavesAStaleAccuracy()
+	{
+		MathlingMutator.setSeed(4);
+
+		final TargetSamples samples = new TargetSamples(x -> Math.sin(Math.toRadians(x)));
+		int kept = 0;
+
+		for (int t = 0; t < 2000; t++)
+		{
+			final Mathling m = new Mathling();
+			m.calculateAccuracy(samples);
+
+			final double before = m.getAccuracy();
+
+			if (m.rewrite(samples))
+				kept++;
+
+			final Mathling fresh = new Mathling(m.peekExpression());
+			fresh.calculateAccuracy(samples);
+
+			assertTrue(Double.compare(m.getAccuracy(), before) <= 0, m.peekExpression().print());
+			assertEquals(fresh.getAccuracy(), m.getAccuracy(), 0, m.peekExpression().print());
+		}
+
+		assertTrue(kept > 0);
+
+		return;
+	}
+}
@@ -0,0 +1,81 @@
+package mathling;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import expression.Expression;
+import expression.ExpressionProgram;
+import main.Simulation;
+
+public class NodeVectorCacheTest
+{
+	private static final double[] odds = {30, 30};
+
+	@Test
+	public void matchesProgram()
+	{
+		MathlingMutator.setSeed(1);
+
+		final TargetSamples samples = Simulation.getTargetSamples();
+		final Expression[] parents = new Expression[3];
+
+		for (int i = 0; i < parents.length; i++)
+			parents[i] = MathlingMutator.newExpressionSafe(odds);
+
+		final NodeVectorCache cache = new NodeVectorCache(samples, parents, 2048, null);
+
+		for (int t = 0; t < 300; t++)
+		{
+			final Expression child = MathlingMutator.mutateExpression(parents[t % parents.length], 30, odds);
+			assertSame(samples, child, cache);
+		}
+
+		return;
+	}
+
+	@Test
+	public void walksDeepTrees()
+	{
+		MathlingMutator.setSeed(1);
+
+		final TargetSamples samples = Simulation.getTargetSamples();
+		Expression deep = Expression.of('x');
+
+		// Far deeper than a thread's stack could recurse through
+		for (int i = 0; i < 20000; i++)
+		{
+			deep = (i % 2 == 0)? Expression.of(deep, '+', Expression.of(0.5))
+							   : Expression.of(Expression.of(2.0), '*', deep);
+		}
+
+		final NodeVectorCache cache = new NodeVectorCache(samples, new Expression[] {deep}, 16, null);
+		assertSame(samples, deep, cache);
+
+		for (int t = 0; t < 10; t++)
+		{
+			assertSame(samples, MathlingMutator.mutateExpression(deep, 30, odds), cache);
+			assertSame(samples, MathlingMutator.pokeExpression(deep, 30), cache);
+		}
+
+		return;
+	}
+
+	private static void assertSame(TargetSamples samples, Expression e, NodeVectorCache cache)
+	{
+		final int n = samples.size();
+		final double[] expected = new double[n],
+					   actual = new double[n];
+		final boolean[] expectedFaults = new boolean[n],
+						actualFaults = new boolean[n];
+
+		final int faulted = ExpressionProgram.compile(e).evaluate(samples.inputs, expected, expectedFaults);
+
+		assertEquals(faulted, cache.evaluate(e, 0, n, actual, actualFaults));
+		assertArrayEquals(expected, actual, 0);
+		assertArrayEquals(expectedFaults, actualFaults);
+
+		return;
+	}
+}
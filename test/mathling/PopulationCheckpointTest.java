@@ -0,0 +1,55 @@
+package mathling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PopulationCheckpointTest
+{
+	@Test
+	public void roundTripsTunedMathlings(@TempDir Path dir) throws IOException
+	{
+		MathlingMutator.setSeed(5);
+
+		final Mathling[] population = new Mathling[20];
+
+		for (int i = 0; i < population.length; i++)
+		{
+			population[i] = new Mathling();
+			population[i].setAccuracy(i * 0.25);
+
+			if (i % 3 == 0)
+				population[i].markTuned(population[i].peekExpression());
+		}
+
+		final Path file = dir.resolve("population.mth");
+		PopulationCheckpoint.of(population, 42, 7).save(file);
+
+		final PopulationCheckpoint loaded = PopulationCheckpoint.load(file);
+		final Mathling[] resumed = loaded.toMathlings();
+
+		assertEquals(42, loaded.getGeneration());
+		assertEquals(7, loaded.getRandomState());
+		assertEquals(population.length, resumed.length);
+
+		for (int i = 0; i < population.length; i++)
+		{
+			assertSame(population[i].peekExpression(), resumed[i].peekExpression());
+			assertEquals(population[i].getAccuracy(), resumed[i].getAccuracy(), 0);
+			assertEquals(population[i].isTuned(), resumed[i].isTuned());
+		}
+
+		// The flag is kept per record, not for the whole population
+		assertTrue(resumed[0].isTuned());
+		assertFalse(resumed[1].isTuned());
+
+		return;
+	}
+}
@@ -0,0 +1,204 @@
+package mathling;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class RemoteEvaluatorTest
+{
+	private static final TargetSamples samples = new TargetSamples(x -> Math.sin(Math.toRadians(x)));
+
+	@Test
+	public void matchesLocalAccuracies() throws IOException
+	{
+		final EvaluationWorker[] workers = startWorkers(3);
+		final RemoteEvaluator evaluator = new RemoteEvaluator(addresses(workers));
+
+		try
+		{
+			final Mathling[] local = population(8, 1000);
+			for (Mathling m : local)
+				m.calculateAccuracy(samples, Double.POSITIVE_INFINITY);
+
+			final Mathling[] remote = population(8, 1000);
+			evaluator.calculateAccuracies(remote, samples, Double.POSITIVE_INFINITY, null);
+
+			assertMatch(local, remote);
+
+			// Some trees divide by zero, and come back simplified
+			final Mathling[] original = population(8, 1000);
+			int simplified = 0;
+
+			for (int i = 0; i < original.length; i++)
+			{
+				if (remote[i].peekExpression() != original[i].peekExpression())
+					simplified++;
+			}
+
+			assertTrue(simplified > 0);
+
+			// A finite bound rejects the worse half
+			final double[] accuracies = new double[local.length];
+			for (int i = 0; i < local.length; i++)
+				accuracies[i] = local[i].getAccuracy();
+
+			Arrays.sort(accuracies);
+			final double bound = accuracies[accuracies.length / 2];
+
+			final Mathling[] boundedLocal = population(8, 1000);
+			for (Mathling m : boundedLocal)
+				m.calculateAccuracy(samples, bound);
+
+			final Mathling[] boundedRemote = population(8, 1000);
+			evaluator.calculateAccuracies(boundedRemote, samples, bound, null);
+
+			assertMatch(boundedLocal, boundedRemote);
+			assertTrue(Arrays.stream(boundedRemote).anyMatch(Mathling::isRejected));
+
+			assertEquals(0, evaluator.getRetries());
+			assertEquals(0, evaluator.getLocalBatches());
+		}
+		finally
+		{
+			evaluator.close();
+			for (EvaluationWorker w : workers)
+				w.close();
+		}
+
+		return;
+	}
+
+	@Test
+	public void survivesLosingWorkers() throws IOException, InterruptedException
+	{
+		final EvaluationWorker[] workers = startWorkers(3);
+		final RemoteEvaluator evaluator = new RemoteEvaluator(addresses(workers));
+
+		try
+		{
+			// One worker goes away after its first answer, and its batches
+			// in flight are sent to the others
+			final Mathling[] local = population(9, 3000);
+			for (Mathling m : local)
+				m.calculateAccuracy(samples, Double.POSITIVE_INFINITY);
+
+			final Mathling[] remote = population(9, 3000);
+			final Thread closer = closeAfterAnswering(workers[0]);
+
+			evaluator.calculateAccuracies(remote, samples, Double.POSITIVE_INFINITY, null);
+			closer.join();
+
+			assertMatch(local, remote);
+			assertTrue(evaluator.getRetries() > 0);
+			assertEquals(2, evaluator.getConnectedWorkers());
+
+			// Then the rest go too, and what's left is evaluated here
+			final Mathling[] remaining = population(10, 3000);
+			for (Mathling m : remaining)
+				m.calculateAccuracy(samples, Double.POSITIVE_INFINITY);
+
+			final Mathling[] fallback = population(10, 3000);
+			final Thread[] closers = {closeAfterAnswering(workers[1]), closeAfterAnswering(workers[2])};
+
+			evaluator.calculateAccuracies(fallback, samples, Double.POSITIVE_INFINITY, null);
+			for (Thread t : closers)
+				t.join();
+
+			assertMatch(remaining, fallback);
+			assertTrue(evaluator.getLocalBatches() > 0);
+			assertEquals(0, evaluator.getConnectedWorkers());
+		}
+		finally
+		{
+			evaluator.close();
+			for (EvaluationWorker w : workers)
+				w.close();
+		}
+
+		return;
+	}
+
+	private static Mathling[] population(long seed, int size)
+	{
+		MathlingMutator.setSeed(seed);
+
+		final Mathling[] mathlings = new Mathling[size];
+		for (int i = 0; i < size; i++)
+			mathlings[i] = new Mathling();
+
+		return mathlings;
+	}
+
+	private static void assertMatch(Mathling[] expected, Mathling[] actual)
+	{
+		assertEquals(expected.length, actual.length);
+
+		for (int i = 0; i < expected.length; i++)
+		{
+			final String tree = expected[i].printExpression();
+
+			assertEquals(expected[i].getAccuracy(), actual[i].getAccuracy(), 0, tree);
+			assertEquals(expected[i].isRejected(), actual[i].isRejected(), tree);
+			assertEquals(expected[i].getSamplesTested(), actual[i].getSamplesTested(), tree);
+			assertEquals(expected[i].getFaultedSamples(), actual[i].getFaultedSamples(), tree);
+			assertSame(expected[i].peekExpression(), actual[i].peekExpression(), tree);
+		}
+
+		return;
+	}
+
+	private static EvaluationWorker[] startWorkers(int count) throws IOException
+	{
+		final EvaluationWorker[] workers = new EvaluationWorker[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			workers[i] = new EvaluationWorker(0, 2);
+
+			final Thread t = new Thread(workers[i]::run, "test-worker-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		return workers;
+	}
+
+	private static List<InetSocketAddress> addresses(EvaluationWorker[] workers)
+	{
+		final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+
+		for (EvaluationWorker w : workers)
+			addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), w.getPort()));
+
+		return addresses;
+	}
+
+	/**
+	 * Closes a worker as soon as it has answered one more batch.
+	 */
+	private static Thread closeAfterAnswering(EvaluationWorker worker)
+	{
+		final long answered = worker.getAnswered();
+		final Thread t = new Thread(() ->
+		{
+			while (worker.getAnswered() == answered)
+				Thread.onSpinWait();
+
+			worker.close();
+		}, "test-closer");
+
+		t.setDaemon(true);
+		t.start();
+
+		return t;
+	}
+}
@@ -5,6 +5,9 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 
 import expression.Expression;
+import expression.ExpressionType;
+import expression.ExpressionVisitor;
+import expression.ExpressionWalker;
 
 /**
  * These transpilers' goal is to convert the {@code Expression} AST
@@ -33,24 +36,48 @@ public interface Transpiler
 	 * 			which respects its internal order of operations.
 	 * 
 	 * @see expression.Expression
+	 * @see expression.ExpressionWalker
 	 */
 	public static String expressionToString(Expression e)
 	{
-		switch (e.getType())
+		final StringBuilder result = new StringBuilder();
+		
+		ExpressionWalker.walk(e, new ExpressionVisitor<RuntimeException>()
 		{
-			case NUMBER:
-				return "" + e.getNum();
-			case VARIABLE:
-				return "" + e.getVariable();
-			case COMPLEX:
-				return  "(" 								+
-						expressionToString(e.getLeft()) 	+ " " +
-						e.getOperator()						+ " " +
-						expressionToString(e.getRight())	+
-						")";
-		}
-		// Should never be reached, previous switch is total (barring null)
-		return null;
+			@Override
+			public void leaf(Expression e, int level)
+			{
+				if (e.getType() == ExpressionType.NUMBER)
+					result.append(e.getNum());
+				else
+					result.append(e.getVariable());
+				
+				return;
+			}
+			
+			@Override
+			public void enter(Expression e, int level)
+			{
+				result.append('(');
+				return;
+			}
+			
+			@Override
+			public void between(Expression e, int level)
+			{
+				result.append(' ').append(e.getOperator()).append(' ');
+				return;
+			}
+			
+			@Override
+			public void exit(Expression e, int level)
+			{
+				result.append(')');
+				return;
+			}
+		});
+		
+		return result.toString();
 	}
 	
 	/**